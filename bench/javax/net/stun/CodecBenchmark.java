@@ -0,0 +1,163 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the STUN message codec, the work done for each Binding
+ * Request on the hot path of the services. Run with the bench target of the
+ * ant build, which adds the gc profiler to report the allocation rate.
+ *
+ * @author Henrik Baastrup
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final String USERNAME = "USER-12c4e2a1f07-1a2b";
+
+    private byte password[];
+    private HmacKey key;
+    private InetAddress address;
+    private MessageHeader response;
+    private byte responseBytes[];
+    private byte requestBytes[];
+    private byte authenticatedBytes[];
+    private MessageHeader authenticated;
+    private StunMessageView view;
+    private ByteBuffer authenticatedBuffer;
+    private byte integrityBody[];
+    private byte integrityScratch[];
+
+    @Setup
+    public void setUp() throws IOException {
+        password = new byte[16];
+        for (int i=0; i<password.length; i++) password[i] = (byte)(i*7);
+        key = new HmacKey(password);
+        address = InetAddress.getByName("192.0.2.17");
+
+        //A Binding Request with a CHANGE-REQUEST, as sent in Test II
+        MessageHeader request = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        request.genrateTransactionId();
+        request.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.CHANGE_REQUEST, 0x06));
+        requestBytes = request.toBytes();
+
+        //A Binding Response as sent by the Binding service
+        response = new MessageHeader(MessageHeader.HeaderType.BINDING_RESPONSE);
+        response.setTransactionId(request.getTransactionId());
+        response.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS, address, 40001));
+        response.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.SOURCE_ADDRESS, address, 3478));
+        response.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.CHANGED_ADDRESS, address, 3479));
+        responseBytes = response.toBytes();
+
+        //An authenticated Binding Request
+        MessageHeader head = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        head.genrateTransactionId();
+        head.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.USERNAME, USERNAME, 0));
+        integrityBody = head.toBytes();
+        integrityScratch = new byte[integrityBody.length];
+        head.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.MESSAGE_INTEGRITY, password, integrityBody.clone()));
+        authenticatedBytes = head.toBytes();
+        authenticated = MessageHeader.create(authenticatedBytes);
+        if (authenticated.integrityCheck(key)!=0) throw new IllegalStateException("The authenticated request does not pass the integrity check");
+
+        authenticatedBuffer = ByteBuffer.wrap(authenticatedBytes);
+        view = new StunMessageView();
+        if (!view.wrap(authenticatedBuffer)) throw new IllegalStateException("The authenticated request could not be parsed");
+    }
+
+    @Benchmark
+    public MessageHeader createRequest() throws IOException {
+        return MessageHeader.create(requestBytes);
+    }
+
+    @Benchmark
+    public MessageHeader createResponse() throws IOException {
+        return MessageHeader.create(responseBytes);
+    }
+
+    @Benchmark
+    public MessageHeader createAuthenticatedRequest() throws IOException {
+        return MessageHeader.create(authenticatedBytes);
+    }
+
+    @Benchmark
+    public byte[] responseToBytes() throws IOException {
+        return response.toBytes();
+    }
+
+    @Benchmark
+    public MessageAttribute createAddressAttribute() {
+        return MessageAttribute.create(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS, address, 40001);
+    }
+
+    @Benchmark
+    public MessageAttribute createUsernameAttribute() {
+        return MessageAttribute.create(MessageAttribute.MessageAttributeType.USERNAME, USERNAME, 0);
+    }
+
+    @Benchmark
+    public MessageAttribute createIntegrityAttribute() {
+        //The factory patches the length of the body, so it gets a fresh copy each time
+        System.arraycopy(integrityBody, 0, integrityScratch, 0, integrityBody.length);
+        return MessageAttribute.create(MessageAttribute.MessageAttributeType.MESSAGE_INTEGRITY, password, integrityScratch);
+    }
+
+    @Benchmark
+    public byte[] utilsHmac() {
+        return Utils.hmac(password, integrityBody);
+    }
+
+    @Benchmark
+    public byte[] hmacKey() {
+        return key.hmac(integrityBody);
+    }
+
+    @Benchmark
+    public int integrityCheck() {
+        return authenticated.integrityCheck(key);
+    }
+
+    @Benchmark
+    public int integrityCheckWithPassword() {
+        return authenticated.integrityCheck(password);
+    }
+
+    @Benchmark
+    public int viewIntegrityCheck() {
+        view.wrap(authenticatedBuffer);
+        return view.integrityCheck(key);
+    }
+}
@@ -51,6 +51,7 @@ public class DiscoveryInfo {
     private boolean nodeNatted = false;
     private int errorCode = 0;
     private String errorMessage = null;
+    private long discoveryTime = -1;
 
     public void setScenario(final ConnectionScenario arg0) {scenario = arg0;}
     public ConnectionScenario getScenarioState() {return scenario;}
@@ -101,6 +102,12 @@ public class DiscoveryInfo {
     public int getErrorCode() {return errorCode;}
     public String getErrorMessage() {return errorMessage;}
 
+    public void setDiscoveryTime(final long arg0) {discoveryTime = arg0;}
+    /**
+     * @return the time in milliseconds the discovery took, or -1 if not measured.
+     */
+    public long getDiscoveryTime() {return discoveryTime;}
+
     @Override
     public String toString() {
         return toString(false);
@@ -0,0 +1,158 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A HMAC-SHA1 key as used for the MESSAGE-INTEGRITY attribute. The padded
+ * key XOR ipad and XOR opad blocks are hashed once when the key is created,
+ * into an inner and an outer digest, and calculating a HMAC starts from
+ * clones of them, so only the text and the inner digest are hashed. The key
+ * is immutable and may be shared between threads.
+ *
+ * @author Henrik Baastrup
+ */
+public class HmacKey {
+    /** Length of a HMAC-SHA1. */
+    public static final int LENGTH = 20;
+
+    private static final int BLOCK_SIZE = 64;
+
+    private final MessageDigest inner;
+    private final MessageDigest outer;
+
+    /**
+     * @param key the shared secret password.
+     */
+    public HmacKey(byte key[]) {
+        inner = newDigest();
+        outer = newDigest();
+        byte key0[] = new byte[BLOCK_SIZE];
+        if (key.length > BLOCK_SIZE) {
+            System.arraycopy(inner.digest(key), 0, key0, 0, LENGTH);
+        }
+        else {
+            System.arraycopy(key, 0, key0, 0, key.length);
+        }
+
+        for (int i=0; i<key0.length; i++) inner.update((byte)(key0[i] ^ 0x36));
+        for (int i=0; i<key0.length; i++) outer.update((byte)(key0[i] ^ 0x5c));
+    }
+
+    /**
+     * @param text
+     * @return a new array with the HMAC of the text.
+     */
+    public byte[] hmac(byte text[]) {
+        MessageDigest md = copy(inner);
+        md.update(text);
+        return outer(md);
+    }
+
+    /**
+     * Calculate the HMAC of a part of a buffer and put it in another (or the same) buffer.
+     * @param text buffer holding the text.
+     * @param offset index of the first byte of the text.
+     * @param length number of bytes in the text.
+     * @param dst the {@value #LENGTH} bytes HMAC is put at the position of this buffer.
+     */
+    public void sign(ByteBuffer text, int offset, int length, ByteBuffer dst) {
+        MessageDigest md = copy(inner);
+        update(md, text, offset, length);
+        dst.put(outer(md));
+    }
+
+    /**
+     * Calculate the HMAC of a part of a buffer and compare it with a received HMAC.
+     * @param text buffer holding the text.
+     * @param offset index of the first byte of the text.
+     * @param length number of bytes in the text.
+     * @param mac buffer holding the received HMAC.
+     * @param macOffset index of the first byte of the received HMAC.
+     * @return true if the HMACs are equal.
+     */
+    public boolean verify(ByteBuffer text, int offset, int length, ByteBuffer mac, int macOffset) {
+        MessageDigest md = copy(inner);
+        update(md, text, offset, length);
+        return compare(outer(md), mac, macOffset);
+    }
+
+    /**
+     * Check the MESSAGE-INTEGRITY of a STUN message as if it had another
+     * message type, e.g. a SHARED-SECRET-VERIFY-REQUEST carrying a Binding Request.
+     * @param type the message type used instead of the first two bytes of the message.
+     * @param message buffer holding the message.
+     * @param offset index of the first byte of the message.
+     * @param length number of bytes before the MESSAGE-INTEGRITY attribute.
+     * @param mac buffer holding the received HMAC.
+     * @param macOffset index of the first byte of the received HMAC.
+     * @return true if the HMACs are equal.
+     */
+    public boolean verify(int type, ByteBuffer message, int offset, int length, ByteBuffer mac, int macOffset) {
+        MessageDigest md = copy(inner);
+        md.update((byte)(type >> 8));
+        md.update((byte)type);
+        update(md, message, offset+2, length-2);
+        return compare(outer(md), mac, macOffset);
+    }
+
+    private static boolean compare(byte calculated[], ByteBuffer mac, int macOffset) {
+        int diff = 0;
+        for (int i=0; i<LENGTH; i++) diff |= calculated[i] ^ mac.get(macOffset+i);
+        return diff==0;
+    }
+
+    private byte[] outer(MessageDigest md) {
+        byte digest[] = md.digest();
+        md = copy(outer);
+        md.update(digest);
+        return md.digest();
+    }
+
+    /**
+     * Hash a part of a buffer, leaving its position and limit as they were.
+     */
+    private static void update(MessageDigest md, ByteBuffer buffer, int offset, int length) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(offset+length);
+        buffer.position(offset);
+        md.update(buffer);
+        buffer.limit(limit);
+        buffer.position(position);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest md) {
+        try {
+            return (MessageDigest)md.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -21,10 +21,18 @@ package javax.net.stun;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
 import javax.net.stun.services.BindingService;
+import javax.net.stun.services.LoadGenerator;
+import javax.net.stun.services.MetricsHttpServer;
+import javax.net.stun.services.PacketCapture;
 import javax.net.stun.services.SharedSecretService;
+import javax.net.stun.services.Tracer;
 
 /**
  *
@@ -36,28 +44,64 @@ public class Main {
     enum RunMode {
         CLIENT,
         SERVER,
-        FORWARDER
+        FORWARDER,
+        LOAD
     }
 
     private static void help() {
         System.out.println("java -jar stun.jar [options]");
         System.out.println("Options:");
-        System.out.println("  -S: run as STUN server.");
+        System.out.println("  -S: run as STUN server. The services are registered as MBeans (javax.net.stun)");
+        System.out.println("      and can be monitored and tuned with a JMX client, e.g. jconsole.");
+        System.out.println("  -L: run a load test against a STUN server started on the services address.");
         System.out.println("  -server host: set the STUN server to query (default stun.l.google.com).");
         System.out.println("  -port number: set the port for the STUN serve (default 19302).");
         System.out.println("  -remoteserver host: set the remote Shared Secret server address.");
         System.out.println("  -remoteport number: set the port for used by the Shared Secret serve (default 3478).");
         System.out.println("  -dns ip: use DNS descovery. The server argument contains the domain.");
+        System.out.println("  -concurrency number: servers found by DNS descovery probed at a time, or sockets");
+        System.out.println("                     sending requests in a load test (default 8).");
+        System.out.println("  -rate number: requests per second sent in a load test (default 10000).");
+        System.out.println("  -duration seconds: time requests are sent in a load test (default 10).");
+        System.out.println("  -change percent: requests with a CHANGE-REQUEST in a load test (default 0).");
+        System.out.println("  -auth percent: authenticated requests in a load test (default 0). If above 0 the");
+        System.out.println("               server requires authentication, the other requests get errors.");
         System.out.println("  -serveraddr host: set the services address (default localhost)");
         System.out.println("  -keystore file: path to key-store. If used the client will request a");
         System.out.println("                  Shared Secret. In server mode the Shared Secre service");
         System.out.println("                  is activated.");
         System.out.println("  -keystorepw password: password for key-store.");
+        System.out.println("  -credentialttl seconds: time a Shared Secret is valid (default 600).");
         System.out.println("  -alternateaddr IP address: will start a server using the given IP address.");
         System.out.println("  -alternateport port: port to use with the alternate address.");
+        System.out.println("  -engine socket|nio: receive engine used by the Binding service (default socket).");
+        System.out.println("  -workers number: worker threads used by the nio engine (default number of cores).");
+        System.out.println("  -batch number: datagrams received per batch by the nio engine (default 1).");
+        System.out.println("  -metricsport number: in server mode serve the metrics of the services on");
+        System.out.println("                     http://host:port/metrics for Prometheus (default off).");
+        System.out.println("  -tracesample number: in server mode trace 1 of every number requests to the log.");
+        System.out.println("  -traceclients list: in server mode trace only the requests from the comma");
+        System.out.println("                      separated client addresses. Tracing is turned on by");
+        System.out.println("                      either of the trace options or by -debug (all requests).");
+        System.out.println("  -capture number: in server mode keep the last number datagrams received and");
+        System.out.println("                 sent by the Binding service. They are written to a file in");
+        System.out.println("                 pcap format with the dumpPacketCapture JMX operation.");
         System.out.println("  -debug: turn debug information on.");
     }
 
+    /**
+     * Turn tracing on if a sample rate or clients to trace are given.
+     * @param tracer
+     * @param sampleRate 1 of how many requests is traced, 0 if not given.
+     * @param clients comma separated client addresses, null if not given.
+     * @throws IOException if a client address is unknown.
+     */
+    private static void configureTracer(Tracer tracer, int sampleRate, String clients) throws IOException {
+        if (sampleRate>0) tracer.setSampleRate(sampleRate);
+        if (clients!=null) tracer.setClients(clients);
+        if (sampleRate>0 || clients!=null) tracer.setEnabled(true);
+    }
+
     /**
      * @param args the command line arguments
      */
@@ -71,12 +115,25 @@ public class Main {
         String remoteServerAddr = null;
         int remoteServerPort = DEFAULT_STUN_PORT;
         String dnsServer = null;
+        int concurrency = 8;
+        int rate = 10000;
+        int duration = 10;
+        int changePercent = 0;
+        int authPercent = 0;
         File keyStoreFile = null;
         String keyStorePassword = "henrikkp";
         String alternateAddr = null;
         String serverAddr = "localhost";
         int alternatePort = 0;
         RunMode runAs = RunMode.CLIENT;
+        BindingService.Engine engine = BindingService.Engine.SOCKET;
+        int workerThreads = 0;
+        int batchSize = 1;
+        int metricsPort = 0;
+        int traceSampleRate = 0;
+        int capturePackets = 0;
+        String traceClients = null;
+        long credentialTtl = SharedSecretService.DEFAULT_CREDENTIAL_TTL;
         boolean debug = false;
 
         for (int i=0; i<args.length; i++) {
@@ -86,6 +143,7 @@ public class Main {
             }
             else if ("-S".equals(args[i])) runAs = RunMode.SERVER;
             else if ("-F".equals(args[i])) runAs = RunMode.FORWARDER;
+            else if ("-L".equals(args[i])) runAs = RunMode.LOAD;
             else if ("-server".equals(args[i])) {
                 i++;
                 stunAddr = args[i];
@@ -118,6 +176,26 @@ public class Main {
                 i++;
                 dnsServer = args[i];
             }
+            else if ("-concurrency".equals(args[i])) {
+                i++;
+                concurrency = Integer.parseInt(args[i]);
+            }
+            else if ("-rate".equals(args[i])) {
+                i++;
+                rate = Integer.parseInt(args[i]);
+            }
+            else if ("-duration".equals(args[i])) {
+                i++;
+                duration = Integer.parseInt(args[i]);
+            }
+            else if ("-change".equals(args[i])) {
+                i++;
+                changePercent = Integer.parseInt(args[i]);
+            }
+            else if ("-auth".equals(args[i])) {
+                i++;
+                authPercent = Integer.parseInt(args[i]);
+            }
             else if ("-keystore".equals(args[i])) {
                 i++;
                 keyStoreFile = new File(args[i]);
@@ -126,6 +204,38 @@ public class Main {
                 i++;
                 keyStorePassword = args[i];
             }
+            else if ("-credentialttl".equals(args[i])) {
+                i++;
+                credentialTtl = Long.parseLong(args[i])*1000;
+            }
+            else if ("-engine".equals(args[i])) {
+                i++;
+                engine = BindingService.Engine.valueOf(args[i].toUpperCase());
+            }
+            else if ("-workers".equals(args[i])) {
+                i++;
+                workerThreads = Integer.parseInt(args[i]);
+            }
+            else if ("-batch".equals(args[i])) {
+                i++;
+                batchSize = Integer.parseInt(args[i]);
+            }
+            else if ("-metricsport".equals(args[i])) {
+                i++;
+                metricsPort = Integer.parseInt(args[i]);
+            }
+            else if ("-tracesample".equals(args[i])) {
+                i++;
+                traceSampleRate = Integer.parseInt(args[i]);
+            }
+            else if ("-traceclients".equals(args[i])) {
+                i++;
+                traceClients = args[i];
+            }
+            else if ("-capture".equals(args[i])) {
+                i++;
+                capturePackets = Integer.parseInt(args[i]);
+            }
             else if ("-debug".equals(args[i])) {
                 debug = true;
             }
@@ -142,9 +252,19 @@ public class Main {
             }
             else {
                 stunServers = new StunServerAddress[1];
-                stunServers[0] = new StunServerAddress();
-                stunServers[0].address = stunAddr;
-                stunServers[0].port = stunPort;
+                stunServers[0] = new StunServerAddress(stunAddr, stunPort);
+            }
+            if (keyStoreFile==null && stunServers.length>1) {
+                //No Shared Secret to request per server, so the servers can be probed at a time
+                StunClient client = new StunClient();
+                client.debug = debug;
+                Map<StunServerAddress, DiscoveryInfo> infos = client.bindingAll(Arrays.asList(stunServers), null, concurrency);
+                client.close();
+                for (Map.Entry<StunServerAddress, DiscoveryInfo> entry : infos.entrySet()) {
+                    System.out.println("Server "+entry.getKey()+" ("+entry.getValue().getDiscoveryTime()+"ms):");
+                    System.out.println(entry.getValue());
+                }
+                return;
             }
             for (int i=0; i<stunServers.length; i++) {
                 StunClient client = new StunClient(stunServers[i].address, stunServers[i].port);
@@ -168,6 +288,7 @@ public class Main {
                 }
                 
                 DiscoveryInfo info = client.binding(secret);
+                client.close();
                 System.out.println("Last test was: "+client.getBindingTestDoneAsString());
                 System.out.println(info);
             }
@@ -176,6 +297,7 @@ public class Main {
         	System.out.println("STUN server by Henrik Baastrup Copyrigth (C) 2010");
             BindingService bService = null;
             SharedSecretService ssService = null;
+            MetricsHttpServer metricsServer = null;
 
             try {
                 //InetAddress localhost = Utils.getLocalAddress();
@@ -186,12 +308,15 @@ public class Main {
                     ssService = new SharedSecretService(localhost, stunPort);
                     ssService.setDebug(debug);
                     ssService.setKeyStore(keyStoreFile, keyStorePassword.toCharArray(), keyStorePassword.toCharArray());
+                    ssService.setCredentialTtl(credentialTtl);
+                    configureTracer(ssService.getTracer(), traceSampleRate, traceClients);
                     ssService.start();
                 }
 
                 //If we are behind a NAT firewall we have to find our own public address first
                 StunClient client = new StunClient(stunAddr, stunPort);
                 DiscoveryInfo info = client.bindForRemoteAddressOnly(null);
+                client.close();
                 if (info.getErrorCode()!=0) {
                     System.out.println(info);
                     return;
@@ -213,6 +338,11 @@ public class Main {
                 else
                     bService = new BindingService(localhost, stunPort, alternateAddress, alternatePort, ssService);
                 bService.setDebug(debug);
+                configureTracer(bService.getTracer(), traceSampleRate, traceClients);
+                bService.setEngine(engine);
+                if (workerThreads>0) bService.setWorkerThreads(workerThreads);
+                bService.setBatchSize(batchSize);
+                if (capturePackets>0) bService.setPacketCapture(new PacketCapture(capturePackets, PacketCapture.DEFAULT_SNAP_LENGTH));
                 if (remoteAddr!=null) bService.setPublicAddress(remoteAddr);
                 bService.start();
 
@@ -224,6 +354,18 @@ public class Main {
                     if (ssService!=null) proceedOk = proceedOk && ssService.isRunning();
                 }
 
+                //Make the statistics and tunables available to JMX clients, e.g. jconsole
+                try {
+                    bService.registerMBean();
+                    if (ssService!=null) ssService.registerMBean();
+                } catch (JMException ex) {
+                    Logger.getLogger(Main.class.getName()).log(Level.WARNING, "The services could not be registered with the MBean server", ex);
+                }
+                if (metricsPort>0) {
+                    metricsServer = new MetricsHttpServer(new InetSocketAddress(metricsPort), bService.getMetrics(), ssService==null ? null : ssService.getMetrics());
+                    metricsServer.start();
+                }
+
                 //Wait for ever
                 proceedOk = true;
                 while (proceedOk) {
@@ -236,7 +378,59 @@ public class Main {
                 Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
             } catch (InterruptedException ex) {
             } finally {
-                if (ssService!=null) ssService.stop();
+                if (metricsServer!=null) metricsServer.stop();
+                if (ssService!=null) {
+                    ssService.unregisterMBean();
+                    ssService.stop();
+                }
+                if (bService!=null) {
+                    bService.unregisterMBean();
+                    bService.stop();
+                }
+            }
+        }
+        else if (runAs==RunMode.LOAD) {
+        	System.out.println("STUN load test by Henrik Baastrup Copyrigth (C) 2010");
+            BindingService bService = null;
+            try {
+                InetAddress localhost = InetAddress.getByName(serverAddr);
+                //The CHANGE-REQUESTs are answered from the alternate address, by default the second loopback address
+                InetAddress alternateAddress = InetAddress.getByName(alternateAddr!=null ? alternateAddr : "127.0.0.2");
+                if (alternatePort==0) alternatePort = stunPort+1;
+
+                //The authenticated requests use a credential handed out in-process, no TLS is needed.
+                //A server with a Shared Secret service answers the unauthenticated requests with an error.
+                SharedSecretService ssService = new SharedSecretService(localhost, stunPort);
+                ssService.setCredentialTtl(credentialTtl + duration*1000L);
+                bService = new BindingService(localhost, stunPort, alternateAddress, alternatePort, authPercent>0 ? ssService : null);
+                bService.setDebug(debug);
+                bService.setEngine(engine);
+                if (workerThreads>0) bService.setWorkerThreads(workerThreads);
+                bService.setBatchSize(batchSize);
+                bService.start();
+                int count = 0;
+                while (!bService.isRunning()) {
+                    Thread.sleep(100);
+                    count++;
+                    if (count>100) {
+                        System.out.println("ERROR: The STUN server did not start");
+                        return;
+                    }
+                }
+
+                LoadGenerator generator = new LoadGenerator(localhost, stunPort);
+                generator.setRate(rate);
+                generator.setConcurrency(concurrency);
+                generator.setDuration(duration*1000L);
+                generator.setChangeRequestPercent(changePercent);
+                generator.setAuthenticatedPercent(authPercent);
+                generator.setCredential(ssService.createUser());
+                System.out.println("Sending "+rate+" requests/s for "+duration+"s from "+concurrency+" sockets to "+localhost.getHostAddress()+":"+stunPort+" ("+engine+" engine)");
+                System.out.println(generator.run());
+            } catch (IOException ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+            } catch (InterruptedException ex) {
+            } finally {
                 if (bService!=null) bService.stop();
             }
         }
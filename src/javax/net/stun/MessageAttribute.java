@@ -38,7 +38,8 @@ public class MessageAttribute {
         MESSAGE_INTEGRITY,
         ERROR_CODE,
         UNKNOWN_ATTRIBUTES,
-        REFLECTED_FROM
+        REFLECTED_FROM,
+        LIFETIME
     };
 
     public static final int MAPPED_ADDRESS = 0x0001;
@@ -52,6 +53,11 @@ public class MessageAttribute {
     public static final int ERROR_CODE = 0x0009;
     public static final int UNKNOWN_ATTRIBUTES = 0x000a;
     public static final int REFLECTED_FROM = 0x000b;
+    /**
+     * Remaining lifetime in seconds of a credential, sent in the answer to a Shared Secret verify request.
+     * The type is in the optional range (0x8000-0xffff), so a client that does not know it ignores it.
+     */
+    public static final int LIFETIME = 0x8101;
 
 
     private MessageAttributeType type = MessageAttributeType.UNKNOWN_ATTRIBUTES;
@@ -228,6 +234,9 @@ public class MessageAttribute {
             case REFLECTED_FROM:
                 type = MessageAttributeType.REFLECTED_FROM;
                 break;
+            case LIFETIME:
+                type = MessageAttributeType.LIFETIME;
+                break;
         }
     }
 
@@ -244,6 +253,7 @@ public class MessageAttribute {
             case ERROR_CODE: return ERROR_CODE;
             case UNKNOWN_ATTRIBUTES: return UNKNOWN_ATTRIBUTES;
             case REFLECTED_FROM: return REFLECTED_FROM;
+            case LIFETIME: return LIFETIME;
         }
         return 0;
     }
@@ -263,6 +273,16 @@ public class MessageAttribute {
         return retBytes;
     }
     
+    /**
+     * @return the lifetime in seconds of a LIFETIME attribute, else -1.
+     */
+    public long getLifetime() {
+        if (type!=MessageAttributeType.LIFETIME || value.length<4) return -1;
+        long lifetime = 0;
+        for (int i=0; i<4; i++) lifetime = (lifetime << 8) | (value[i] & 0xff);
+        return lifetime;
+    }
+
     public int getErrorCode() {
     	if (type!=MessageAttributeType.ERROR_CODE) return 0;
     	if (value.length < 4) return 0;
@@ -288,6 +308,14 @@ public class MessageAttribute {
                 value[3] = (byte)(arg0 & 0x06);
                 break;
 
+            case LIFETIME:
+                value = new byte[4];
+                value[0] = (byte)((arg0 >> 24) & 0xff);
+                value[1] = (byte)((arg0 >> 16) & 0xff);
+                value[2] = (byte)((arg0 >> 8) & 0xff);
+                value[3] = (byte)(arg0 & 0xff);
+                break;
+
             default:
                 return null;
         }
@@ -375,6 +403,8 @@ public class MessageAttribute {
 	    		return Utils.byteToString((byte)(value[3] & 0x06));
 	    	case UNKNOWN_ATTRIBUTES:
 	    		return Utils.bytesToString(value);
+	    	case LIFETIME:
+	    		return String.valueOf(getLifetime());
 	    	case MESSAGE_INTEGRITY:
     		default:
     			return "";
@@ -18,6 +18,7 @@
 package javax.net.stun;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -250,6 +251,15 @@ public class MessageHeader {
     }
 
     public int integrityCheck(byte password[]) {
+        return integrityCheck(new HmacKey(password));
+    }
+
+    /**
+     * Check the MESSAGE-INTEGRITY attribute of the message.
+     * @param key the HMAC key of the shared secret password.
+     * @return 0 if the check succeed, else the error code.
+     */
+    public int integrityCheck(HmacKey key) {
         MessageAttribute messageIntegrity = getMessageAttribute(MessageAttribute.MessageAttributeType.MESSAGE_INTEGRITY);
         if (messageIntegrity==null) return 401;
 
@@ -267,12 +277,10 @@ public class MessageHeader {
         }
 
         byte recievedHmac[] = messageIntegrity.toBytes();
+        if (recievedHmac.length != HmacKey.LENGTH+4) return 431;
         //To calculate hmac we need the whole message except the MESSAGE-INTEGRITY attribute
-        byte hmacHeaderPart[] = new byte[headerBytes.length-recievedHmac.length];
-        for (int i=0; i<hmacHeaderPart.length; i++) hmacHeaderPart[i] = headerBytes[i];
-        byte hmacCalc[] = Utils.hmac(password, hmacHeaderPart);
-        if (hmacCalc.length+4 != recievedHmac.length) return 431;
-        for (int i=0; i<hmacCalc.length; i++) if (hmacCalc[i]!=recievedHmac[i+4]) return 431;
+        ByteBuffer text = ByteBuffer.wrap(headerBytes);
+        if (!key.verify(text, 0, headerBytes.length-recievedHmac.length, ByteBuffer.wrap(recievedHmac), 4)) return 431;
         return 0;
     }
 
@@ -0,0 +1,185 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A TLS connection to a Shared Secret server used for any number of
+ * request/response exchanges (Shared Secret Request or Shared Secret Verify
+ * Request). The connection is opened on the first exchange and kept open
+ * until {@link #close()} is called or the server closes it. A new connection
+ * is created with the same {@link SSLSocketFactory}, and so with the same TLS
+ * session cache, which lets the new handshake resume the session of the
+ * previous connection instead of doing a full handshake.<br>
+ * The exchanges are serialized, one request is sent and its answer read
+ * before the next request is sent.
+ *
+ * @author Henrik Baastrup
+ */
+public class SharedSecretConnection {
+    private final InetAddress address;
+    private final String host;
+    private final int port;
+    private SSLSocketFactory socketFactory = null;
+    private int timeout = 5000;
+
+    private SSLSocket socket = null;
+    private InputStream in = null;
+    private OutputStream out = null;
+    private int exchanges = 0;
+    private int connects = 0;
+
+    /**
+     * @param address of the Shared Secret server.
+     * @param port
+     */
+    public SharedSecretConnection(InetAddress address, int port) {
+        this.address = address;
+        this.host = null;
+        this.port = port;
+    }
+
+    /**
+     * @param host name or address of the Shared Secret server.
+     * @param port
+     */
+    public SharedSecretConnection(String host, int port) {
+        this.address = null;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Set the factory used to create the TLS sockets, the default is {@link SSLSocketFactory#getDefault()}.
+     * @param arg0
+     */
+    public synchronized void setSocketFactory(SSLSocketFactory arg0) {socketFactory = arg0;}
+
+    /**
+     * Set the time to wait for the TLS handshake and for an answer.
+     * @param arg0 timeout in milliseconds (default 5000), 0 waits forever.
+     */
+    public synchronized void setTimeout(int arg0) {timeout = arg0;}
+    public synchronized int getTimeout() {return timeout;}
+
+    /**
+     * @return true if the TLS connection is open.
+     */
+    public synchronized boolean isConnected() {return socket!=null;}
+
+    /**
+     * @return the TLS session of the open connection or null if not connected.
+     */
+    public synchronized SSLSession getSession() {
+        if (socket==null) return null;
+        return socket.getSession();
+    }
+
+    /**
+     * @return number of exchanges done over the open connection.
+     */
+    public synchronized int getExchanges() {return exchanges;}
+
+    /**
+     * @return number of TLS connections opened.
+     */
+    public synchronized int getConnects() {return connects;}
+
+    /**
+     * Send a request and read the answer. If the request fails on a connection
+     * that has already been used, e.g. because the server has closed it while
+     * it was idle, it is retried once on a new connection.
+     * @param request
+     * @return the answer.
+     * @throws IOException if the request could not be sent or no answer
+     * with the transaction id of the request was received.
+     */
+    public synchronized MessageHeader exchange(MessageHeader request) throws IOException {
+        byte message[] = request.toBytes();
+        boolean reused = socket!=null;
+        try {
+            return send(message);
+        } catch (IOException ex) {
+            close();
+            if (!reused) throw ex;
+        }
+        return send(message);
+    }
+
+    private MessageHeader send(byte message[]) throws IOException {
+        if (socket==null) connect();
+        out.write(message);
+        out.flush();
+        byte answer[] = Utils.readMessage(in);
+        if (answer==null) throw new EOFException("The Shared Secret server closed the connection");
+        for (int i=4; i<20; i++) {
+            if (answer[i]!=message[i]) {
+                //We can not know what comes next on this connection
+                close();
+                throw new IOException("The answer from the Shared Secret server has a wrong transaction id");
+            }
+        }
+        exchanges++;
+        return MessageHeader.create(answer);
+    }
+
+    private void connect() throws IOException {
+        SSLSocketFactory factory = socketFactory;
+        if (factory==null) factory = (SSLSocketFactory)SSLSocketFactory.getDefault();
+        SSLSocket sslSocket;
+        if (address!=null) sslSocket = (SSLSocket)factory.createSocket(address, port);
+        else sslSocket = (SSLSocket)factory.createSocket(host, port);
+        try {
+            sslSocket.setSoTimeout(timeout);
+            sslSocket.setTcpNoDelay(true);
+            sslSocket.startHandshake();
+            in = sslSocket.getInputStream();
+            out = sslSocket.getOutputStream();
+        } catch (IOException ex) {
+            try{sslSocket.close();}catch(IOException ignore){}
+            throw ex;
+        }
+        socket = sslSocket;
+        exchanges = 0;
+        connects++;
+    }
+
+    /**
+     * Close the TLS connection, the next exchange opens a new one.
+     */
+    public synchronized void close() {
+        if (socket==null) return;
+        try{socket.close();}catch(IOException ignore){}
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedSecretConnection to "+(address!=null ? address.getHostAddress() : host)+":"+port;
+    }
+}
@@ -24,24 +24,40 @@ import javax.net.stun.dns.DNSResolver;
 import javax.net.stun.dns.DResource;
 import javax.net.stun.dns.DResourceComparator;
 import javax.net.stun.dns.DType;
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 /**
- * This class implement a STUN client as described in RFC 3489.
+ * This class implement a STUN client as described in RFC 3489.<br>
+ * The Binding Requests are sent from a socket read by a receiver thread and
+ * retransmitted by a timer thread (see {@link StunTransport}). They are
+ * opened by the first request and closed when no request has been
+ * outstanding for the idle timeout of the transport, and a Shared Secret
+ * Request keeps a TLS connection open. Call {@link #close()} when done with
+ * the client to release them at once.
  *
  * @author Henrik Baastrup
  */
-public class StunClient {
+public class StunClient implements Closeable {
     /**
      * Values to describe the test passed under the {@link StunClient#binding} method
      */
@@ -63,8 +79,15 @@ public class StunClient {
     private MessageAttribute changedAddress = null;
 
     private DoneBindingTest bindingTestDone = DoneBindingTest.NO_TEST;
+    private boolean fastDiscovery = false;
+
+    /** All the Binding Requests are sent from the socket of this transport. */
+    private final StunTransport transport = new StunTransport();
+    /** Kept open between Shared Secret Requests. */
+    private SharedSecretConnection sharedSecretConnection = null;
 
     protected boolean debug = false;
+    private static final AtomicInteger discoveryCount = new AtomicInteger();
     protected static boolean staticDebug = false;
 
     /**
@@ -121,14 +144,15 @@ public class StunClient {
         
         StunServerAddress retAddresses[] = new StunServerAddress[answers.length];
         for (int i=0; i<answers.length; i++) {
-            StunServerAddress sAddr = new StunServerAddress();
+            StunServerAddress sAddr;
             if (answers[i].getDType()==DType.SRV) {
-                sAddr.address = answers[i].getTarget();
-                sAddr.port = answers[i].getPort();
+                sAddr = new StunServerAddress(answers[i].getTarget(), answers[i].getPort());
             }
             else if (answers[i].getDType()==DType.A) {
-                sAddr.address = answers[i].getIpAddress();
-                sAddr.port = 3478;
+                sAddr = new StunServerAddress(answers[i].getIpAddress(), 3478);
+            }
+            else {
+                sAddr = new StunServerAddress();
             }
             retAddresses[i] = sAddr;
         }
@@ -140,7 +164,6 @@ public class StunClient {
      * @return {@link SharedSecret} if the process succeed else null.
      */
     public SharedSecret requestSharedSecret() {
-        SSLSocket sslSocket = null;
         MessageHeader header = null;
         SharedSecret sharedSecret = null;
 
@@ -156,21 +179,13 @@ public class StunClient {
         	System.setProperty("javax.net.debug", "all");
 
         try {
-            SSLSocketFactory sslFactory = (SSLSocketFactory)SSLSocketFactory.getDefault();
-            sslSocket = (SSLSocket)sslFactory.createSocket(serverAddress, serverPort);
-            //sslSocket = (SSLSocket)sslFactory.createSocket(sock, serverAddress, serverPort, true);
-            sslSocket.startHandshake();
-
-            //Read the header
             header = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_REQUEST);
             header.genrateTransactionId();
-            header = Utils.socketSendRecive(sslSocket, header);
+            header = getSharedSecretConnection().exchange(header);
         } catch (IOException ex) {
             if (debug)  Logger.getLogger(StunClient.class.getName()).log(Level.SEVERE, null, ex);
             sharedSecret = new SharedSecret(700, ex.getMessage());
             return sharedSecret;
-        } finally {
-            if (sslSocket!=null) try{sslSocket.close();} catch (IOException ignore){}
         }
 
         MessageAttribute errorCode = header.getMessageAttribute(MessageAttribute.MessageAttributeType.ERROR_CODE);
@@ -179,7 +194,7 @@ public class StunClient {
         if (errorCode!=null) {
             sharedSecret = new SharedSecret(errorCode);
         }
-        if (usernameAttr==null || passwordAttr==null) {
+        else if (usernameAttr==null || passwordAttr==null) {
             sharedSecret = new SharedSecret(700, "The server is sending an incomplete response (Username and Password message attributes are missing). The client should not retry.");
         }
         else {
@@ -189,19 +204,61 @@ public class StunClient {
         return sharedSecret;
     }
 
+    private synchronized SharedSecretConnection getSharedSecretConnection() {
+        if (sharedSecretConnection==null) sharedSecretConnection = new SharedSecretConnection(serverAddress, serverPort);
+        return sharedSecretConnection;
+    }
+
+    /**
+     * Close the TLS connection kept open to the Shared Secret server since the
+     * last call to {@link #requestSharedSecret()}, and the socket the Binding
+     * Requests are sent from. The client may still be used, the next request
+     * opens a new connection (resuming the TLS session if the server allows it)
+     * and a new socket (on another local port).
+     */
+    @Override
+    public synchronized void close() {
+        if (sharedSecretConnection!=null) sharedSecretConnection.close();
+        sharedSecretConnection = null;
+        transport.close();
+    }
+
+    /**
+     * @return the transport the Binding Requests are sent with.
+     */
+    public StunTransport getTransport() {return transport;}
+
     /**
      * Set the STUN server address property.
      *
      * @param arg0 server address
      */
-    public void setServerAddress(String arg0) {serverAddress = arg0;}
+    public void setServerAddress(String arg0) {
+        close();
+        serverAddress = arg0;
+    }
 
     /**
      * Set the STUN server port property.
      *
      * @param arg0 port (default value = 3478).
      */
-    public void setServerPort(int arg0) {serverPort = arg0;}
+    public void setServerPort(int arg0) {
+        close();
+        serverPort = arg0;
+    }
+
+    /**
+     * Set the local address the Binding Requests are sent from, e.g. to probe
+     * the NAT of a given interface.
+     *
+     * @param arg0 local address, null for any address (default).
+     */
+    public void setLocalAddress(InetAddress arg0) {
+        close();
+        transport.setLocalAddress(arg0);
+    }
+    public InetAddress getLocalAddress() {return transport.getLocalAddress();}
 
     /**
      * Do the binding process as described in RFC 3489:
@@ -254,18 +311,147 @@ NAT     <--- / IP \<-----|  Test  |<--- /Resp\                Open
      * @return {@link DiscoveryInfo} containing the informations from the STUN server found by the process
      */
     public DiscoveryInfo binding(SharedSecret sharedSecret) {
-        DiscoveryInfo discoveryInfo = new DiscoveryInfo();
-        if (test1(discoveryInfo, sharedSecret, true)) {
-            if (test2(discoveryInfo, sharedSecret)) {
-                if (test1(discoveryInfo, sharedSecret, false)) {
-                    test3(discoveryInfo, sharedSecret);
+        long start = System.currentTimeMillis();
+        DiscoveryInfo discoveryInfo;
+        if (fastDiscovery) {
+            discoveryInfo = fastBinding(sharedSecret);
+        }
+        else {
+            discoveryInfo = new DiscoveryInfo();
+            if (test1(discoveryInfo, sharedSecret, true)) {
+                if (test2(discoveryInfo, sharedSecret)) {
+                    if (test1(discoveryInfo, sharedSecret, false)) {
+                        test3(discoveryInfo, sharedSecret);
+                    }
                 }
             }
         }
 
+        discoveryInfo.setDiscoveryTime(System.currentTimeMillis()-start);
         return discoveryInfo;
     }
 
+    /**
+     * Do the binding process against many STUN servers at a time, e.g. to
+     * probe a fleet of servers. Each server is probed by its own client, from
+     * its own local socket, with the settings of this client (fast discovery,
+     * local address, retransmission settings and debug).
+     *
+     * @param servers the STUN servers to probe, a server given twice is probed once.
+     * @param sharedSecret used with all the servers, or null.
+     * @param maxConcurrent max number of discoveries running at a time.
+     * @return the {@link DiscoveryInfo} of each server, in the order of the
+     * servers. The time each discovery took is found in {@link DiscoveryInfo#getDiscoveryTime()}.
+     */
+    public Map<StunServerAddress, DiscoveryInfo> bindingAll(Collection<StunServerAddress> servers, SharedSecret sharedSecret, int maxConcurrent) {
+        InetAddress localAddress = transport.getLocalAddress();
+        return bindingAll(Collections.singletonList(localAddress), servers, sharedSecret, maxConcurrent).get(localAddress);
+    }
+
+    /**
+     * Do the binding process against many STUN servers from each of many
+     * local addresses, e.g. to find the mapping of every interface of a
+     * multihomed host. Each pair of local address and server is probed as
+     * by {@link #bindingAll(Collection, SharedSecret, int)}, by its own client
+     * bound to the local address.
+     *
+     * @param localAddresses the local addresses to probe from, null for the wildcard address.
+     * A local address given twice is probed from once.
+     * @param servers the STUN servers to probe, a server given twice is probed once.
+     * @param sharedSecret used with all the servers, or null.
+     * @param maxConcurrent max number of discoveries running at a time.
+     * @return for each local address, the {@link DiscoveryInfo} of each server,
+     * in the order of the local addresses and the servers.
+     */
+    public Map<InetAddress, Map<StunServerAddress, DiscoveryInfo>> bindingAll(Collection<InetAddress> localAddresses, Collection<StunServerAddress> servers, final SharedSecret sharedSecret, int maxConcurrent) {
+        LinkedHashMap<InetAddress, Map<StunServerAddress, DiscoveryInfo>> results = new LinkedHashMap<InetAddress, Map<StunServerAddress, DiscoveryInfo>>();
+        for (InetAddress localAddress : localAddresses) results.put(localAddress, new LinkedHashMap<StunServerAddress, DiscoveryInfo>());
+        if (servers.isEmpty()) return results;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxConcurrent, results.size()*servers.size())), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "STUN Discovery-"+discoveryCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            LinkedHashMap<InetAddress, LinkedHashMap<StunServerAddress, Future<DiscoveryInfo>>> futures = new LinkedHashMap<InetAddress, LinkedHashMap<StunServerAddress, Future<DiscoveryInfo>>>();
+            for (InetAddress localAddress : results.keySet()) {
+                LinkedHashMap<StunServerAddress, Future<DiscoveryInfo>> serverFutures = new LinkedHashMap<StunServerAddress, Future<DiscoveryInfo>>();
+                futures.put(localAddress, serverFutures);
+                for (StunServerAddress server : servers) {
+                    if (serverFutures.containsKey(server)) continue;
+                    final StunClient client = createClient(localAddress, server);
+                    serverFutures.put(server, executor.submit(new Callable<DiscoveryInfo>() {
+                        public DiscoveryInfo call() {
+                            try {
+                                return client.binding(sharedSecret);
+                            } finally {
+                                client.close();
+                            }
+                        }
+                    }));
+                }
+            }
+            for (Map.Entry<InetAddress, LinkedHashMap<StunServerAddress, Future<DiscoveryInfo>>> local : futures.entrySet()) {
+                Map<StunServerAddress, DiscoveryInfo> serverResults = results.get(local.getKey());
+                for (Map.Entry<StunServerAddress, Future<DiscoveryInfo>> entry : local.getValue().entrySet()) {
+                    DiscoveryInfo discoveryInfo;
+                    try {
+                        discoveryInfo = entry.getValue().get();
+                    } catch (ExecutionException ex) {
+                        if (debug)  Logger.getLogger(StunClient.class.getName()).log(Level.SEVERE, null, ex.getCause());
+                        discoveryInfo = new DiscoveryInfo();
+                        discoveryInfo.setError(700, String.valueOf(ex.getCause()));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        discoveryInfo = new DiscoveryInfo();
+                        discoveryInfo.setError(700, "Interrupted");
+                    }
+                    serverResults.put(entry.getKey(), discoveryInfo);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /*
+     * A client for the server with the settings of this client, bound to the local address.
+     */
+    private StunClient createClient(InetAddress localAddress, StunServerAddress server) {
+        StunClient client = new StunClient(server.address, server.port);
+        client.debug = debug;
+        client.fastDiscovery = fastDiscovery;
+        StunTransport clientTransport = client.getTransport();
+        clientTransport.setLocalAddress(localAddress);
+        clientTransport.setInitialRto(transport.getInitialRto());
+        clientTransport.setMinRto(transport.getMinRto());
+        clientTransport.setMaxRto(transport.getMaxRto());
+        clientTransport.setMaxRetransmits(transport.getMaxRetransmits());
+        clientTransport.setTransactionTimeout(transport.getTransactionTimeout());
+        clientTransport.setIdleTimeout(transport.getIdleTimeout());
+        return client;
+    }
+
+    /**
+     * Select how {@link #binding} runs the tests. In fast discovery mode Test I,
+     * Test II and Test III are sent at the same time from one local socket.
+     * The second run of Test I goes to the alternate address Test II is
+     * answered from, so behind a NAT it is sent when Test II has timed out:
+     * sent earlier it would open the NAT to a late answer to Test II and a
+     * restricted NAT would be taken for a full cone NAT. The answers are
+     * matched to the tests by transaction id and
+     * the scenario is found as soon as the received answers allow it, so the
+     * discovery takes one round trip plus the timeout of the tests not
+     * answered (if the scenario depends on them), instead of the sum of all
+     * the tests.
+     * @param arg0 true for fast discovery (default false).
+     */
+    public void setFastDiscovery(boolean arg0) {fastDiscovery = arg0;}
+    public boolean isFastDiscovery() {return fastDiscovery;}
+
     /**
      * This method will only do the first test in the binding process, and is
      * useful if one only is interested in finding the remote address of the
@@ -370,8 +556,8 @@ NAT     <--- / IP \<-----|  Test  |<--- /Resp\                Open
             }
         }
         else {
-            //if (mappedAddress.getPort()!=mappedAddress2.getPort() || !mappedAddress.getAddress().equals(mappedAddress2.getAddress())) {
-            if (!mappedAddress.getAddress().equals(mappedAddress2.getAddress())) {
+            //All the tests are sent from the same socket, so a new mapping shows on the port as well
+            if (mappedAddress.getPort()!=mappedAddress2.getPort() || !mappedAddress.getAddress().equals(mappedAddress2.getAddress())) {
                     if (debug) System.out.println("Node is behind a symmetric NAT.");
                     discoveryInfo.setScenario(DiscoveryInfo.ConnectionScenario.SYMMETRIC_NAT);
                     return false;
@@ -491,6 +677,212 @@ NAT     <--- / IP \<-----|  Test  |<--- /Resp\                Open
         }
     }
 
+    /**
+     * A Binding Request of the fast discovery. All the tests are sent, and
+     * retransmitted, by the transport of the client.
+     */
+    private static class BindingTransaction {
+        final DoneBindingTest test;
+        final StunTransport.Transaction transaction;
+        MessageHeader response = null;
+        boolean timedOut = false;
+
+        BindingTransaction(DoneBindingTest test, StunTransport.Transaction transaction) {
+            this.test = test;
+            this.transaction = transaction;
+        }
+    }
+
+    /*
+     * The fast discovery, see setFastDiscovery().
+     */
+    private DiscoveryInfo fastBinding(SharedSecret sharedSecret) {
+        DiscoveryInfo discoveryInfo = new DiscoveryInfo();
+        LinkedBlockingQueue<StunTransport.Transaction> completions = new LinkedBlockingQueue<StunTransport.Transaction>();
+        BindingTransaction tests[] = new BindingTransaction[4];
+        try {
+            InetAddress server = InetAddress.getByName(serverAddress);
+            BindingTransaction test1 = new BindingTransaction(DoneBindingTest.TEST1_FIRST_RUN, transport.start(createBindingRequest(0, sharedSecret), server, serverPort, completions));
+            tests[0] = test1;
+            BindingTransaction test2 = new BindingTransaction(DoneBindingTest.TEST2, transport.start(createBindingRequest(0x06, sharedSecret), server, serverPort, completions));
+            tests[1] = test2;
+            BindingTransaction test3 = new BindingTransaction(DoneBindingTest.TEST3, transport.start(createBindingRequest(0x02, sharedSecret), server, serverPort, completions));
+            tests[2] = test3;
+            BindingTransaction test1b = null;
+            localAddresses = Utils.getLocalAddresses();
+            localPort = transport.getLocalPort();
+
+            while (!fastClassify(discoveryInfo, sharedSecret, test1, test2, test1b, test3)) {
+                boolean outstanding = false;
+                for (BindingTransaction test : tests) if (test!=null && test.response==null && !test.timedOut) outstanding = true;
+                if (!outstanding) break; //Nothing more to wait for
+                //Each transaction is handed back once, answered or timed out
+                StunTransport.Transaction completed = completions.poll(transport.getTransactionTimeout(), TimeUnit.MILLISECONDS);
+                if (!transport.isOpen()) {
+                    discoveryInfo.setError(700, "The client was closed");
+                    return discoveryInfo;
+                }
+                if (completed==null) continue;
+                for (BindingTransaction test : tests) {
+                    if (test==null || test.transaction!=completed) continue;
+                    if (completed.isTimedOut()) {
+                        test.timedOut = true;
+                        if (test==test2 && test1.response!=null && discoveryInfo.isNodeNated()) test1b = startTest1b(sharedSecret, completions);
+                        continue;
+                    }
+                    try {
+                        test.response = MessageHeader.create(completed.getResponse());
+                    } catch (IOException ex) {
+                        bindingTestDone = test.test;
+                        discoveryInfo.setError(700, "The server is sending a response that can not be decoded: "+ex.getMessage());
+                        return discoveryInfo;
+                    }
+                    if (debug)  Logger.getLogger(StunClient.class.getName()).log(Level.INFO, test.test.toString()+" received: "+test.response.toString());
+                    if (test==test1) {
+                        if (!fastTest1(discoveryInfo, sharedSecret, test.response)) return discoveryInfo;
+                        //Now we know where to send the second run of Test I
+                        if (test2.timedOut && discoveryInfo.isNodeNated()) test1b = startTest1b(sharedSecret, completions);
+                    }
+                    else if (!fastCheckResponse(discoveryInfo, sharedSecret, test)) {
+                        return discoveryInfo;
+                    }
+                }
+                tests[3] = test1b;
+            }
+        } catch (IOException ex) {
+            if (debug)  Logger.getLogger(StunClient.class.getName()).log(Level.SEVERE, null, ex);
+            discoveryInfo.setError(700, ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            discoveryInfo.setError(700, "Interrupted");
+        } finally {
+            for (BindingTransaction test : tests) if (test!=null) test.transaction.cancel();
+        }
+        return discoveryInfo;
+    }
+
+    /*
+     * Send the second run of Test I to the CHANGED-ADDRESS of the answer to Test I.
+     */
+    private BindingTransaction startTest1b(SharedSecret sharedSecret, LinkedBlockingQueue<StunTransport.Transaction> completions) throws IOException {
+        return new BindingTransaction(DoneBindingTest.TEST1_SECOND_RUN, transport.start(createBindingRequest(0, sharedSecret), changedAddress.getAddress(), changedAddress.getPort(), completions));
+    }
+
+    private MessageHeader createBindingRequest(int changeRequest, SharedSecret sharedSecret) {
+        MessageHeader header = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        header.genrateTransactionId();
+        if (changeRequest!=0) header.addMessageAttribute(MessageAttribute.create(MessageAttributeType.CHANGE_REQUEST, changeRequest));
+        setMessageAttributes4SharedSecret(header, (byte)changeRequest, sharedSecret);
+        return header;
+    }
+
+    /*
+     * Handle the answer to the first run of Test I in the fast discovery.
+     * Return false if the discovery can not go on.
+     */
+    private boolean fastTest1(DiscoveryInfo discoveryInfo, SharedSecret sharedSecret, MessageHeader header) {
+        bindingTestDone = DoneBindingTest.TEST1_FIRST_RUN;
+        MessageAttribute errorCode = header.getMessageAttribute(MessageAttribute.MessageAttributeType.ERROR_CODE);
+        if (errorCode!=null) {
+            discoveryInfo.setErrorCode(errorCode);
+            return false;
+        }
+        mappedAddress = header.getMessageAttribute(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS);
+        changedAddress =  header.getMessageAttribute(MessageAttribute.MessageAttributeType.CHANGED_ADDRESS);
+        if (mappedAddress==null || changedAddress==null) {
+            discoveryInfo.setError(700, "The server is sending an incomplete response (Mapped Address and Changed Address message attributes are missing). The client should not retry.");
+            return false;
+        }
+        if (!controlMessageIntegrity(header, sharedSecret)) {
+            discoveryInfo.setError(700, "Wrong HMAC received from server, this migh be an attack response");
+            return false;
+        }
+        discoveryInfo.setPublicIpAddress(mappedAddress.getAddress());
+        discoveryInfo.setLocalIpAddresses(localAddresses);
+        discoveryInfo.setNodeNated(!(mappedAddress.getPort()==localPort &&
+                (localAddresses!=null && localAddresses.contains(mappedAddress.getAddressAsString()))));
+        return true;
+    }
+
+    /*
+     * Check the answer to one of the other tests in the fast discovery.
+     * Return false if the discovery can not go on.
+     */
+    private boolean fastCheckResponse(DiscoveryInfo discoveryInfo, SharedSecret sharedSecret, BindingTransaction test) {
+        MessageAttribute errorCode = test.response.getMessageAttribute(MessageAttribute.MessageAttributeType.ERROR_CODE);
+        if (errorCode!=null) {
+            bindingTestDone = test.test;
+            discoveryInfo.setErrorCode(errorCode);
+            return false;
+        }
+        if (!controlMessageIntegrity(test.response, sharedSecret)) {
+            bindingTestDone = test.test;
+            discoveryInfo.setError(700, "Wrong HMAC received from server, this migh be an attack response");
+            return false;
+        }
+        if (test.test==DoneBindingTest.TEST1_SECOND_RUN && test.response.getMessageAttribute(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS)==null) {
+            bindingTestDone = test.test;
+            discoveryInfo.setError(700, "The server is sending an incomplete response (Mapped Address and Changed Address message attributes are missing). The client should not retry.");
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Follow the flow chart of binding() with the answers received so far.
+     * Return true when the scenario is known, or can not be known.
+     */
+    private boolean fastClassify(DiscoveryInfo discoveryInfo, SharedSecret sharedSecret, BindingTransaction test1, BindingTransaction test2, BindingTransaction test1b, BindingTransaction test3) {
+        if (test1.timedOut) {
+            bindingTestDone = DoneBindingTest.TEST1_FIRST_RUN;
+            discoveryInfo.setScenario(DiscoveryInfo.ConnectionScenario.UDP_BLOCKED);
+            return true;
+        }
+        if (test1.response==null) return false;
+
+        if (test2.response!=null) {
+            bindingTestDone = DoneBindingTest.TEST2;
+            if (discoveryInfo.isNodeNated()) discoveryInfo.setScenario(DiscoveryInfo.ConnectionScenario.FULL_CONE_NAT);
+            else discoveryInfo.setScenario(DiscoveryInfo.ConnectionScenario.OPEN_INTERNET);
+            return true;
+        }
+        if (!discoveryInfo.isNodeNated()) {
+            if (!test2.timedOut) return false;
+            bindingTestDone = DoneBindingTest.TEST2;
+            discoveryInfo.setScenario(DiscoveryInfo.ConnectionScenario.SYMMETRIC_FIREWALL);
+            return true;
+        }
+
+        //A full cone NAT can not be ruled out before Test II has timed out,
+        //and the second run of Test I is not sent before
+        if (!test2.timedOut || test1b==null) return false;
+        if (test1b.timedOut) {
+            bindingTestDone = DoneBindingTest.TEST1_SECOND_RUN;
+            return true;
+        }
+        if (test1b.response==null) return false;
+
+        //All the tests are sent from the same socket, so a new mapping shows on the port as well
+        MessageAttribute mappedAddress2 = test1b.response.getMessageAttribute(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS);
+        if (!mappedAddress.getAddress().equals(mappedAddress2.getAddress()) || mappedAddress.getPort()!=mappedAddress2.getPort()) {
+            bindingTestDone = DoneBindingTest.TEST1_SECOND_RUN;
+            discoveryInfo.setScenario(DiscoveryInfo.ConnectionScenario.SYMMETRIC_NAT);
+            return true;
+        }
+
+        if (test3.response!=null) {
+            bindingTestDone = DoneBindingTest.TEST3;
+            discoveryInfo.setScenario(DiscoveryInfo.ConnectionScenario.RESTRICTED_CORNE_NAT);
+            return true;
+        }
+        if (test3.timedOut) {
+            bindingTestDone = DoneBindingTest.TEST3;
+            discoveryInfo.setScenario(DiscoveryInfo.ConnectionScenario.RESTRICTED_PORT_NAT);
+            return true;
+        }
+        return false;
+    }
+
     private byte[] setMessageAttributes4SharedSecret(MessageHeader header, byte changeRequest, SharedSecret sharedSecret) {
     	if (sharedSecret==null || sharedSecret.getErrorCode()!=0) return null;
         byte hmac[] = null;
@@ -544,38 +936,10 @@ NAT     <--- / IP \<-----|  Test  |<--- /Resp\                Open
 
     private byte[] sendReceive(MessageHeader header, String address, int port) throws IOException {
         InetAddress addr =  InetAddress.getByName(address);
-        DatagramSocket sock = new DatagramSocket();
-        sock.setReuseAddress(true);
-        int timeout = 100;
-        int timeSinceFirstTransmission = 0;
-        DatagramPacket retDatagramPacket = null;
-
-        try {
-            byte buffer[] = header.toBytes();
-            DatagramPacket out = new DatagramPacket(buffer, buffer.length, addr, port);
-
-            while (true) {
-                sock.send(out);
-
-                byte[] buf = new byte[0xffff+20];
-                retDatagramPacket = new DatagramPacket(buf, buf.length);
-                sock.setSoTimeout(timeout);
-                try {
-                    sock.receive(retDatagramPacket);
-                } catch (SocketTimeoutException ex) {
-                    if (timeout<1600) timeout = timeout*2;
-                    timeSinceFirstTransmission += timeout;
-                    if (timeSinceFirstTransmission > 9500) throw ex;
-                    continue;
-                }
-                break;
-            }
-            localAddresses = Utils.getLocalAddresses();
-            localPort = sock.getLocalPort();
-        } finally {
-            sock.close();
-        }
-        return retDatagramPacket.getData();
+        byte response[] = transport.sendReceive(header, addr, port);
+        localAddresses = Utils.getLocalAddresses();
+        localPort = transport.getLocalPort();
+        return response;
     }
 
 
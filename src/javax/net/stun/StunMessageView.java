@@ -0,0 +1,231 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * A read only view of a STUN message held in a {@link ByteBuffer}. Unlike
+ * {@link MessageHeader#create(byte[])} the message is not copied; the view only
+ * records where each attribute starts, so the same instance can be reused for
+ * every received datagram without creating any garbage.<br>
+ * Only the first occurrence of each known attribute is indexed, unknown
+ * attributes are skipped.
+ *
+ * @author Henrik Baastrup
+ */
+public class StunMessageView {
+    private static final int MAX_ATTRIBUTE_TYPE = MessageAttribute.REFLECTED_FROM;
+
+    private ByteBuffer buffer = null;
+    private int start = 0;
+    private int type = 0;
+    private int length = 0;
+    private final int valueOffsets[] = new int[MAX_ATTRIBUTE_TYPE+1];
+    private final int valueLengths[] = new int[MAX_ATTRIBUTE_TYPE+1];
+
+    /**
+     * Parse the message found between the position and the limit of the buffer.
+     * The buffer is not modified, but must not be changed as long as the view is used.
+     * @param arg0 buffer containing a received datagram.
+     * @return false if the buffer does not contain a well formed STUN message.
+     */
+    public boolean wrap(ByteBuffer arg0) {
+        buffer = arg0;
+        start = arg0.position();
+        for (int i=0; i<=MAX_ATTRIBUTE_TYPE; i++) valueOffsets[i] = -1;
+
+        int available = arg0.limit() - start;
+        if (available < 20) return false;
+        type = getShort(start);
+        length = getShort(start+2);
+        if (length+20 > available) return false;
+
+        int i = start+20;
+        int end = i+length;
+        while (i < end) {
+            if (i+4 > end) return false;
+            int t = getShort(i);
+            int l = getShort(i+2);
+            i += 4;
+            if (i+l > end) return false;
+            if (t>0 && t<=MAX_ATTRIBUTE_TYPE && valueOffsets[t]<0) {
+                valueOffsets[t] = i;
+                valueLengths[t] = l;
+            }
+            i += l;
+        }
+        return true;
+    }
+
+    public ByteBuffer getBuffer() {return buffer;}
+
+    /**
+     * @return the index in the buffer where the message starts.
+     */
+    public int getOffset() {return start;}
+
+    /**
+     * @return the message type, e.g. {@link MessageHeader#BINDING_REQUEST}.
+     */
+    public int getType() {return type;}
+
+    /**
+     * @return the message length as found in the header (the 20 header bytes not included).
+     */
+    public int getLength() {return length;}
+
+    /**
+     * @return the number of bytes used by the whole message.
+     */
+    public int getMessageSize() {return length+20;}
+
+    /**
+     * @return the index in the buffer of the first transaction id byte.
+     */
+    public int getTransactionIdOffset() {return start+4;}
+
+    public boolean hasAttribute(int attributeType) {
+        return getAttributeOffset(attributeType) >= 0;
+    }
+
+    /**
+     * @param attributeType e.g. {@link MessageAttribute#MAPPED_ADDRESS}.
+     * @return the index in the buffer of the attribute value or -1 if the attribute is not present.
+     */
+    public int getAttributeOffset(int attributeType) {
+        if (attributeType<=0 || attributeType>MAX_ATTRIBUTE_TYPE) return -1;
+        return valueOffsets[attributeType];
+    }
+
+    /**
+     * @param attributeType e.g. {@link MessageAttribute#MAPPED_ADDRESS}.
+     * @return the length of the attribute value or -1 if the attribute is not present.
+     */
+    public int getAttributeLength(int attributeType) {
+        if (getAttributeOffset(attributeType) < 0) return -1;
+        return valueLengths[attributeType];
+    }
+
+    /**
+     * @return the flags of the CHANGE-REQUEST attribute (0x04 change IP, 0x02 change port)
+     * or 0 if the attribute is not present.
+     */
+    public int getChangeRequest() {
+        int offset = getAttributeOffset(MessageAttribute.CHANGE_REQUEST);
+        if (offset < 0 || valueLengths[MessageAttribute.CHANGE_REQUEST] < 4) return 0;
+        return buffer.get(offset+3) & 0x06;
+    }
+
+    /**
+     * @param attributeType one of the address attributes, e.g. {@link MessageAttribute#RESPONSE_ADDRESS}.
+     * @return true if the attribute is present and contains an IPv4 address.
+     */
+    public boolean hasAddress(int attributeType) {
+        int offset = getAttributeOffset(attributeType);
+        return offset >= 0 && valueLengths[attributeType] >= 8 && buffer.get(offset+1) == 0x01;
+    }
+
+    /**
+     * @param attributeType one of the address attributes.
+     * @return the port of the attribute or 0 if the attribute is not an address.
+     */
+    public int getPort(int attributeType) {
+        if (!hasAddress(attributeType)) return 0;
+        return getShort(valueOffsets[attributeType]+2);
+    }
+
+    /**
+     * Note: this method creates a new {@link InetAddress} and should be kept
+     * out of the hot path.
+     * @param attributeType one of the address attributes.
+     * @return the address of the attribute or null if the attribute is not an address.
+     */
+    public InetAddress getAddress(int attributeType) {
+        if (!hasAddress(attributeType)) return null;
+        byte addr[] = new byte[4];
+        int offset = valueOffsets[attributeType]+4;
+        for (int i=0; i<4; i++) addr[i] = buffer.get(offset+i);
+        try {
+            return InetAddress.getByAddress(addr);
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Note: this method creates a new String.
+     * @return the value of the USERNAME attribute or null if it is not present.
+     */
+    public String getUsername() {
+        int offset = getAttributeOffset(MessageAttribute.USERNAME);
+        if (offset < 0 || valueLengths[MessageAttribute.USERNAME] < 1) return null;
+        byte value[] = new byte[valueLengths[MessageAttribute.USERNAME]];
+        for (int i=0; i<value.length; i++) value[i] = buffer.get(offset+i);
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Check the MESSAGE-INTEGRITY attribute directly over the received bytes,
+     * the HMAC is calculated over the message up to the attribute. Like
+     * {@link MessageHeader#integrityCheck(HmacKey)} a SHARED-SECRET-VERIFY-REQUEST
+     * is checked as the Binding Request it carries.
+     * @param key the HMAC key of the shared secret password.
+     * @return 0 if the check succeed, 401 if there is no MESSAGE-INTEGRITY attribute else 431.
+     */
+    public int integrityCheck(HmacKey key) {
+        int offset = getAttributeOffset(MessageAttribute.MESSAGE_INTEGRITY);
+        if (offset < 0) return 401;
+        if (valueLengths[MessageAttribute.MESSAGE_INTEGRITY] != HmacKey.LENGTH) return 431;
+        int length = offset-4-start;
+        boolean ok;
+        if (type==MessageHeader.SHARED_SECRET_VERIFY_REQUEST) {
+            ok = key.verify(MessageHeader.BINDING_REQUEST, buffer, start, length, buffer, offset);
+        }
+        else {
+            ok = key.verify(buffer, start, length, buffer, offset);
+        }
+        return ok ? 0 : 431;
+    }
+
+    /**
+     * Copy the viewed message into a {@link MessageHeader}. Used on the paths
+     * where the object model is needed, e.g. when the message has to be
+     * forwarded to a Shared Secret server.
+     * @return a new MessageHeader.
+     * @throws IOException if the view does not contain a message.
+     */
+    public MessageHeader toMessageHeader() throws IOException {
+        if (buffer==null) throw new IOException("No message is wrapped by the view.");
+        byte bytes[] = new byte[getMessageSize()];
+        for (int i=0; i<bytes.length; i++) bytes[i] = buffer.get(start+i);
+        return MessageHeader.create(bytes);
+    }
+
+    private int getShort(int index) {
+        return ((buffer.get(index) & 0xff) << 8) | (buffer.get(index+1) & 0xff);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Write a STUN message directly into a {@link ByteBuffer}. This is the
+ * counterpart of {@link StunMessageView} and is used on the server hot path
+ * where {@link MessageHeader#toBytes()} would create a new array per message.<br>
+ * Usage: {@link #wrap(ByteBuffer)}, one of the putHeader methods, any number
+ * of attributes and at last {@link #finish()}, which leaves the buffer ready
+ * to be sent.<br>
+ * The bytes of the last few addresses written are kept, looked up by
+ * identity, so the addresses of the service and a client seen in the last
+ * messages are written without creating an array; a new address costs one
+ * {@link InetAddress#getAddress()}.
+ *
+ * @author Henrik Baastrup
+ */
+public class StunMessageWriter {
+    private ByteBuffer buffer = null;
+    private int start = 0;
+    private final InetAddress cachedAddresses[] = new InetAddress[4];
+    private final byte cachedBytes[][] = new byte[4][];
+    private int nextCached = 0;
+
+    /**
+     * The message is written from the current position of the buffer.
+     * @param arg0
+     */
+    public void wrap(ByteBuffer arg0) {
+        buffer = arg0;
+        start = arg0.position();
+    }
+
+    public ByteBuffer getBuffer() {return buffer;}
+
+    /**
+     * Write the message header using the transaction id of a received message.
+     * @param type message type, e.g. {@link MessageHeader#BINDING_RESPONSE}.
+     * @param request the message we are answering.
+     */
+    public void putHeader(int type, StunMessageView request) {
+        buffer.position(start);
+        putShort(type);
+        putShort(0);
+        ByteBuffer src = request.getBuffer();
+        int offset = request.getTransactionIdOffset();
+        for (int i=0; i<16; i++) buffer.put(src.get(offset+i));
+    }
+
+    /**
+     * Write the message header.
+     * @param type message type, e.g. {@link MessageHeader#BINDING_REQUEST}.
+     * @param transactionId 16 bytes transaction id.
+     */
+    public void putHeader(int type, byte transactionId[]) {
+        buffer.position(start);
+        putShort(type);
+        putShort(0);
+        for (int i=0; i<16; i++) buffer.put(i<transactionId.length ? transactionId[i] : 0);
+    }
+
+    /**
+     * Write one of the address attributes (MAPPED-ADDRESS, SOURCE-ADDRESS, ...).
+     * @param attributeType e.g. {@link MessageAttribute#MAPPED_ADDRESS}.
+     * @param address IPv4 address.
+     * @param port
+     * @throws IllegalArgumentException if the address is not an IPv4 address,
+     * the address attributes of RFC 3489 have no other family.
+     */
+    public void putAddress(int attributeType, InetAddress address, int port) {
+        if (!(address instanceof Inet4Address)) throw new IllegalArgumentException("Not an IPv4 address: "+address);
+        putShort(attributeType);
+        putShort(8);
+        buffer.put((byte)0); //Empty
+        buffer.put((byte)0x01); //Family
+        putShort(port);
+        buffer.put(addressBytes(address));
+    }
+
+    private byte[] addressBytes(InetAddress address) {
+        for (int i=0; i<cachedAddresses.length; i++) {
+            if (cachedAddresses[i]==address) return cachedBytes[i];
+        }
+        byte bytes[] = address.getAddress();
+        cachedAddresses[nextCached] = address;
+        cachedBytes[nextCached] = bytes;
+        nextCached = (nextCached+1) % cachedAddresses.length;
+        return bytes;
+    }
+
+    /**
+     * Write an attribute with the given value.
+     * @param attributeType
+     * @param value
+     */
+    public void putAttribute(int attributeType, byte value[]) {
+        putShort(attributeType);
+        putShort(value.length);
+        buffer.put(value);
+    }
+
+    /**
+     * Write an attribute created by the {@link MessageAttribute} factory methods.
+     * @param attribute
+     */
+    public void putAttribute(MessageAttribute attribute) {
+        buffer.put(attribute.toBytes());
+    }
+
+    /**
+     * Append a MESSAGE-INTEGRITY attribute calculated over everything written
+     * so far. This must be the last attribute of the message.
+     * @param password the shared secret password.
+     */
+    public void putMessageIntegrity(byte password[]) {
+        putMessageIntegrity(new HmacKey(password));
+    }
+
+    /**
+     * Append a MESSAGE-INTEGRITY attribute calculated over everything written
+     * so far. This must be the last attribute of the message.
+     * @param key the HMAC key of the shared secret password.
+     */
+    public void putMessageIntegrity(HmacKey key) {
+        int end = buffer.position();
+        // The length in the header has to include the integrity attribute
+        // when the HMAC is calculated
+        patchLength(end-start-20+4+HmacKey.LENGTH);
+        putShort(MessageAttribute.MESSAGE_INTEGRITY);
+        putShort(HmacKey.LENGTH);
+        key.sign(buffer, start, end-start, buffer);
+    }
+
+    /**
+     * Copy a whole message, e.g. to forward it unchanged.
+     * @param message
+     */
+    public void putMessage(StunMessageView message) {
+        ByteBuffer src = message.getBuffer();
+        int offset = message.getOffset();
+        int size = message.getMessageSize();
+        buffer.position(start);
+        for (int i=0; i<size; i++) buffer.put(src.get(offset+i));
+    }
+
+    /**
+     * Set the message length and flip the buffer so the position is at the
+     * start of the message and the limit at the end of it.
+     * @return the number of bytes in the message.
+     */
+    public int finish() {
+        int end = buffer.position();
+        patchLength(end-start-20);
+        buffer.limit(end);
+        buffer.position(start);
+        return end-start;
+    }
+
+    private void patchLength(int length) {
+        buffer.put(start+2, (byte)((length & 0xff00) >> 8));
+        buffer.put(start+3, (byte)(length & 0xff));
+    }
+
+    private void putShort(int value) {
+        buffer.put((byte)((value & 0xff00) >> 8));
+        buffer.put((byte)(value & 0xff));
+    }
+}
@@ -19,12 +19,40 @@
 package javax.net.stun;
 
 /**
+ * The host and port of a STUN server. The address is immutable, so it can be
+ * used as a key, e.g. in the results of {@link StunClient#bindingAll}.
  *
  * @author Henrik Baastrup
  */
 public class StunServerAddress {
-    public String address = "";
-    public int port = 0;
+    public final String address;
+    public final int port;
+
+    public StunServerAddress() {
+        this("", 0);
+    }
+
+    /**
+     * @param address host name or IP address of the STUN server.
+     * @param port
+     */
+    public StunServerAddress(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this==obj) return true;
+        if (!(obj instanceof StunServerAddress)) return false;
+        StunServerAddress other = (StunServerAddress)obj;
+        return port==other.port && (address==null ? other.address==null : address.equals(other.address));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31*(address==null ? 0 : address.hashCode()) + port;
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,535 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The UDP transport of a {@link StunClient}. One socket is bound for the
+ * lifetime of the transport, so all the requests of a client leave from the
+ * same local port and use the same NAT mapping. Any number of transactions
+ * may be outstanding at a time: a receiver thread reads the answers and
+ * hands each of them to the transaction with the same transaction id.<br>
+ * The requests are retransmitted by one timer thread for all the outstanding
+ * transactions. The first retransmission is sent after the retransmission
+ * timeout (RTO), and the RTO is doubled for each retransmission up to a max
+ * value, until the max number of retransmissions is sent or the transaction
+ * timeout expires. The RTO a transaction starts with is estimated from the
+ * round trip times measured to the same server (SRTT and RTTVAR as in RFC 2988),
+ * or is the initial RTO if nothing has been measured yet.<br>
+ * The socket and the two threads are opened by the first request. When no
+ * transaction has been outstanding for the idle timeout they are closed again,
+ * and the next request opens them on a new local port.
+ *
+ * @author Henrik Baastrup
+ */
+public class StunTransport {
+    private static final AtomicInteger receiverCount = new AtomicInteger();
+    /** The clock granularity of RFC 2988, the RTO is at least SRTT+G. */
+    private static final int CLOCK_GRANULARITY = 1;
+
+    private final int requestedPort;
+    private volatile InetAddress localAddress = null;
+    private volatile DatagramSocket socket = null;
+    private Thread receiver = null;
+    private ScheduledThreadPoolExecutor timer = null;
+    private ScheduledFuture<?> idleClose = null;
+    private final ConcurrentHashMap<ByteBuffer, Transaction> transactions = new ConcurrentHashMap<ByteBuffer, Transaction>();
+    private final ConcurrentHashMap<InetSocketAddress, RttEstimator> estimators = new ConcurrentHashMap<InetSocketAddress, RttEstimator>();
+
+    private volatile int initialRto = 100;
+    private volatile int minRto = 50;
+    private volatile int maxRto = 1600;
+    private volatile int maxRetransmits = 8;
+    private volatile int transactionTimeout = 9500;
+    private volatile int idleTimeout = 30000;
+
+    /**
+     * The round trip time estimated for a server, as in RFC 2988.
+     */
+    private static class RttEstimator {
+        private double srtt = 0;
+        private double rttvar = 0;
+        private boolean measured = false;
+
+        synchronized void update(long rtt) {
+            if (!measured) {
+                srtt = rtt;
+                rttvar = rtt/2.0;
+                measured = true;
+            }
+            else {
+                rttvar = 0.75*rttvar + 0.25*Math.abs(srtt-rtt);
+                srtt = 0.875*srtt + 0.125*rtt;
+            }
+        }
+
+        synchronized int getRto() {
+            if (!measured) return -1;
+            return (int)Math.ceil(srtt + Math.max(CLOCK_GRANULARITY, 4*rttvar));
+        }
+    }
+
+    /**
+     * A request sent by the transport and waiting for its answer.
+     */
+    public class Transaction {
+        private final ByteBuffer transactionId;
+        private final DatagramPacket packet;
+        private final InetSocketAddress server;
+        private final Queue<Transaction> completions;
+        private byte response[] = null;
+        private boolean cancelled = false;
+        private boolean timedOut = false;
+        private long firstTransmission;
+        private long deadline;
+        private int retransmits = 0;
+        private int rto;
+        private ScheduledFuture<?> retransmission = null;
+
+        private Transaction(byte request[], InetAddress address, int port, Queue<Transaction> completions) {
+            this.transactionId = ByteBuffer.wrap(Arrays.copyOfRange(request, 4, 20));
+            this.packet = new DatagramPacket(request, request.length, address, port);
+            this.server = new InetSocketAddress(address, port);
+            this.completions = completions;
+        }
+
+        /**
+         * Send the request again now, without waiting for the retransmission timer.
+         * @throws IOException
+         */
+        public void retransmit() throws IOException {
+            if (isDone()) return;
+            send(packet);
+            synchronized (this) {retransmits++;}
+        }
+
+        /**
+         * Wait for the answer.
+         * @param timeout max time to wait in milliseconds, 0 waits until the transaction is done.
+         * @return the answer or null if it was not received in time.
+         * @throws InterruptedException
+         */
+        public synchronized byte[] await(long timeout) throws InterruptedException {
+            if (timeout<=0) {
+                while (!isDone()) wait();
+                return response;
+            }
+            long end = System.currentTimeMillis() + timeout;
+            long left = timeout;
+            while (!isDone() && left > 0) {
+                wait(left);
+                left = end - System.currentTimeMillis();
+            }
+            return response;
+        }
+
+        /**
+         * @return the answer or null if it has not been received.
+         */
+        public synchronized byte[] getResponse() {return response;}
+
+        /**
+         * @return true if answered, timed out or cancelled.
+         */
+        public synchronized boolean isDone() {return response!=null || cancelled || timedOut;}
+
+        /**
+         * @return true if no answer was received before the transaction timeout
+         * expired or the max number of retransmissions was sent.
+         */
+        public synchronized boolean isTimedOut() {return timedOut;}
+
+        /**
+         * @return number of times the request was retransmitted.
+         */
+        public synchronized int getRetransmits() {return retransmits;}
+
+        /**
+         * Stop waiting for the answer, an answer received later is ignored.
+         */
+        public void cancel() {
+            transactions.remove(transactionId, this);
+            synchronized (this) {
+                cancelled = true;
+                if (retransmission!=null) retransmission.cancel(false);
+                notifyAll();
+            }
+            released();
+        }
+
+        public InetAddress getAddress() {return packet.getAddress();}
+        public int getPort() {return packet.getPort();}
+
+        private void complete(byte arg0[]) {
+            long rtt;
+            synchronized (this) {
+                if (isDone()) return;
+                response = arg0;
+                if (retransmission!=null) retransmission.cancel(false);
+                //Karn's algorithm, an answer to a retransmitted request can not be timed
+                rtt = retransmits==0 ? System.currentTimeMillis()-firstTransmission : -1;
+                notifyAll();
+            }
+            if (rtt>=0) getEstimator(server).update(rtt);
+            if (completions!=null) completions.offer(this);
+            released();
+        }
+
+        private void expire() {
+            transactions.remove(transactionId, this);
+            synchronized (this) {
+                if (isDone()) return;
+                timedOut = true;
+                notifyAll();
+            }
+            if (completions!=null) completions.offer(this);
+            released();
+        }
+
+        /**
+         * Called by the timer thread when the RTO has expired.
+         */
+        private void onTimer() {
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (isDone()) return;
+                if (now < deadline && retransmits < maxRetransmits) {
+                    try {
+                        send(packet);
+                    } catch (IOException ex) {
+                        if (isOpen()) Logger.getLogger(StunTransport.class.getName()).log(Level.WARNING, "Failed to retransmit to "+server, ex);
+                    }
+                    retransmits++;
+                    rto = Math.min(rto*2, maxRto);
+                    try {
+                        schedule(this, Math.min(now+rto, deadline) - now);
+                    } catch (SocketException ex) {
+                        //Closed, the transaction is cancelled by close()
+                    }
+                    return;
+                }
+            }
+            expire();
+        }
+    }
+
+    /**
+     * A transport bound to an ephemeral port.
+     */
+    public StunTransport() {
+        this(0);
+    }
+
+    /**
+     * @param localPort the local port to bind, 0 for an ephemeral port.
+     */
+    public StunTransport(int localPort) {
+        this(null, localPort);
+    }
+
+    /**
+     * @param localAddress the local address to bind, null for the wildcard address.
+     * @param localPort the local port to bind, 0 for an ephemeral port.
+     */
+    public StunTransport(InetAddress localAddress, int localPort) {
+        this.localAddress = localAddress;
+        this.requestedPort = localPort;
+    }
+
+    /**
+     * Set the local address the socket is bound to, e.g. to send the requests
+     * from a given interface. Used the next time the transport is opened.
+     * @param arg0 the local address, null for the wildcard address.
+     */
+    public void setLocalAddress(InetAddress arg0) {localAddress = arg0;}
+    public InetAddress getLocalAddress() {return localAddress;}
+
+    /**
+     * Bind the socket and start the receiver thread, if not done yet.
+     * @throws SocketException
+     */
+    public synchronized void open() throws SocketException {
+        if (socket!=null) return;
+        final DatagramSocket sock = new DatagramSocket(requestedPort, localAddress);
+        final int index = receiverCount.getAndIncrement();
+        socket = sock;
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receive(sock);
+            }
+        }, "STUN Transport Receiver-"+index);
+        receiver.setDaemon(true);
+        receiver.start();
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "STUN Transport Timer-"+index);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Close the socket and stop the threads, the outstanding transactions are
+     * cancelled. The transport may be opened again, on another local port.
+     */
+    public void close() {
+        close(false);
+    }
+
+    /**
+     * @param idle if true the transport is only closed if no transaction is outstanding.
+     */
+    private void close(boolean idle) {
+        DatagramSocket sock;
+        ScheduledThreadPoolExecutor oldTimer;
+        synchronized (this) {
+            //A transaction started after the idle timer expired keeps the transport open
+            if (idle && !transactions.isEmpty()) return;
+            sock = socket;
+            oldTimer = timer;
+            socket = null;
+            receiver = null;
+            timer = null;
+            idleClose = null;
+        }
+        if (sock!=null) sock.close();
+        if (oldTimer!=null) oldTimer.shutdownNow();
+        for (Transaction transaction : transactions.values()) transaction.cancel();
+    }
+
+    public boolean isOpen() {return socket!=null;}
+
+    /**
+     * @return the local port of the socket, or 0 if the transport is not open.
+     */
+    public int getLocalPort() {
+        DatagramSocket sock = socket;
+        return sock==null ? 0 : sock.getLocalPort();
+    }
+
+    /**
+     * @return number of transactions waiting for an answer.
+     */
+    public int getOutstanding() {return transactions.size();}
+
+    /**
+     * Set the RTO used for a server no round trip time has been measured for.
+     * @param arg0 timeout in milliseconds (default 100).
+     */
+    public void setInitialRto(int arg0) {initialRto = arg0;}
+    public int getInitialRto() {return initialRto;}
+
+    /**
+     * Set the lower bound of the RTO estimated from the measured round trip times.
+     * @param arg0 timeout in milliseconds (default 50).
+     */
+    public void setMinRto(int arg0) {minRto = arg0;}
+    public int getMinRto() {return minRto;}
+
+    /**
+     * Set the upper bound of the RTO, also when it is doubled for a retransmission.
+     * @param arg0 timeout in milliseconds (default 1600).
+     */
+    public void setMaxRto(int arg0) {maxRto = arg0;}
+    public int getMaxRto() {return maxRto;}
+
+    /**
+     * Set the number of times a request is retransmitted before the transaction
+     * times out, one RTO after the last retransmission.
+     * @param arg0 number of retransmissions (default 8).
+     */
+    public void setMaxRetransmits(int arg0) {maxRetransmits = arg0;}
+    public int getMaxRetransmits() {return maxRetransmits;}
+
+    /**
+     * Set the max time from the first transmission until the transaction times out.
+     * @param arg0 timeout in milliseconds (default 9500).
+     */
+    public void setTransactionTimeout(int arg0) {transactionTimeout = arg0;}
+    public int getTransactionTimeout() {return transactionTimeout;}
+
+    /**
+     * Set the time the transport stays open with no outstanding transaction,
+     * before the socket is closed and the threads are stopped.
+     * @param arg0 timeout in milliseconds (default 30000), 0 keeps the transport open until {@link #close}.
+     */
+    public void setIdleTimeout(int arg0) {idleTimeout = arg0;}
+    public int getIdleTimeout() {return idleTimeout;}
+
+    /**
+     * @param address
+     * @param port
+     * @return the RTO a new transaction to the server starts with.
+     */
+    public int getRto(InetAddress address, int port) {
+        RttEstimator estimator = estimators.get(new InetSocketAddress(address, port));
+        int rto = estimator==null ? -1 : estimator.getRto();
+        if (rto<0) return initialRto;
+        return Math.min(Math.max(rto, minRto), maxRto);
+    }
+
+    /**
+     * Send a request and register it as waiting for an answer. The transport
+     * is opened if needed.
+     * @param request
+     * @param address
+     * @param port
+     * @param completions if not null the transaction is added to this queue when the answer is received.
+     * @return the transaction, to be cancelled when no longer waited for.
+     * @throws IOException if the request could not be sent, or a request with
+     * the same transaction id is already waiting for an answer.
+     */
+    public Transaction start(MessageHeader request, InetAddress address, int port, Queue<Transaction> completions) throws IOException {
+        Transaction transaction = new Transaction(request.toBytes(), address, port, completions);
+        synchronized (this) {
+            open();
+            if (idleClose!=null) {
+                idleClose.cancel(false);
+                idleClose = null;
+            }
+            if (transactions.putIfAbsent(transaction.transactionId, transaction)!=null) {
+                throw new IOException("A request with the same transaction id is already waiting for an answer");
+            }
+        }
+        synchronized (transaction) {
+            try {
+                long now = System.currentTimeMillis();
+                transaction.firstTransmission = now;
+                transaction.deadline = now + transactionTimeout;
+                transaction.rto = getRto(address, port);
+                send(transaction.packet);
+                schedule(transaction, Math.min(transaction.rto, transactionTimeout));
+            } catch (IOException ex) {
+                transaction.cancel();
+                throw ex;
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * Send a request and wait for the answer, the request is retransmitted
+     * until answered or the transaction times out.
+     * @param request
+     * @param address
+     * @param port
+     * @return the answer.
+     * @throws SocketTimeoutException if no answer was received.
+     * @throws IOException
+     */
+    public byte[] sendReceive(MessageHeader request, InetAddress address, int port) throws IOException {
+        Transaction transaction = start(request, address, port, null);
+        try {
+            byte response[] = transaction.await(0);
+            if (response!=null) return response;
+            if (transaction.isTimedOut()) throw new SocketTimeoutException("No answer from "+address.getHostAddress()+":"+port);
+            throw new SocketException("The transport is closed");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an answer");
+        } finally {
+            transaction.cancel();
+        }
+    }
+
+    private RttEstimator getEstimator(InetSocketAddress server) {
+        RttEstimator estimator = estimators.get(server);
+        if (estimator==null) {
+            RttEstimator newEstimator = new RttEstimator();
+            estimator = estimators.putIfAbsent(server, newEstimator);
+            if (estimator==null) estimator = newEstimator;
+        }
+        return estimator;
+    }
+
+    private void schedule(final Transaction transaction, long delay) throws SocketException {
+        ScheduledThreadPoolExecutor executor = timer;
+        if (executor==null) throw new SocketException("The transport is closed");
+        try {
+            transaction.retransmission = executor.schedule(new Runnable() {
+                public void run() {
+                    transaction.onTimer();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            throw new SocketException("The transport is closed");
+        }
+    }
+
+    /**
+     * Called when a transaction is no longer outstanding, starts the idle
+     * timeout if it was the last one.
+     */
+    private synchronized void released() {
+        if (timer==null || idleTimeout<=0 || !transactions.isEmpty()) return;
+        if (idleClose!=null) idleClose.cancel(false);
+        try {
+            idleClose = timer.schedule(new Runnable() {
+                public void run() {
+                    close(true);
+                }
+            }, idleTimeout, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            //Closed
+        }
+    }
+
+    private void send(DatagramPacket packet) throws IOException {
+        DatagramSocket sock = socket;
+        if (sock==null) throw new SocketException("The transport is closed");
+        sock.send(packet);
+    }
+
+    private void receive(DatagramSocket sock) {
+        byte buf[] = new byte[0xffff+20];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!sock.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                sock.receive(packet);
+            } catch (IOException ex) {
+                if (!sock.isClosed()) Logger.getLogger(StunTransport.class.getName()).log(Level.SEVERE, null, ex);
+                break;
+            }
+            if (packet.getLength() < 20) continue; //Not a STUN message
+            Transaction transaction = transactions.remove(ByteBuffer.wrap(buf, 4, 16).slice());
+            if (transaction!=null) transaction.complete(Arrays.copyOf(buf, packet.getLength()));
+        }
+    }
+}
@@ -17,6 +17,7 @@
  */
 package javax.net.stun;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -54,6 +55,8 @@ public class Utils {
      * @return
      */
     public static byte[] hmac(byte key[], byte text[], int blockSize) {
+        if (blockSize==64) return new HmacKey(key).hmac(text);
+
         byte key0[];
         if (key.length==blockSize) key0 = key;
         else if (key.length < blockSize) {
@@ -189,6 +192,15 @@ public class Utils {
         return addresses;
     }
 
+    /**
+     * Send a message and read the answer, the streams of the socket are closed
+     * afterwards. Use a {@link SharedSecretConnection} to do more than one
+     * exchange over the same connection.
+     * @param sock
+     * @param header
+     * @return the received message.
+     * @throws IOException
+     */
     public static MessageHeader socketSendRecive(Socket sock, MessageHeader header) throws IOException {
         OutputStream outStream = null;
         InputStream inStream = null;
@@ -199,41 +211,51 @@ public class Utils {
             outStream = sock.getOutputStream();
 
             outStream.write(header.toBytes());
+            outStream.flush();
 
-            //get the message headder
-            byte headerBuf[] = new byte[20];
-            int bufLen = 20;
-            int read = 0;
-            while (read<20) {
-                int r = inStream.read(headerBuf, read, bufLen);
-                if (r < 0) break;
-                bufLen -= r;
-                read += r;
-            }
-
-            //find message length
-            if (headerBuf.length<4) throw new IOException("The header is not long enof to extract the Message Length");
-            int mesgLength = (0x000000FF & ((int)headerBuf[2])) << 8;
-            mesgLength +=(0x000000FF & ((int) headerBuf[3]));
-
-            //get the message body
-            message = new byte[mesgLength+20];
-            bufLen = mesgLength;
-            read = 20;
-            while (read<mesgLength) {
-                int r = inStream.read(message, read, bufLen);
-                if (r < 0) break;
-                bufLen -= r;
-                read += r;
-            }
-            for (int i=0; i<20; i++) message[i] = headerBuf[i];
-
+            message = readMessage(inStream);
+            if (message==null) throw new EOFException("The connection was closed before a message was received");
         } finally {
             if (inStream!=null) inStream.close();
             if (outStream!=null) outStream.close();
         }
         return MessageHeader.create(message);
     }
+
+    /**
+     * Read one whole STUN message (header and attributes) from a stream.
+     * @param inStream
+     * @return the message or null if the stream ended before the first byte of the message.
+     * @throws EOFException if the stream ended in the middle of the message.
+     * @throws IOException
+     */
+    public static byte[] readMessage(InputStream inStream) throws IOException {
+        byte headerBuf[] = new byte[20];
+        int read = 0;
+        while (read<20) {
+            int r = inStream.read(headerBuf, read, 20-read);
+            if (r < 0) {
+                if (read==0) return null;
+                throw new EOFException("The connection was closed in the middle of a message header");
+            }
+            read += r;
+        }
+
+        //find message length
+        int mesgLength = (0x000000FF & ((int)headerBuf[2])) << 8;
+        mesgLength +=(0x000000FF & ((int) headerBuf[3]));
+
+        //get the message body
+        byte message[] = new byte[mesgLength+20];
+        System.arraycopy(headerBuf, 0, message, 0, 20);
+        read = 20;
+        while (read<message.length) {
+            int r = inStream.read(message, read, message.length-read);
+            if (r < 0) throw new EOFException("The connection was closed in the middle of a message");
+            read += r;
+        }
+        return message;
+    }
     
     public  static String byteToString(byte b) {
     	char[] trans = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
@@ -0,0 +1,87 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import javax.net.stun.HmacKey;
+import javax.net.stun.StunMessageView;
+import javax.net.stun.StunMessageWriter;
+
+/**
+ * Per thread state used by the {@link BindingService} engines while answering
+ * a request. One instance is owned by each receive thread and reused for
+ * every datagram it handles, so answering a request does not create garbage.
+ *
+ * @author Henrik Baastrup
+ */
+class BindingContext {
+    static final int BUFFER_SIZE = 0xffff+20;
+    /** Buffer size used for each slot of a receive batch, larger datagrams are dropped. */
+    static final int BATCH_BUFFER_SIZE = 2048;
+
+    final ByteBuffer receiveBuffer;
+    /** Holds the answer between position and limit when {@link BindingService#answer} returns. */
+    final ByteBuffer sendBuffer;
+    /** Used by the socket engine to send the answer. */
+    final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+    final StunMessageView request = new StunMessageView();
+    final StunMessageWriter writer = new StunMessageWriter();
+
+    /** Address the answer has to be sent to. */
+    InetAddress returnAddress = null;
+    /** Port the answer has to be sent to. */
+    int returnPort = 0;
+    /** Role of the socket to send the answer from, e.g. {@link BindingService#PRIMARY}. */
+    int sendFrom = BindingService.PRIMARY;
+    /** Key to sign the answer with, or null. */
+    HmacKey key = null;
+
+    /**
+     * @param direct true to use direct buffers (NIO engine), false for heap
+     * buffers backed by an array (socket engine).
+     */
+    BindingContext(boolean direct) {
+        this(direct, BUFFER_SIZE);
+    }
+
+    /**
+     * @param direct true to use direct buffers (NIO engine), false for heap
+     * buffers backed by an array (socket engine).
+     * @param bufferSize size of the receive and send buffers.
+     */
+    BindingContext(boolean direct, int bufferSize) {
+        if (direct) {
+            receiveBuffer = ByteBuffer.allocateDirect(bufferSize);
+            sendBuffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        else {
+            receiveBuffer = ByteBuffer.allocate(bufferSize);
+            sendBuffer = ByteBuffer.allocate(bufferSize);
+        }
+    }
+
+    void reset() {
+        sendBuffer.clear();
+        returnAddress = null;
+        returnPort = 0;
+        sendFrom = BindingService.PRIMARY;
+        key = null;
+    }
+}
@@ -18,37 +18,108 @@
 
 package javax.net.stun.services;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.management.ManagementFactory;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.stun.HmacKey;
 import javax.net.stun.MessageAttribute;
 import javax.net.stun.MessageHeader;
-import javax.net.stun.MessageHeader.HeaderType;
+import javax.net.stun.StunMessageView;
+import javax.net.stun.StunMessageWriter;
 import javax.net.stun.Utils;
 
-//TODO: The Binding Service is not able to answer a client with a full NAT scenario as
-//there is only used one IP address. To discover a full NAT scenario there need be two
-//STUN servers with different IP addresses, each server listen on two different ports.
 /**
+ * To discover all NAT scenarios the service needs two IP addresses, each
+ * listening on two ports. When the alternate address belongs to this host the
+ * service binds all four sockets itself, otherwise a second STUN server has to
+ * run on the alternate address.
  *
  * @author Henrik Baastrup
  */
 public class BindingService implements Runnable,UncaughtExceptionHandler {
-    private DatagramSocket receiveSocket;
-    private boolean running = false;
-    private Thread thread = null;
+    /**
+     * The receive engines the service can run with.
+     */
+    public enum Engine {
+        /** One thread receiving on a blocking {@link DatagramSocket}. */
+        SOCKET,
+        /** A number of worker threads each with its own {@link java.nio.channels.DatagramChannel} and selector. */
+        NIO
+    }
+
+    /*
+     * The sockets of the RFC 3489 layout. Bit 0 of a role selects the
+     * alternate port and bit 1 the alternate address, so the socket to answer
+     * a CHANGE-REQUEST from is found by flipping the bits of the role the
+     * request was received on.
+     */
+    static final int PRIMARY = 0;
+    static final int ALTERNATE_PORT = 1;
+    static final int ALTERNATE_ADDRESS = 2;
+    static final int ALTERNATE_ADDRESS_AND_PORT = 3;
+    static final int ROLES = 4;
+
+    /** Default number of credentials cached when using a remote Shared Secret service. */
+    public static final int DEFAULT_CREDENTIAL_CACHE_SIZE = 10000;
+    /** Default time a credential verified by a remote Shared Secret service is cached, 1 minute. */
+    public static final long DEFAULT_CREDENTIAL_CACHE_TTL = 60000;
+
+    /** Returned by the local integrity check when the request must be verified by the remote Shared Secret service. */
+    private static final int VERIFY_REMOTELY = -1;
+
+    static final int MAX_BATCH_SIZE = 1024;
+    /** Number of power of two buckets needed for batch sizes up to MAX_BATCH_SIZE. */
+    static final int BATCH_SIZE_BUCKETS = 11;
+
+    private DatagramSocket sockets[] = null;
+    private volatile boolean running = false;
+    private Thread threads[] = null;
+
+    private Engine engine = Engine.SOCKET;
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = 1;
+    private NioBindingWorker workers[] = null;
 
     private SharedSecretService sharedSecretService = null;
     private InetAddress sharedSecretServiceAddress = null;
     private int sharedSecretServicePort = 3478;
+    private int sharedSecretConnections = 2;
+    private int sharedSecretTimeout = 5000;
+    /** The credentials verified by the remote Shared Secret service, null if not cached. */
+    private volatile CredentialCache credentialCache = new CredentialCache(DEFAULT_CREDENTIAL_CACHE_SIZE, DEFAULT_CREDENTIAL_CACHE_TTL);
+    private int verifierThreads = 8;
+    private int maxPendingVerifications = 256;
+    /** Verifies the requests with the remote Shared Secret service, off the receive threads. */
+    private volatile ThreadPoolExecutor verifier = null;
+    private final ThreadLocal<BindingContext> verifierContext = new ThreadLocal<BindingContext>() {
+        @Override
+        protected BindingContext initialValue() {
+            return new BindingContext(false, BindingContext.BATCH_BUFFER_SIZE);
+        }
+    };
+    /** Connections kept open to the remote Shared Secret service for the verify requests. */
+    private SharedSecretConnectionPool sharedSecretConnectionPool = null;
 
     private InetAddress localAddress = null;
     private int localPort = 3478;
@@ -56,8 +127,38 @@ public class BindingService implements Runnable,UncaughtExceptionHandler {
 
     private InetAddress alternateAddress = null;
     private int alternatePort = 0;
+    /** The alternate port in use, differs from alternatePort when this is 0 and an ephemeral port was bound. */
+    private int boundAlternatePort = 0;
+    /** Bit mask of the roles a socket is bound for. */
+    private int boundRoles = 0;
 
-    private boolean debug = false;
+    private volatile boolean debug = false;
+    private final Tracer tracer = new Tracer(Logger.getLogger(BindingService.class.getName()));
+    /** Records the datagrams received and sent, null when not capturing. */
+    private volatile PacketCapture capture = null;
+    /** The name the service is registered with in the platform MBean server, or null. */
+    private volatile ObjectName mbeanName = null;
+    /** The NIO worker threads. */
+    private Thread nioThreads[] = null;
+
+    /*
+     * The metrics are looked up once here, so counting a packet is an
+     * increment of a LongAdder.
+     */
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter bindingRequests = metrics.counter("stun_binding_requests_total", "Messages received by type", "type", "binding_request");
+    private final Metrics.Counter forwardedResponses = metrics.counter("stun_binding_requests_total", "Messages received by type", "type", "binding_response");
+    private final Metrics.Counter otherRequests = metrics.counter("stun_binding_requests_total", "Messages received by type", "type", "other");
+    private final Metrics.Counter malformedPackets = metrics.counter("stun_binding_malformed_packets_total", "Datagrams dropped because they are not STUN messages");
+    private final Metrics.Counter responses = metrics.counter("stun_binding_responses_total", "Binding Responses sent");
+    private final Metrics.CodeCounters errorResponses = metrics.codeCounters("stun_binding_error_responses_total", "Binding Error Responses sent by error code", "code");
+    private final Metrics.Counter changeAddressRequests = metrics.counter("stun_binding_change_requests_total", "Binding Requests with a CHANGE-REQUEST by what to change", "change", "address");
+    private final Metrics.Counter changePortRequests = metrics.counter("stun_binding_change_requests_total", "Binding Requests with a CHANGE-REQUEST by what to change", "change", "port");
+    private final Metrics.Counter changeBothRequests = metrics.counter("stun_binding_change_requests_total", "Binding Requests with a CHANGE-REQUEST by what to change", "change", "address_and_port");
+    private final Metrics.Counter integrityFailures = metrics.counter("stun_binding_integrity_failures_total", "Binding Requests rejected with a 401, 430, 431 or 432");
+    private final Metrics.Counter rejectedVerifications = metrics.counter("stun_binding_rejected_verifications_total", "Binding Requests answered with a 500 because too many were waiting to be verified");
+    private final Metrics.Counter socketErrors = metrics.counter("stun_binding_socket_errors_total", "Failed receives and sends");
+    private final Metrics.Histogram processingTime = metrics.histogram("stun_binding_processing_time_ns", "Time to handle a received datagram in nanoseconds, sending the answer excluded");
 
     public BindingService(final InetAddress localIpAddress, final int localPort, final InetAddress alternateIpAddress, final int alternatePort) {
         localAddress = localIpAddress;
@@ -65,6 +166,7 @@ public class BindingService implements Runnable,UncaughtExceptionHandler {
         if (localPort!=0) this.localPort = localPort;
         alternateAddress = alternateIpAddress;
         this.alternatePort = alternatePort;
+        registerGauges();
     }
 
     public BindingService(final InetAddress localIpAddress, final int localPort, final InetAddress alternateIpAddress, final int alternatePort, final SharedSecretService sharedSecretService) {
@@ -78,218 +180,775 @@ public class BindingService implements Runnable,UncaughtExceptionHandler {
         this.sharedSecretServicePort = sharedSecretServicePort;
     }
 
+    private void registerGauges() {
+        metrics.gauge("stun_binding_pending_verifications", "Binding Requests being verified or waiting to be verified by the remote Shared Secret service", new Metrics.GaugeSource() {
+            public long getValue() {return getPendingVerifications();}
+        });
+        metrics.gauge("stun_binding_cached_credentials", "Credentials in the cache of the remote Shared Secret service", new Metrics.GaugeSource() {
+            public long getValue() {return getCachedCredentials();}
+        });
+    }
+
+    /**
+     * The counters and histograms of the service. They are updated without
+     * locks on the receive threads and may be read at any time.
+     * @return the metrics of the service.
+     */
+    public Metrics getMetrics() {return metrics;}
+
+    /**
+     * Register the service with the platform MBean server, so it can be
+     * observed and tuned with e.g. jconsole, see {@link BindingServiceMXBean}.
+     * @return the name the service is registered with.
+     * @throws JMException if the service could not be registered, e.g. if a
+     * service with the same address and port is registered.
+     */
+    public ObjectName registerMBean() throws JMException {
+        ObjectName name = new ObjectName("javax.net.stun:type=BindingService,address="+ObjectName.quote(String.valueOf(localAddress))+",port="+localPort);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new BindingServiceMonitor(this), name);
+        mbeanName = name;
+        return name;
+    }
+
+    /**
+     * Unregister the service from the platform MBean server, if registered.
+     */
+    public void unregisterMBean() {
+        ObjectName name = mbeanName;
+        mbeanName = null;
+        if (name==null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ex) {
+            Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
     public boolean isRunning() {return running;}
 
+    /**
+     * Select the receive engine used by {@link #start()}. Must be called
+     * before the service is started.
+     * @param arg0 engine (default {@link Engine#SOCKET}).
+     */
+    public void setEngine(Engine arg0) {engine = arg0;}
+    public Engine getEngine() {return engine;}
+
+    /**
+     * Set the number of receive threads used by the {@link Engine#NIO} engine.
+     * Must be called before the service is started.
+     * @param arg0 number of threads (default number of available processors).
+     */
+    public void setWorkerThreads(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        workerThreads = arg0;
+    }
+    public int getWorkerThreads() {return workerThreads;}
+
+    /**
+     * Set the number of TLS connections kept open to a remote Shared Secret
+     * service. The verify requests are pipelined, so a few connections are
+     * enough for many receive threads. Must be called before the service is started.
+     * @param arg0 number of connections (default 2).
+     */
+    public void setSharedSecretConnections(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        sharedSecretConnections = arg0;
+    }
+    public int getSharedSecretConnections() {return sharedSecretConnections;}
+
+    /**
+     * Set the time to wait for an answer from a remote Shared Secret service
+     * before the binding request is answered with a 500 (Server Error).
+     * Must be called before the service is started.
+     * @param arg0 timeout in milliseconds (default 5000).
+     */
+    public void setSharedSecretTimeout(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        sharedSecretTimeout = arg0;
+    }
+    public int getSharedSecretTimeout() {return sharedSecretTimeout;}
+
+    /**
+     * Set the number of threads verifying requests with a remote Shared
+     * Secret service. The receive threads hand the requests to these threads
+     * and keep answering other clients while the verification is going on.
+     * Must be called before the service is started.
+     * @param arg0 number of threads (default 8).
+     */
+    public void setVerifierThreads(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        verifierThreads = arg0;
+    }
+    public int getVerifierThreads() {return verifierThreads;}
+
+    /**
+     * Set the max number of requests waiting for a verifier thread. When
+     * more requests are waiting a new one is answered right away with a 500
+     * (Server Error), and the client may retry. Must be called before the
+     * service is started.
+     * @param arg0 number of requests (default 256).
+     */
+    public void setMaxPendingVerifications(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        maxPendingVerifications = arg0;
+    }
+    public int getMaxPendingVerifications() {return maxPendingVerifications;}
+
+    /**
+     * @return number of requests being verified or waiting to be verified by the remote Shared Secret service.
+     */
+    public int getPendingVerifications() {
+        ThreadPoolExecutor pool = verifier;
+        if (pool==null) return 0;
+        return pool.getQueue().size() + pool.getActiveCount();
+    }
+
+    /**
+     * @return number of requests answered with a 500 because too many requests were waiting to be verified.
+     */
+    public long getRejectedVerifications() {return rejectedVerifications.get();}
+
+    /**
+     * Set the cache of credentials verified by a remote Shared Secret service.
+     * A binding request from a user in the cache has its MESSAGE-INTEGRITY
+     * checked by this service, without asking the Shared Secret service. A
+     * credential is cached no longer than the remaining lifetime the Shared
+     * Secret service answers the verify request with (see
+     * {@link SharedSecretService#setCredentialTtl(long)}); a Shared Secret
+     * service not sending it may see a credential accepted up to the time to
+     * live after it expired. The cached credentials are dropped.
+     * @param size max number of credentials cached, the least recently used are evicted (default {@value #DEFAULT_CREDENTIAL_CACHE_SIZE}), 0 disables the cache.
+     * @param ttl time in milliseconds a credential is cached (default {@value #DEFAULT_CREDENTIAL_CACHE_TTL}).
+     */
+    public void setCredentialCache(int size, long ttl) {
+        if (size<1 || ttl<1) credentialCache = null;
+        else credentialCache = new CredentialCache(size, ttl);
+    }
+
+    /**
+     * @return max number of credentials cached, 0 if the cache is disabled.
+     */
+    public int getCredentialCacheSize() {
+        CredentialCache cache = credentialCache;
+        return cache==null ? 0 : cache.getMaxSize();
+    }
+
+    /**
+     * @return time in milliseconds a credential is cached, 0 if the cache is disabled.
+     */
+    public long getCredentialCacheTtl() {
+        CredentialCache cache = credentialCache;
+        return cache==null ? 0 : cache.getTtl();
+    }
+
+    /**
+     * @return number of credentials in the cache.
+     */
+    public int getCachedCredentials() {
+        CredentialCache cache = credentialCache;
+        return cache==null ? 0 : cache.size();
+    }
+
+    /**
+     * @return number of binding requests verified with a cached credential.
+     */
+    public long getCredentialCacheHits() {
+        CredentialCache cache = credentialCache;
+        return cache==null ? 0 : cache.getHits();
+    }
+
+    /**
+     * @return number of binding requests whose credential was not cached and was verified by the remote Shared Secret service.
+     */
+    public long getCredentialCacheMisses() {
+        CredentialCache cache = credentialCache;
+        return cache==null ? 0 : cache.getMisses();
+    }
+
+    /**
+     * Set the max number of datagrams a {@link Engine#NIO} worker receives
+     * before it answers them. With a batch size above 1 each slot of the batch
+     * holds datagrams up to {@value BindingContext#BATCH_BUFFER_SIZE} bytes,
+     * larger datagrams are dropped. Must be called before the service is started.
+     * @param arg0 batch size between 1 and {@value #MAX_BATCH_SIZE} (default 1).
+     */
+    public void setBatchSize(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        if (arg0 > MAX_BATCH_SIZE) arg0 = MAX_BATCH_SIZE;
+        batchSize = arg0;
+    }
+    public int getBatchSize() {return batchSize;}
+
+    /**
+     * @return number of receive batches handled by the {@link Engine#NIO} workers.
+     */
+    public long getBatches() {
+        long count = 0;
+        NioBindingWorker current[] = workers;
+        if (current!=null) for (NioBindingWorker worker : current) count += worker.getBatches();
+        return count;
+    }
+
+    /**
+     * @return number of datagrams received in batches by the {@link Engine#NIO} workers.
+     */
+    public long getBatchedPackets() {
+        long count = 0;
+        NioBindingWorker current[] = workers;
+        if (current!=null) for (NioBindingWorker worker : current) count += worker.getBatchedPackets();
+        return count;
+    }
+
+    /**
+     * The achieved batch sizes. Element i holds the number of batches with a
+     * size from 2^i to 2^(i+1)-1, so element 0 counts the datagrams that were
+     * handled alone.
+     * @return histogram of the batch sizes.
+     */
+    public long[] getBatchSizeHistogram() {
+        long histogram[] = new long[BATCH_SIZE_BUCKETS];
+        NioBindingWorker current[] = workers;
+        if (current!=null) {
+            for (NioBindingWorker worker : current) {
+                for (int i=0; i<histogram.length; i++) histogram[i] += worker.getBatchSizes(i);
+            }
+        }
+        return histogram;
+    }
+
+    static int batchSizeBucket(int size) {
+        return 31 - Integer.numberOfLeadingZeros(size);
+    }
+
+    /**
+     * @return the port the alternate port sockets are bound to, 0 if the service is not started.
+     */
+    public int getAlternatePort() {return boundAlternatePort;}
+
+    /**
+     * Start the service. All the sockets used to answer requests, including
+     * the ones used for CHANGE-REQUEST answers, are bound here and kept open
+     * until {@link #stop()}:
+     * <ul>
+     * <li>primary address and primary port,</li>
+     * <li>primary address and alternate port (an ephemeral port if no alternate port is set),</li>
+     * <li>alternate address and primary port,</li>
+     * <li>alternate address and alternate port.</li>
+     * </ul>
+     * The last two are only bound when the alternate address belongs to this
+     * host. Otherwise a change address request is forwarded to the STUN server
+     * on the alternate address, which sends the answer to the client.
+     */
     public void start() {
         if (running) return;
-        thread = new Thread(this, "Binding Service Thread");
-        thread.setUncaughtExceptionHandler(this);
+        if (engine==Engine.NIO) {
+            startNio();
+            return;
+        }
+
+        DatagramSocket newSockets[] = new DatagramSocket[ROLES];
+        try {
+            InetSocketAddress addresses[] = bindAddresses(alternatePort);
+            for (int role=0; role<ROLES; role++) {
+                if (addresses[role]==null) continue;
+                newSockets[role] = new DatagramSocket(addresses[role]);
+                newSockets[role].setSoTimeout(1000);
+            }
+        } catch (SocketException ex) {
+            Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+            for (DatagramSocket socket : newSockets) if (socket!=null) socket.close();
+            return;
+        }
+        sockets = newSockets;
+        boundAlternatePort = sockets[ALTERNATE_PORT].getLocalPort();
+        boundRoles = 0;
+        for (int role=0; role<ROLES; role++) if (sockets[role]!=null) boundRoles |= 1<<role;
+
+        threads = new Thread[ROLES];
+        threads[PRIMARY] = new Thread(this, "Binding Service Thread");
+        for (int role=1; role<ROLES; role++) {
+            if (sockets[role]==null) continue;
+            final int receiveRole = role;
+            threads[role] = new Thread(new Runnable() {
+                public void run() {
+                    receive(receiveRole);
+                }
+            }, "Binding Service Thread-"+role);
+        }
+        startVerifier();
+        running = true;
+        for (Thread thread : threads) {
+            if (thread==null) continue;
+            thread.setUncaughtExceptionHandler(this);
+            thread.start();
+        }
+    }
+
+    private void startNio() {
+        int threadCount = workerThreads;
+        boolean reusePort = NioBindingWorker.isReusePortSupported();
+        if (!reusePort && threadCount > 1) {
+            Logger.getLogger(BindingService.class.getName()).log(Level.WARNING, "SO_REUSEPORT is not supported on this platform, the NIO engine will use one worker thread");
+            threadCount = 1;
+        }
+
+        NioBindingWorker newWorkers[] = new NioBindingWorker[threadCount];
+        try {
+            newWorkers[0] = new NioBindingWorker(this, bindAddresses(alternatePort), reusePort, batchSize);
+            //The following workers must share an ephemeral alternate port with the first one
+            InetSocketAddress addresses[] = bindAddresses(newWorkers[0].getLocalPort(ALTERNATE_PORT));
+            for (int i=1; i<threadCount; i++) newWorkers[i] = new NioBindingWorker(this, addresses, reusePort, batchSize);
+        } catch (IOException ex) {
+            Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+            for (NioBindingWorker worker : newWorkers) if (worker!=null) worker.close();
+            return;
+        }
+        workers = newWorkers;
+        boundAlternatePort = workers[0].getLocalPort(ALTERNATE_PORT);
+        boundRoles = workers[0].getBoundRoles();
+        if (debug) logStartParameters();
+
+        startVerifier();
+        running = true;
+        Thread newThreads[] = new Thread[workers.length];
+        for (int i=0; i<workers.length; i++) {
+            newThreads[i] = new Thread(workers[i], "Binding Service Worker-"+i);
+            newThreads[i].setUncaughtExceptionHandler(this);
+        }
+        nioThreads = newThreads;
+        for (Thread workerThread : newThreads) workerThread.start();
+    }
+
+    /**
+     * @param altPort the alternate port to bind, 0 for an ephemeral port.
+     * @return the addresses to bind indexed by role, null for the roles not used.
+     */
+    private InetSocketAddress[] bindAddresses(int altPort) {
+        InetSocketAddress addresses[] = new InetSocketAddress[ROLES];
+        addresses[PRIMARY] = new InetSocketAddress(localAddress, localPort);
+        addresses[ALTERNATE_PORT] = new InetSocketAddress(localAddress, altPort);
+        if (alternateAddress!=null && isLocalAddress(alternateAddress)) {
+            addresses[ALTERNATE_ADDRESS] = new InetSocketAddress(alternateAddress, localPort);
+            //An ephemeral port can not be shared between two addresses
+            if (altPort!=0) addresses[ALTERNATE_ADDRESS_AND_PORT] = new InetSocketAddress(alternateAddress, altPort);
+        }
+        return addresses;
+    }
+
+    private static boolean isLocalAddress(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress()) return true;
         try {
-            receiveSocket = new DatagramSocket(localPort, localAddress);
-            receiveSocket.setSoTimeout(1000);
+            return NetworkInterface.getByInetAddress(address)!=null;
         } catch (SocketException ex) {
-             Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
-             return;
+            return false;
+        }
+    }
+
+    boolean isBound(int role) {return (boundRoles & (1<<role))!=0;}
+
+    /**
+     * @return the receive threads of the engine in use, or an empty array if the service has not been started.
+     */
+    Thread[] getReceiveThreads() {
+        Thread current[] = engine==Engine.NIO ? nioThreads : threads;
+        if (current==null) return new Thread[0];
+        List<Thread> list = new ArrayList<Thread>();
+        for (Thread thread : current) if (thread!=null) list.add(thread);
+        return list.toArray(new Thread[list.size()]);
+    }
+
+    /**
+     * The bytes held by the preallocated receive and send buffers of the
+     * engine and the verifier threads. The buffers are allocated when the
+     * service starts and reused for every datagram.
+     * @return number of bytes.
+     */
+    public long getBufferBytes() {
+        long bytes = 0;
+        NioBindingWorker current[] = workers;
+        if (engine==Engine.NIO && current!=null) {
+            int bufferSize = batchSize==1 ? BindingContext.BUFFER_SIZE : BindingContext.BATCH_BUFFER_SIZE;
+            bytes += 2L*bufferSize*batchSize*current.length;
+        }
+        else if (engine==Engine.SOCKET && running) {
+            bytes += 2L*BindingContext.BUFFER_SIZE*Integer.bitCount(boundRoles);
         }
-        thread.start();
+        ThreadPoolExecutor pool = verifier;
+        if (pool!=null) bytes += 2L*BindingContext.BATCH_BUFFER_SIZE*pool.getPoolSize();
+        return bytes;
     }
 
+    /**
+     * Record the answer held by a context in the packet capture, if capturing.
+     * Called by the engines right before the answer is sent.
+     * @param context
+     */
+    void captureSent(BindingContext context) {
+        PacketCapture currentCapture = capture;
+        if (currentCapture!=null) currentCapture.record(context.sendBuffer, roleAddress(context.sendFrom), rolePort(context.sendFrom), context.returnAddress, context.returnPort);
+    }
+
+    /**
+     * Start or stop recording the datagrams received and sent. The capture
+     * may be set while the service is running.
+     * @param arg0 the capture to record into, null to stop capturing (default null).
+     */
+    public void setPacketCapture(PacketCapture arg0) {capture = arg0;}
+    public PacketCapture getPacketCapture() {return capture;}
+
+    /**
+     * Write the datagrams recorded by the packet capture to a pcap file.
+     * @param file
+     * @return number of datagrams written.
+     * @throws IOException
+     * @throws IllegalStateException if the service is not capturing.
+     */
+    public int dumpPacketCapture(File file) throws IOException {
+        PacketCapture currentCapture = capture;
+        if (currentCapture==null) throw new IllegalStateException("The packet capture is not enabled");
+        return currentCapture.dump(file);
+    }
+
+    /**
+     * Count a failed receive or send of an engine.
+     */
+    void countSocketError() {socketErrors.increment();}
+
     public void stop() {
         running = false;
-        thread.interrupt();
-        synchronized (receiveSocket) {
-            receiveSocket.notifyAll();
+        if (threads!=null) {
+            for (Thread thread : threads) if (thread!=null) thread.interrupt();
+        }
+        if (workers!=null) {
+            for (NioBindingWorker worker : workers) worker.wakeup();
         }
+        stopVerifier();
+        closeSharedSecretConnectionPool();
     }
 
-    public void run() {
-        if (debug) {
-        	StringBuilder logStr = new StringBuilder("\nBinding-Service starts with following parameters:");
-        	logStr.append("\n- Servic address: "+localAddress+":"+localPort);
-        	logStr.append("\n- Public address: "+publicAddress.getHostAddress());
-        	logStr.append("\n- Alternative servic address: "+alternateAddress+":"+alternatePort);
-            if (sharedSecretService!=null) {
-            	logStr.append("\n- Using Shared Secret by argument");
+    private void startVerifier() {
+        if (sharedSecretService!=null || sharedSecretServiceAddress==null) return;
+        final AtomicInteger count = new AtomicInteger();
+        verifier = new ThreadPoolExecutor(verifierThreads, verifierThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxPendingVerifications), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread verifierThread = new Thread(r, "Binding Service Verifier-"+count.getAndIncrement());
+                verifierThread.setDaemon(true);
+                verifierThread.setUncaughtExceptionHandler(BindingService.this);
+                return verifierThread;
             }
-            if (sharedSecretServiceAddress!=null) {
-            	logStr.append("\n- Using Shared Secret with address: "+sharedSecretServiceAddress);
-            }
-            Logger.getLogger(BindingService.class.getName()).log(Level.INFO, logStr.toString());
-        }
-        byte[] buf = new byte[0xffff+20];
+        });
+    }
+
+    private void stopVerifier() {
+        ThreadPoolExecutor pool = verifier;
+        verifier = null;
+        if (pool!=null) pool.shutdownNow();
+    }
+
+    public void run() {
+        if (debug) logStartParameters();
+        receive(PRIMARY);
+    }
+
+    /**
+     * The receive loop of the socket engine for one of the sockets.
+     * @param role the socket to receive on.
+     */
+    private void receive(int role) {
+        DatagramSocket socket = sockets[role];
+        BindingContext context = new BindingContext(false);
+        byte[] buf = context.receiveBuffer.array();
         DatagramPacket recDatagramPacket = new DatagramPacket(buf, buf.length);
 
         running = true;
         while (running) {
             try {
                 try {
-                    receiveSocket.receive(recDatagramPacket);
+                    recDatagramPacket.setLength(buf.length);
+                    socket.receive(recDatagramPacket);
                 } catch (SocketTimeoutException ignore) {
                     continue;
                 } catch (IOException ex) {
-                    Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+                    if (running) {
+                        socketErrors.increment();
+                        Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+                    }
                     break;
                 }
                 if (!running) break;
 
-                response(receiveSocket, recDatagramPacket);
+                response(role, recDatagramPacket, context);
             } catch (RuntimeException ex) {
                  Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-        receiveSocket.close();
+        socket.close();
         running = false;
         if (debug) {
             Logger.getLogger(BindingService.class.getName()).log(Level.INFO, "Service thread stopped");
         }
     }
 
-    private void response(DatagramSocket socket, DatagramPacket receivedDatagramPacket) {
-        InetAddress clientAddr = receivedDatagramPacket.getAddress();
-        int clientPort = receivedDatagramPacket.getPort();
-        
-        DatagramSocket alternativePortSocket = null;
+    private void logStartParameters() {
+        StringBuilder logStr = new StringBuilder("\nBinding-Service starts with following parameters:");
+        logStr.append("\n- Servic address: "+localAddress+":"+localPort);
+        logStr.append("\n- Public address: "+publicAddress.getHostAddress());
+        logStr.append("\n- Alternative servic address: "+alternateAddress+":"+boundAlternatePort);
+        if (alternateAddress!=null && !isBound(ALTERNATE_ADDRESS)) {
+            logStr.append(" (change address requests are forwarded)");
+        }
+        logStr.append("\n- Engine: "+engine);
+        if (engine==Engine.NIO) {
+            logStr.append("\n- Worker threads: "+workers.length);
+            logStr.append("\n- Batch size: "+batchSize);
+        }
+        if (sharedSecretService!=null) {
+            logStr.append("\n- Using Shared Secret by argument");
+        }
+        if (sharedSecretServiceAddress!=null) {
+            logStr.append("\n- Using Shared Secret with address: "+sharedSecretServiceAddress);
+        }
+        Logger.getLogger(BindingService.class.getName()).log(Level.INFO, logStr.toString());
+    }
+
+    private void response(int role, DatagramPacket receivedDatagramPacket, BindingContext context) {
+        ByteBuffer data = context.receiveBuffer;
+        data.limit(receivedDatagramPacket.getLength());
+        data.position(0);
+        if (!answer(data, receivedDatagramPacket.getAddress(), receivedDatagramPacket.getPort(), role, context)) return;
 
         try {
-            MessageHeader receivedHeader = MessageHeader.create(receivedDatagramPacket.getData());
-            if (debug) Logger.getLogger(BindingService.class.getName()).log(Level.INFO, "Received request from "+clientAddr+":"+clientPort+" => "+receivedHeader);
-            
-            MessageHeader returnHeader;
-            if (receivedHeader.getType()!=HeaderType.BINDING_RESPONSE) { // This message there has been forwarded to us, send it back to the client!
-            	returnHeader = receivedHeader;
-            	returnHeader.setChangeAddress(false); //Make sure we do not loop this message, but sent it back to the client
-            	MessageAttribute mappedAddress = receivedHeader.getMessageAttribute(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS);
-            	if (mappedAddress==null) return; // We do not know to who to response
-            	clientAddr = mappedAddress.getAddress();
-            	clientPort = mappedAddress.getPort();
-            }
-            else if (receivedHeader.getType()==HeaderType.BINDING_REQUEST) {
-                returnHeader = createResponse(receivedHeader, clientAddr, clientPort);
-            }
-            else return; //If not Binding Request I will not response
-
-            //MessageAttribute changeRequest = receivedHeader.getMessageAttribute(MessageAttribute.MessageAttributeType.CHANGE_REQUEST);
-            //if (changeRequest==null) return; //If not a Change Request I will not response!
-
-            //Create return header.
-            if (returnHeader==null) return; //We will not response
-            
-            byte buffer[];
-            
-            if (returnHeader.changeAddress()) {
-            	if (alternateAddress==null || alternatePort==0) {
-            		StringBuilder msg = new StringBuilder("A change address request was received");
-            		msg.append("\nAlternated address or port is not set => "+alternateAddress+":"+alternatePort);
-            		msg.append("\nThis server will wrongly response on the NIC and address the message was resived on.");
-            		Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, msg.toString());
-            	}
-            	else {
-	            	//TODO: to be tested
-	            	MessageAttribute responseAddress = receivedHeader.getMessageAttribute(MessageAttribute.MessageAttributeType.RESPONSE_ADDRESS);
-	            	if (responseAddress!=null) 
-	            		returnHeader.addMessageAttribute(responseAddress); //We need to have this with us for the forwarder even it is no applicable in a binding response
-	            	buffer = returnHeader.toBytes();
-	            	
-	            	DatagramPacket out = new DatagramPacket(buffer, buffer.length, alternateAddress, alternatePort);
-	                alternativePortSocket = new DatagramSocket();
-	                alternativePortSocket.send(out);
-	                return;
-            	}
-            }
-            buffer = returnHeader.toBytes();
-
-            //Does the client want the response on a different address or port?
-            InetAddress returnAddr = clientAddr;
-            int returnPort = clientPort;
-            MessageAttribute responseAddress = receivedHeader.getMessageAttribute(MessageAttribute.MessageAttributeType.RESPONSE_ADDRESS);
-            if (responseAddress!=null) {
-                returnAddr = responseAddress.getAddress();
-                returnPort = responseAddress.getPort();
-            }
-            if (debug) Logger.getLogger(BindingService.class.getName()).log(Level.INFO, "Responding to "+returnAddr+":"+returnPort+" with => "+returnHeader);
-            DatagramPacket out = new DatagramPacket(buffer, buffer.length, returnAddr, returnPort);
-            if (returnHeader.changePort()) {
-                //Create a new socket to change origin port
-                alternativePortSocket = new DatagramSocket();
-                alternativePortSocket.send(out);
-            }
-            else {
-                //Use the same port we received on
-                socket.send(out);
+            send(context);
+        } catch (IOException ex) {
+            socketErrors.increment();
+            Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Send the answer held by a context with the socket engine, or from any
+     * thread when it has been completed outside a receive thread.
+     * @param context
+     * @throws IOException
+     */
+    private void send(BindingContext context) throws IOException {
+        captureSent(context);
+        if (engine==Engine.NIO) {
+            workers[0].send(context.sendFrom, context.sendBuffer, new InetSocketAddress(context.returnAddress, context.returnPort));
+            return;
+        }
+        ByteBuffer out = context.sendBuffer;
+        DatagramPacket sendPacket = context.sendPacket;
+        sendPacket.setData(out.array(), out.position(), out.remaining());
+        sendPacket.setAddress(context.returnAddress);
+        sendPacket.setPort(context.returnPort);
+        sockets[context.sendFrom].send(sendPacket);
+    }
+
+    /**
+     * Build the answer to a received datagram. This method is used by all the
+     * engines and must be thread safe. On the path for a Binding Request
+     * without Shared Secret no objects are created: the request is read
+     * through {@link BindingContext#request} and the answer written by
+     * {@link BindingContext#writer} into {@link BindingContext#sendBuffer}.
+     * @param data buffer holding the received datagram between its position and limit.
+     * @param clientAddr address the datagram was received from.
+     * @param clientPort port the datagram was received from.
+     * @param receivedOn role of the socket the datagram was received on, e.g. {@link #PRIMARY}.
+     * @param context will on return contain the answer and where and how it has to be sent.
+     * @return false if the request should not be answered.
+     */
+    boolean answer(ByteBuffer data, InetAddress clientAddr, int clientPort, int receivedOn, BindingContext context) {
+        long start = System.nanoTime();
+        PacketCapture currentCapture = capture;
+        if (currentCapture!=null) currentCapture.record(data, clientAddr, clientPort, roleAddress(receivedOn), rolePort(receivedOn));
+        boolean answered = buildAnswer(data, clientAddr, clientPort, receivedOn, context);
+        processingTime.record(System.nanoTime()-start);
+        return answered;
+    }
+
+    private boolean buildAnswer(ByteBuffer data, InetAddress clientAddr, int clientPort, int receivedOn, BindingContext context) {
+        context.reset();
+        context.sendFrom = receivedOn;
+        StunMessageView request = context.request;
+        if (!request.wrap(data)) { //Not a STUN message
+            malformedPackets.increment();
+            return false;
+        }
+        boolean traced = tracer.sample(clientAddr);
+        if (traced) tracer.trace("Received request from", clientAddr, clientPort, data);
+
+        StunMessageWriter writer = context.writer;
+        writer.wrap(context.sendBuffer);
+        if (request.getType()==MessageHeader.BINDING_RESPONSE) { // This message there has been forwarded to us, send it back to the client!
+            forwardedResponses.increment();
+            int addressType = MessageAttribute.RESPONSE_ADDRESS;
+            if (!request.hasAddress(addressType)) addressType = MessageAttribute.MAPPED_ADDRESS;
+            if (!request.hasAddress(addressType)) return false; // We do not know to who to response
+            context.returnAddress = request.getAddress(addressType);
+            context.returnPort = request.getPort(addressType);
+            writer.putMessage(request);
+        }
+        else if (request.getType()==MessageHeader.BINDING_REQUEST) {
+            bindingRequests.increment();
+            int errorCode = controllMessageIntegrity(request, context);
+            if (errorCode==VERIFY_REMOTELY) {
+                ThreadPoolExecutor pool = verifier;
+                if (pool==null) errorCode = verifyRemotely(request, context); //Not started, e.g. called by a test
+                else if (verifyLater(pool, data, clientAddr, clientPort, receivedOn, traced)) return false; //Answered by the verifier
+                else errorCode = 500;
             }
+            answerBindingRequest(request, clientAddr, clientPort, receivedOn, errorCode, context);
+        }
+        else { //If not Binding Request I will not response
+            otherRequests.increment();
+            return false;
+        }
+
+        writer.finish();
+        if (traced) tracer.trace("Responding to", context.returnAddress, context.returnPort, context.sendBuffer);
+        return true;
+    }
+
+    /**
+     * Hand a request to the verifier threads. The receive buffer is reused
+     * as soon as the receive thread moves on, so the request is copied.
+     * @return false if too many requests are already waiting to be verified.
+     */
+    private boolean verifyLater(ThreadPoolExecutor pool, ByteBuffer data, final InetAddress clientAddr, final int clientPort, final int receivedOn, final boolean traced) {
+        final byte message[] = new byte[data.remaining()];
+        data.duplicate().get(message);
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    completeVerification(message, clientAddr, clientPort, receivedOn, traced);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            rejectedVerifications.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Verify a request with the remote Shared Secret service and send the
+     * answer. Runs on a verifier thread.
+     */
+    private void completeVerification(byte message[], InetAddress clientAddr, int clientPort, int receivedOn, boolean traced) {
+        BindingContext context = verifierContext.get();
+        context.reset();
+        context.sendFrom = receivedOn;
+        StunMessageView request = context.request;
+        if (!request.wrap(ByteBuffer.wrap(message))) return;
+        context.writer.wrap(context.sendBuffer);
+        int errorCode = verifyRemotely(request, context);
+        if (!running) return;
+        answerBindingRequest(request, clientAddr, clientPort, receivedOn, errorCode, context);
+        context.writer.finish();
+        if (traced) tracer.trace("Responding to", context.returnAddress, context.returnPort, context.sendBuffer);
+        try {
+            send(context);
         } catch (IOException ex) {
+            socketErrors.increment();
             Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
-            if (alternativePortSocket!=null) alternativePortSocket.close();
         }
     }
 
-    private MessageHeader createResponse(MessageHeader receivedHeader, InetAddress clientAddr, int clientPort) {
-        MessageHeader returnHeader = new MessageHeader();
-        byte password[] = controllMessageIntegrity(receivedHeader, returnHeader);
-        if (returnHeader.getType()!=MessageHeader.HeaderType.NOT_KNOWN) return returnHeader; //Failed Message Integrity check and contain an error response!
+    private void answerBindingRequest(StunMessageView request, InetAddress clientAddr, int clientPort, int receivedOn, int errorCode, BindingContext context) {
+        //Does the client want the response on a different address or port?
+        context.returnAddress = clientAddr;
+        context.returnPort = clientPort;
+        if (request.hasAddress(MessageAttribute.RESPONSE_ADDRESS)) {
+            context.returnAddress = request.getAddress(MessageAttribute.RESPONSE_ADDRESS);
+            context.returnPort = request.getPort(MessageAttribute.RESPONSE_ADDRESS);
+        }
+        createResponse(request, clientAddr, clientPort, receivedOn, errorCode, context);
+        if (errorCode==0) {
+            responses.increment();
+            return;
+        }
+        errorResponses.increment(errorCode);
+        if (errorCode==401 || (errorCode>=430 && errorCode<=432)) integrityFailures.increment();
+    }
+
+    private void createResponse(StunMessageView request, InetAddress clientAddr, int clientPort, int receivedOn, int errorCode, BindingContext context) {
+        StunMessageWriter writer = context.writer;
+        if (errorCode!=0) {
+            //Failed Message Integrity check, answer with an error response!
+            writer.putHeader(MessageHeader.BINDING_ERROR_RESPONSE, request);
+            writer.putAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(errorCode), errorCode));
+            return;
+        }
 
-        returnHeader = new MessageHeader(MessageHeader.HeaderType.BINDING_RESPONSE);
-        returnHeader.setTransactionId(receivedHeader.getTransactionId());
+        writer.putHeader(MessageHeader.BINDING_RESPONSE, request);
 
         //Mapped Address attribute
-        MessageAttribute attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS, clientAddr, clientPort);
-        returnHeader.addMessageAttribute(attr);
+        writer.putAddress(MessageAttribute.MAPPED_ADDRESS, clientAddr, clientPort);
 
-        if (receivedHeader.getMessageAttribute(MessageAttribute.MessageAttributeType.RESPONSE_ADDRESS)!=null) {
+        if (request.hasAttribute(MessageAttribute.RESPONSE_ADDRESS)) {
             //Reflected from attribute
-            attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.REFLECTED_FROM, clientAddr, clientPort);
-            returnHeader.addMessageAttribute(attr);
+            writer.putAddress(MessageAttribute.REFLECTED_FROM, clientAddr, clientPort);
         }
 
-        //Change Address attribute
-        if (alternateAddress!=null) {
-            attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.CHANGED_ADDRESS, alternateAddress, alternatePort);
+        //Change Address attribute, where we would answer from if both address and port was changed
+        int changedRole = receivedOn ^ ALTERNATE_ADDRESS_AND_PORT;
+        writer.putAddress(MessageAttribute.CHANGED_ADDRESS, roleAddress(changedRole), rolePort(changedRole));
+
+        //Find the socket to answer from
+        int changeRequest = request.getChangeRequest();
+        if ((changeRequest & 0x06)==0x06) changeBothRequests.increment();
+        else if ((changeRequest & 0x04)!=0) changeAddressRequests.increment();
+        else if ((changeRequest & 0x02)!=0) changePortRequests.increment();
+        int sendRole = receivedOn;
+        if ((changeRequest & 0x02)!=0) sendRole ^= ALTERNATE_PORT;
+        if ((changeRequest & 0x04)!=0) sendRole ^= ALTERNATE_ADDRESS;
+
+        if (!isBound(sendRole) && (sendRole & ALTERNATE_ADDRESS)!=0 && alternateAddress!=null && alternatePort!=0) {
+            //The alternate address belongs to another STUN server. It sends the response back
+            //to the client and needs the response address with it, even it is no applicable in a binding response
+            writer.putAddress(MessageAttribute.SOURCE_ADDRESS, roleAddress(sendRole), rolePort(sendRole));
+            writer.putAddress(MessageAttribute.RESPONSE_ADDRESS, context.returnAddress, context.returnPort);
+            context.returnAddress = alternateAddress;
+            context.returnPort = alternatePort;
+            context.sendFrom = sendRole & ALTERNATE_PORT;
         }
         else {
-            attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.CHANGED_ADDRESS, publicAddress, localPort);
-        }
-        returnHeader.addMessageAttribute(attr);
-
-        //Source Address attribute
-        MessageAttribute changeRequest = receivedHeader.getMessageAttribute(MessageAttribute.MessageAttributeType.CHANGE_REQUEST);
-        InetAddress respAddr;
-        int respPort;
-        if (changeRequest!=null) {
-            if (changeRequest.changeAddress()) {
-                if (alternateAddress==null) respAddr = publicAddress;
-                else respAddr = alternateAddress;
-                returnHeader.setChangeAddress(true);
+            if (!isBound(sendRole)) {
+                StringBuilder msg = new StringBuilder("A change address request was received");
+                msg.append("\nAlternated address or port is not set => "+alternateAddress+":"+alternatePort);
+                msg.append("\nThis server will wrongly response on the NIC and address the message was resived on.");
+                Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, msg.toString());
+                sendRole = (sendRole & ALTERNATE_PORT) | (receivedOn & ALTERNATE_ADDRESS);
+                if (!isBound(sendRole)) sendRole = receivedOn;
             }
-            else respAddr = publicAddress;
-            if (changeRequest.changePort()) {
-                if (alternatePort==0) respPort = localPort;
-                else respPort = alternatePort;
-                returnHeader.setChangePort(true);
-            }
-            else respPort = localPort;
-        }
-        else {
-            respAddr = publicAddress;
-            respPort = localPort;
+            //Source Address attribute
+            writer.putAddress(MessageAttribute.SOURCE_ADDRESS, roleAddress(sendRole), rolePort(sendRole));
+            context.sendFrom = sendRole;
         }
-        attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.SOURCE_ADDRESS, respAddr, respPort);
-        returnHeader.addMessageAttribute(attr);
-        
-        if (password!=null) {
-            try {
-                MessageAttribute messageIntegrityAttr = MessageAttribute.create(MessageAttribute.MessageAttributeType.MESSAGE_INTEGRITY, password, returnHeader.toBytes());
-                returnHeader.addMessageAttribute(messageIntegrityAttr);
-            } catch (IOException ex) {
-                Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
-                MessageAttribute errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(500), 500);
-                returnHeader = new MessageHeader(MessageHeader.HeaderType.BINDING_ERROR_RESPONSE);
-                returnHeader.addMessageAttribute(errorCode);
-                returnHeader.setTransactionId(receivedHeader.getTransactionId());
-            }
+
+        if (context.key!=null) {
+            writer.putMessageIntegrity(context.key);
         }
+    }
+
+    /**
+     * @param role
+     * @return the address announced for a socket role.
+     */
+    private InetAddress roleAddress(int role) {
+        if ((role & ALTERNATE_ADDRESS)!=0 && alternateAddress!=null) return alternateAddress;
+        return publicAddress;
+    }
 
-        return returnHeader;
+    /**
+     * @param role
+     * @return the port of a socket role.
+     */
+    private int rolePort(int role) {
+        if ((role & ALTERNATE_PORT)!=0) return boundAlternatePort;
+        return localPort;
     }
 
     /**
@@ -299,58 +958,125 @@ public class BindingService implements Runnable,UncaughtExceptionHandler {
      */
     public void setPublicAddress(InetAddress address) {publicAddress = address;}
 
-    public void setDebug(boolean on) {debug = on;}
+    /**
+     * Turn the start up logs and the tracing of the requests on or off. The
+     * requests traced are selected by the {@link #getTracer() tracer}, by
+     * default all of them.
+     * @param on
+     */
+    public void setDebug(boolean on) {
+        debug = on;
+        tracer.setEnabled(on);
+    }
+    public boolean isDebug() {return debug;}
+
+    /**
+     * @return the tracer of the received requests and their answers.
+     */
+    public Tracer getTracer() {return tracer;}
 
 
 
 
 
 
-    private byte[] controllMessageIntegrity(MessageHeader receivedHeader, MessageHeader returnHeader) {
-        byte password[] = null;
+    /**
+     * Verify the MESSAGE-INTEGRITY of a request when the service use Shared Secret.
+     * On success the key to sign the answer with is left in {@link BindingContext#key}.
+     * Only the checks that can be done without waiting for a remote Shared Secret
+     * service are done here.
+     * @param request
+     * @param context
+     * @return 0 if the request may be answered, {@link #VERIFY_REMOTELY} if the
+     * request must be verified by {@link #verifyRemotely}, else the error code to answer with.
+     */
+    private int controllMessageIntegrity(StunMessageView request, BindingContext context) {
+        if (sharedSecretService==null && sharedSecretServiceAddress==null) return 0;
+
         if (sharedSecretService!=null) {
-            int errorInt = sharedSecretService.controllMessageIntegrity(receivedHeader);
-            if (errorInt!=0) {
-                returnHeader.setType(MessageHeader.HeaderType.BINDING_ERROR_RESPONSE);
-                MessageAttribute errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(errorInt), errorInt);
-                returnHeader.addMessageAttribute(errorCode);
-                returnHeader.setTransactionId(receivedHeader.getTransactionId());
-                return null;
+            int errorInt = sharedSecretService.controllMessageIntegrity(request);
+            if (errorInt!=0) return errorInt;
+            context.key = sharedSecretService.getKey(request);
+            return 0;
+        }
+
+        //The same answers as the Shared Secret service would give
+        if (!request.hasAttribute(MessageAttribute.USERNAME)) return 432;
+        if (!request.hasAttribute(MessageAttribute.MESSAGE_INTEGRITY)) return 401;
+
+        //A credential verified before can be checked here, without asking the Shared Secret service
+        CredentialCache cache = credentialCache;
+        if (cache!=null) {
+            String username = request.getUsername();
+            HmacKey key = username==null ? null : cache.get(username, System.currentTimeMillis());
+            if (key!=null) {
+                int errorInt = request.integrityCheck(key);
+                if (errorInt!=0) return errorInt;
+                context.key = key;
+                return 0;
             }
-            password = sharedSecretService.getPassword(receivedHeader);
         }
-        else if (sharedSecretServiceAddress!=null) {
-            SSLSocket sslSocket = null;
-            try {
-                SSLSocketFactory sslFactory = (SSLSocketFactory)SSLSocketFactory.getDefault();
-                sslSocket = (SSLSocket)sslFactory.createSocket(sharedSecretServiceAddress, sharedSecretServicePort);
-                sslSocket.startHandshake();
-
-                MessageHeader head = new MessageHeader(receivedHeader);
-                head.setType(MessageHeader.HeaderType.SHARED_SECRET_VERIFY_REQUEST);
-                head = Utils.socketSendRecive(sslSocket, head);
-                MessageAttribute errorCode = head.getMessageAttribute(MessageAttribute.MessageAttributeType.ERROR_CODE);
-                MessageAttribute passwordAttr = head.getMessageAttribute(MessageAttribute.MessageAttributeType.PASSWORD);
-
-                if (passwordAttr==null && errorCode==null) {
-                    errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(600), 600);
-                }
+        return VERIFY_REMOTELY;
+    }
 
-                if (errorCode!=null) {
-                    returnHeader.setType(MessageHeader.HeaderType.BINDING_ERROR_RESPONSE);
-                    returnHeader.addMessageAttribute(errorCode);
-                    returnHeader.setTransactionId(receivedHeader.getTransactionId());
-                    return null;
-                }
+    /**
+     * Verify the MESSAGE-INTEGRITY of a request with the remote Shared Secret service.
+     * On success the key to sign the answer with is left in {@link BindingContext#key}.
+     * @param request
+     * @param context
+     * @return 0 if the request may be answered, else the error code to answer with.
+     */
+    private int verifyRemotely(StunMessageView request, BindingContext context) {
+        MessageHeader receivedHeader;
+        try {
+            receivedHeader = request.toMessageHeader();
+        } catch (IOException ex) {
+            return 400;
+        }
 
-                password = passwordAttr.getPassword();
-            } catch (IOException ex) {
-                Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
-            } finally {
-                if (sslSocket!=null) try{sslSocket.close();}catch(IOException ignore){}
+        try {
+            MessageHeader head = new MessageHeader(receivedHeader);
+            head.setType(MessageHeader.HeaderType.SHARED_SECRET_VERIFY_REQUEST);
+            head = getSharedSecretConnectionPool().exchange(head);
+            MessageAttribute errorCode = head.getMessageAttribute(MessageAttribute.MessageAttributeType.ERROR_CODE);
+            MessageAttribute passwordAttr = head.getMessageAttribute(MessageAttribute.MessageAttributeType.PASSWORD);
+            MessageAttribute lifetimeAttr = head.getMessageAttribute(MessageAttribute.MessageAttributeType.LIFETIME);
+
+            if (errorCode!=null) return errorCode.getErrorCode();
+            if (passwordAttr==null) return 600;
+
+            context.key = new HmacKey(passwordAttr.getPassword());
+            CredentialCache cache = credentialCache;
+            String username = request.getUsername();
+            if (cache!=null && username!=null) {
+                long now = System.currentTimeMillis();
+                //A Shared Secret service not sending the lifetime gives no bound but the time to live
+                long expires = lifetimeAttr==null ? Long.MAX_VALUE : now + lifetimeAttr.getLifetime()*1000;
+                cache.put(username, context.key, now, expires);
             }
+            return 0;
+        } catch (IOException ex) {
+            if (running) Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+            return 500;
         }
-        return password;
+    }
+
+    private synchronized SharedSecretConnectionPool getSharedSecretConnectionPool() {
+        if (sharedSecretConnectionPool==null) sharedSecretConnectionPool = new SharedSecretConnectionPool(sharedSecretServiceAddress, sharedSecretServicePort, sharedSecretConnections, sharedSecretTimeout);
+        return sharedSecretConnectionPool;
+    }
+
+    /**
+     * @return number of TLS connections opened to the remote Shared Secret service.
+     */
+    synchronized long getSharedSecretConnects() {
+        if (sharedSecretConnectionPool==null) return 0;
+        return sharedSecretConnectionPool.getConnects();
+    }
+
+    private synchronized void closeSharedSecretConnectionPool() {
+        if (sharedSecretConnectionPool!=null) sharedSecretConnectionPool.close();
+        sharedSecretConnectionPool = null;
     }
 
 
@@ -0,0 +1,115 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The management interface of a {@link BindingService}, registered with
+ * {@link BindingService#registerMBean()}. The counters are read from the
+ * {@link Metrics} of the service. The rates and the utilization are measured
+ * between two reads at least a second apart, so a monitoring tool polling the
+ * attributes gets the values of its last poll interval.
+ *
+ * @author Henrik Baastrup
+ */
+public interface BindingServiceMXBean {
+    boolean isRunning();
+    String getEngine();
+    int getWorkerThreads();
+    int getBatchSize();
+
+    /** @return Binding Requests received. */
+    long getRequests();
+    /** @return Binding Responses sent. */
+    long getResponses();
+    /** @return Binding Error Responses sent. */
+    long getErrorResponses();
+    /** @return Binding Requests rejected with a 401, 430, 431 or 432. */
+    long getIntegrityFailures();
+    /** @return datagrams dropped because they are not STUN messages. */
+    long getMalformedPackets();
+    /** @return failed receives and sends. */
+    long getSocketErrors();
+    /** @return Binding Requests with a CHANGE-REQUEST. */
+    long getChangeRequests();
+    /** @return all the counters and gauges of the service by name and label. */
+    Map<String, Long> getCounters();
+
+    /** @return Binding Requests received per second. */
+    double getRequestRate();
+    /** @return Binding Error Responses sent per second. */
+    double getErrorRate();
+    /** @return the share of the time the receive threads were running on a CPU, between 0 and 1, or -1 if the JVM does not measure thread CPU time. */
+    double getWorkerUtilization();
+
+    double getProcessingTimeMean();
+    /** @return median time in nanoseconds to handle a datagram. */
+    long getProcessingTimeP50();
+    long getProcessingTimeP99();
+    long getProcessingTimeMax();
+
+    int getPendingVerifications();
+    long getRejectedVerifications();
+    int getCachedCredentials();
+    long getCredentialCacheHits();
+    long getCredentialCacheMisses();
+
+    /** @return bytes held by the preallocated buffers of the service. */
+    long getBufferBytes();
+    /** @return the share of the batch slots used per receive batch of the NIO engine, between 0 and 1. */
+    double getBatchFill();
+
+    int getCredentialCacheSize();
+    /** Resize the credential cache, the cached credentials are dropped. 0 disables the cache. */
+    void setCredentialCacheSize(int arg0);
+    long getCredentialCacheTtl();
+    /** Set the time in milliseconds a credential is cached, the cached credentials are dropped. */
+    void setCredentialCacheTtl(long arg0);
+    boolean isDebug();
+    void setDebug(boolean arg0);
+
+    /** @return true if the sampled requests are traced to the log. */
+    boolean isTracing();
+    void setTracing(boolean arg0);
+    /** @return 1 of how many requests is traced. */
+    int getTraceSampleRate();
+    void setTraceSampleRate(int arg0);
+    /** @return comma separated addresses of the clients traced, empty for all clients. */
+    String getTraceClients();
+    void setTraceClients(String arg0);
+    /** @return number of requests traced. */
+    long getTraced();
+
+    /** Set all the counters and histograms of the service to 0. */
+    void resetMetrics();
+
+    /** @return true if the datagrams received and sent are recorded. */
+    boolean isCapturing();
+    /** @return number of datagrams recorded by the packet capture. */
+    long getCaptured();
+
+    /**
+     * Write the datagrams recorded by the packet capture to a pcap file.
+     * @param file path of the file on the host of the service.
+     * @return number of datagrams written.
+     * @throws IOException
+     */
+    int dumpPacketCapture(String file) throws IOException;
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The MXBean registered for a {@link BindingService}, it reads the service
+ * and its {@link Metrics} and is not involved in answering requests.
+ *
+ * @author Henrik Baastrup
+ */
+class BindingServiceMonitor implements BindingServiceMXBean {
+    /** Min time in milliseconds between two measurements of the rates. */
+    private static final long SAMPLE_INTERVAL = 1000;
+
+    private final BindingService service;
+    private final Metrics metrics;
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private long sampleTime;
+    private long sampleRequests;
+    private long sampleErrors;
+    private long sampleCpuTime;
+    private double requestRate = 0;
+    private double errorRate = 0;
+    private double utilization = 0;
+
+    BindingServiceMonitor(BindingService service) {
+        this.service = service;
+        this.metrics = service.getMetrics();
+        sampleTime = System.nanoTime();
+        sampleRequests = getRequests();
+        sampleErrors = getErrorResponses();
+        sampleCpuTime = getCpuTime();
+    }
+
+    public boolean isRunning() {return service.isRunning();}
+    public String getEngine() {return service.getEngine().toString();}
+    public int getWorkerThreads() {return service.getWorkerThreads();}
+    public int getBatchSize() {return service.getBatchSize();}
+
+    public long getRequests() {return metrics.getValue("stun_binding_requests_total");}
+    public long getResponses() {return metrics.getValue("stun_binding_responses_total");}
+    public long getErrorResponses() {return metrics.getValue("stun_binding_error_responses_total");}
+    public long getIntegrityFailures() {return metrics.getValue("stun_binding_integrity_failures_total");}
+    public long getMalformedPackets() {return metrics.getValue("stun_binding_malformed_packets_total");}
+    public long getSocketErrors() {return metrics.getValue("stun_binding_socket_errors_total");}
+    public long getChangeRequests() {return metrics.getValue("stun_binding_change_requests_total");}
+
+    public Map<String, Long> getCounters() {
+        return counters(metrics);
+    }
+
+    static Map<String, Long> counters(Metrics metrics) {
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Metrics.Metric metric : metrics.getMetrics()) {
+            if (metric instanceof Metrics.Counter) counters.put(metric.getKey(), ((Metrics.Counter)metric).get());
+            else if (metric instanceof Metrics.Gauge) counters.put(metric.getKey(), ((Metrics.Gauge)metric).get());
+        }
+        return counters;
+    }
+
+    public synchronized double getRequestRate() {
+        sample();
+        return requestRate;
+    }
+
+    public synchronized double getErrorRate() {
+        sample();
+        return errorRate;
+    }
+
+    public synchronized double getWorkerUtilization() {
+        sample();
+        return utilization;
+    }
+
+    /**
+     * Measure the rates and the utilization since the last measurement, if
+     * it is more than {@link #SAMPLE_INTERVAL} old.
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        long elapsed = now - sampleTime;
+        if (elapsed < SAMPLE_INTERVAL*1000000) return;
+        long requests = getRequests();
+        long errors = getErrorResponses();
+        long cpuTime = getCpuTime();
+        //The counters go back to 0 when the metrics are reset
+        requestRate = Math.max(0, (requests-sampleRequests)*1e9/elapsed);
+        errorRate = Math.max(0, (errors-sampleErrors)*1e9/elapsed);
+        int threads = service.getReceiveThreads().length;
+        if (cpuTime<0 || sampleCpuTime<0) utilization = -1;
+        else if (threads==0) utilization = 0;
+        else utilization = Math.min(1.0, Math.max(0, (double)(cpuTime-sampleCpuTime)/elapsed/threads));
+        sampleTime = now;
+        sampleRequests = requests;
+        sampleErrors = errors;
+        sampleCpuTime = cpuTime;
+    }
+
+    /**
+     * @return CPU time in nanoseconds used by the live receive threads, -1 if not measured by the JVM.
+     */
+    private long getCpuTime() {
+        if (!threadBean.isThreadCpuTimeSupported() || !threadBean.isThreadCpuTimeEnabled()) return -1;
+        long time = 0;
+        for (Thread thread : service.getReceiveThreads()) {
+            long threadTime = threadBean.getThreadCpuTime(thread.getId());
+            if (threadTime>0) time += threadTime;
+        }
+        return time;
+    }
+
+    private LatencyHistogram processingTime() {
+        return ((Metrics.Histogram)metrics.get("stun_binding_processing_time_ns")).getHistogram();
+    }
+
+    public double getProcessingTimeMean() {return processingTime().getMean();}
+    public long getProcessingTimeP50() {return processingTime().getValueAtPercentile(50);}
+    public long getProcessingTimeP99() {return processingTime().getValueAtPercentile(99);}
+    public long getProcessingTimeMax() {return processingTime().getMax();}
+
+    public int getPendingVerifications() {return service.getPendingVerifications();}
+    public long getRejectedVerifications() {return service.getRejectedVerifications();}
+    public int getCachedCredentials() {return service.getCachedCredentials();}
+    public long getCredentialCacheHits() {return service.getCredentialCacheHits();}
+    public long getCredentialCacheMisses() {return service.getCredentialCacheMisses();}
+
+    public long getBufferBytes() {return service.getBufferBytes();}
+
+    public double getBatchFill() {
+        long batches = service.getBatches();
+        if (batches==0) return 0;
+        return (double)service.getBatchedPackets()/batches/service.getBatchSize();
+    }
+
+    public int getCredentialCacheSize() {return service.getCredentialCacheSize();}
+
+    public void setCredentialCacheSize(int arg0) {
+        long ttl = service.getCredentialCacheTtl();
+        service.setCredentialCache(arg0, ttl>0 ? ttl : BindingService.DEFAULT_CREDENTIAL_CACHE_TTL);
+    }
+
+    public long getCredentialCacheTtl() {return service.getCredentialCacheTtl();}
+
+    public void setCredentialCacheTtl(long arg0) {
+        int size = service.getCredentialCacheSize();
+        service.setCredentialCache(size>0 ? size : BindingService.DEFAULT_CREDENTIAL_CACHE_SIZE, arg0);
+    }
+
+    public boolean isDebug() {return service.isDebug();}
+    public void setDebug(boolean arg0) {service.setDebug(arg0);}
+
+    public boolean isTracing() {return service.getTracer().isEnabled();}
+    public void setTracing(boolean arg0) {service.getTracer().setEnabled(arg0);}
+    public int getTraceSampleRate() {return service.getTracer().getSampleRate();}
+    public void setTraceSampleRate(int arg0) {service.getTracer().setSampleRate(arg0);}
+    public String getTraceClients() {return service.getTracer().getClientList();}
+
+    public void setTraceClients(String arg0) {
+        try {
+            service.getTracer().setClients(arg0);
+        } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException("Unknown client "+ex.getMessage());
+        }
+    }
+
+    public long getTraced() {return service.getTracer().getTraced();}
+
+    public void resetMetrics() {metrics.reset();}
+
+    public boolean isCapturing() {return service.getPacketCapture()!=null;}
+
+    public long getCaptured() {
+        PacketCapture capture = service.getPacketCapture();
+        return capture==null ? 0 : capture.getRecorded();
+    }
+
+    public int dumpPacketCapture(String file) throws IOException {
+        return service.dumpPacketCapture(new File(file));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.stun.HmacKey;
+
+/**
+ * The keys of the credentials a remote {@link SharedSecretService} has
+ * verified, so a {@link BindingService} can check the MESSAGE-INTEGRITY of
+ * the following requests of the same user by itself. The cache holds at most
+ * a given number of users, the least recently used is evicted first, and an
+ * entry is dropped when it is older than the time to live or when the
+ * credential expires, whichever comes first.<br>
+ * A large cache is split in segments by the hash of the username, each with
+ * its own lock, so the workers of the service looking up different users do
+ * not wait for each other. The least recently used user is then evicted from
+ * the segment of the new user, not from the whole cache.
+ *
+ * @author Henrik Baastrup
+ */
+class CredentialCache {
+    /** Max number of segments. */
+    private static final int MAX_SEGMENTS = 16;
+    /** A cache is not split in segments holding fewer users than this. */
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    private static class CacheEntry {
+        final HmacKey key;
+        final long expires;
+
+        CacheEntry(HmacKey key, long expires) {
+            this.key = key;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A part of the cache in access order, used while synchronized on it.
+     */
+    private static class Segment extends LinkedHashMap<String, CacheEntry> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttl;
+    private final Segment segments[];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxSize max number of users in the cache.
+     * @param ttl time in milliseconds an entry is kept.
+     */
+    CredentialCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        int count = 1;
+        while (count < MAX_SEGMENTS && maxSize/(count*2) >= MIN_SEGMENT_SIZE) count *= 2;
+        segments = new Segment[count];
+        for (int i=0; i<count; i++) segments[i] = new Segment(maxSize/count);
+    }
+
+    /**
+     * @param username
+     * @param now the current time in milliseconds.
+     * @return the key of the user or null if the user is not in the cache.
+     */
+    HmacKey get(String username, long now) {
+        Segment segment = segmentFor(username);
+        CacheEntry entry;
+        synchronized (segment) {
+            entry = segment.get(username);
+            if (entry!=null && entry.expires <= now) {
+                segment.remove(username);
+                entry = null;
+            }
+        }
+        if (entry==null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.key;
+    }
+
+    /**
+     * Add a user just verified by the Shared Secret service.
+     * @param username
+     * @param key
+     * @param now the current time in milliseconds.
+     */
+    void put(String username, HmacKey key, long now) {
+        put(username, key, now, Long.MAX_VALUE);
+    }
+
+    /**
+     * Add a user just verified by the Shared Secret service.
+     * @param username
+     * @param key
+     * @param now the current time in milliseconds.
+     * @param expires time in milliseconds the credential expires, the entry is not kept longer.
+     */
+    void put(String username, HmacKey key, long now, long expires) {
+        CacheEntry entry = new CacheEntry(key, Math.min(now+ttl, expires));
+        Segment segment = segmentFor(username);
+        synchronized (segment) {
+            segment.put(username, entry);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    int getMaxSize() {return maxSize;}
+    long getTtl() {return ttl;}
+    long getHits() {return hits.sum();}
+    long getMisses() {return misses.sum();}
+    int getSegments() {return segments.length;}
+
+    private Segment segmentFor(String username) {
+        int h = username.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length-1)];
+    }
+}
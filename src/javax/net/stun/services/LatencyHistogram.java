@@ -0,0 +1,150 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies with a fixed relative precision, in the style of
+ * HdrHistogram. The values below 128 have a bucket each, above that each
+ * power of two is divided in 64 buckets, so a value is reported with an error
+ * of less than 1/64 (1.6%) whatever its size. Values up to 2^36 (about 19
+ * hours in microseconds) are recorded, larger values are counted as 2^36.<br>
+ * {@link #record} may be called from any number of threads, it never blocks.
+ * The buckets and the max value are striped over the threads recording, as
+ * a {@link LongAdder} is, so the workers of a service do not update the same
+ * counters; the stripes are added together when the histogram is read.
+ *
+ * @author Henrik Baastrup
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF = SUB_BUCKETS/2;
+    private static final int MAX_BITS = 36;
+    private static final long MAX_VALUE = (1L<<MAX_BITS) - 1;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_BITS-7)*HALF;
+    /** Number of stripes, a power of two. */
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()*2-1));
+
+    /**
+     * The values recorded by some of the threads.
+     */
+    private static class Stripe {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong max = new AtomicLong();
+    }
+
+    private final Stripe stripes[] = new Stripe[STRIPES];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i=0; i<stripes.length; i++) stripes[i] = new Stripe();
+    }
+
+    /**
+     * Record a value.
+     * @param value e.g. a latency in microseconds, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value<0) value = 0;
+        if (value>MAX_VALUE) value = MAX_VALUE;
+        Stripe stripe = stripe();
+        stripe.counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        AtomicLong max = stripe.max;
+        long current = max.get();
+        while (value>current && !max.compareAndSet(current, value)) current = max.get();
+    }
+
+    /**
+     * @return number of values recorded.
+     */
+    public long getCount() {return count.sum();}
+
+    public long getMax() {
+        long max = 0;
+        for (Stripe stripe : stripes) max = Math.max(max, stripe.max.get());
+        return max;
+    }
+
+    /**
+     * @return the sum of the values recorded.
+     */
+    public long getSum() {return sum.sum();}
+
+    public double getMean() {
+        long n = count.sum();
+        return n==0 ? 0 : (double)sum.sum()/n;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the value the given percentage of the recorded values are less
+     * than or equal to, within the precision of the histogram.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.sum();
+        if (n==0) return 0;
+        long max = getMax();
+        long target = Math.max(1, (long)Math.ceil(percentile/100.0*n));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            for (Stripe stripe : stripes) seen += stripe.counts.get(i);
+            if (seen>=target) return Math.min(highestValue(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Clear all the values recorded.
+     */
+    public void reset() {
+        for (Stripe stripe : stripes) {
+            for (int i=0; i<BUCKETS; i++) stripe.counts.set(i, 0);
+            stripe.max.set(0);
+        }
+        count.reset();
+        sum.reset();
+    }
+
+    private Stripe stripe() {
+        long id = Thread.currentThread().getId();
+        int h = (int)(id ^ (id >>> 32)) * 0x9e3779b9;
+        return stripes[(h >>> 16) & (stripes.length-1)];
+    }
+
+    static int index(long value) {
+        if (value<SUB_BUCKETS) return (int)value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return SUB_BUCKETS + (shift-1)*HALF + (int)((value>>shift) - HALF);
+    }
+
+    /**
+     * @return the highest value counted in the bucket.
+     */
+    static long highestValue(int index) {
+        if (index<SUB_BUCKETS) return index;
+        int shift = (index-SUB_BUCKETS)/HALF + 1;
+        long sub = (index-SUB_BUCKETS)%HALF + HALF;
+        return ((sub+1)<<shift) - 1;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.stun.MessageAttribute;
+import javax.net.stun.MessageHeader;
+import javax.net.stun.StunMessageWriter;
+
+/**
+ * An open loop load generator for a {@link BindingService}. The Binding
+ * Requests are sent at a fixed rate from a number of sockets, whether the
+ * answers come back or not, and the latency of an answer is measured from the
+ * time its request was scheduled to be sent. So a server falling behind shows
+ * as a growing latency (and loss), not as a lower request rate.<br>
+ * The time a request was scheduled is carried in its transaction id, so no
+ * state is kept per request.
+ *
+ * @author Henrik Baastrup
+ */
+public class LoadGenerator {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final InetAddress address;
+    private final int port;
+    private int rate = 10000;
+    private int concurrency = 4;
+    private long duration = 10000;
+    private long drainTime = 1000;
+    private int changeRequestPercent = 0;
+    private int authenticatedPercent = 0;
+    private UserHolder credential = null;
+
+    /**
+     * The result of a run.
+     */
+    public static class Report {
+        private final long sent;
+        private final long responses;
+        private final long errors;
+        private final long elapsed;
+        private final LatencyHistogram latencies;
+
+        Report(long sent, long responses, long errors, long elapsed, LatencyHistogram latencies) {
+            this.sent = sent;
+            this.responses = responses;
+            this.errors = errors;
+            this.elapsed = elapsed;
+            this.latencies = latencies;
+        }
+
+        /**
+         * @return number of requests sent.
+         */
+        public long getSent() {return sent;}
+
+        /**
+         * @return number of Binding Responses received.
+         */
+        public long getResponses() {return responses;}
+
+        /**
+         * @return number of Binding Error Responses received.
+         */
+        public long getErrors() {return errors;}
+
+        /**
+         * @return number of requests not answered.
+         */
+        public long getLost() {return Math.max(0, sent-responses-errors);}
+
+        public double getLossPercent() {return sent==0 ? 0 : 100.0*getLost()/sent;}
+
+        /**
+         * @return the time in milliseconds measured from the first request to the last was sent.
+         */
+        public long getElapsed() {return elapsed;}
+
+        /**
+         * @return answers (responses and error responses) per second.
+         */
+        public double getThroughput() {return elapsed==0 ? 0 : 1000.0*(responses+errors)/elapsed;}
+
+        /**
+         * @return the latencies of the answers in microseconds.
+         */
+        public LatencyHistogram getLatencies() {return latencies;}
+
+        @Override
+        public String toString() {
+            StringBuilder str = new StringBuilder();
+            str.append("Requests sent:   "+sent+" in "+elapsed+"ms ("+Math.round(elapsed==0 ? 0 : 1000.0*sent/elapsed)+"/s)\n");
+            str.append("Answers:         "+responses+" responses, "+errors+" error responses\n");
+            str.append("Lost:            "+getLost()+String.format(" (%.3f%%)%n", getLossPercent()));
+            str.append("Throughput:      "+Math.round(getThroughput())+" answers/s\n");
+            str.append("Latency (us):    "+String.format("mean %.1f", latencies.getMean()));
+            str.append(", p50 "+latencies.getValueAtPercentile(50));
+            str.append(", p90 "+latencies.getValueAtPercentile(90));
+            str.append(", p99 "+latencies.getValueAtPercentile(99));
+            str.append(", p99.9 "+latencies.getValueAtPercentile(99.9));
+            str.append(", max "+latencies.getMax()+"\n");
+            return str.toString();
+        }
+    }
+
+    /**
+     * @param address of the Binding service.
+     * @param port
+     */
+    public LoadGenerator(InetAddress address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * @param arg0 requests per second sent in total (default 10000).
+     */
+    public void setRate(int arg0) {rate = arg0;}
+    public int getRate() {return rate;}
+
+    /**
+     * @param arg0 number of sockets sending requests, each with its own thread (default 4).
+     */
+    public void setConcurrency(int arg0) {concurrency = arg0;}
+    public int getConcurrency() {return concurrency;}
+
+    /**
+     * @param arg0 time in milliseconds to send requests (default 10000).
+     */
+    public void setDuration(long arg0) {duration = arg0;}
+    public long getDuration() {return duration;}
+
+    /**
+     * @param arg0 time in milliseconds to wait for the last answers (default 1000).
+     */
+    public void setDrainTime(long arg0) {drainTime = arg0;}
+    public long getDrainTime() {return drainTime;}
+
+    /**
+     * Set the share of the requests with a CHANGE-REQUEST attribute asking to
+     * change the IP address, the port or both (picked at random). The service
+     * must have an alternate address to answer them.
+     * @param arg0 percent of the requests (default 0).
+     */
+    public void setChangeRequestPercent(int arg0) {changeRequestPercent = arg0;}
+    public int getChangeRequestPercent() {return changeRequestPercent;}
+
+    /**
+     * Set the share of the requests with USERNAME and MESSAGE-INTEGRITY
+     * attributes, see {@link #setCredential}.
+     * @param arg0 percent of the requests (default 0).
+     */
+    public void setAuthenticatedPercent(int arg0) {authenticatedPercent = arg0;}
+    public int getAuthenticatedPercent() {return authenticatedPercent;}
+
+    /**
+     * @param arg0 the credential the authenticated requests are sent with,
+     * e.g. created by {@link SharedSecretService#createUser()}.
+     */
+    public void setCredential(UserHolder arg0) {credential = arg0;}
+
+    /**
+     * Send the requests for the set duration, wait for the last answers and
+     * report what was received.
+     * @return the report.
+     * @throws IOException if a socket could not be opened.
+     * @throws InterruptedException
+     */
+    public Report run() throws IOException, InterruptedException {
+        if (authenticatedPercent>0 && credential==null) throw new IllegalStateException("A credential is needed to send authenticated requests");
+        final byte username[] = credential==null ? null : toBytes(credential.username);
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong responses = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+
+        final DatagramSocket sockets[] = new DatagramSocket[concurrency];
+        Thread senders[] = new Thread[concurrency];
+        Thread receivers[] = new Thread[concurrency];
+        try {
+            for (int i=0; i<concurrency; i++) sockets[i] = new DatagramSocket();
+
+            //Each sender sends every interval, the senders are spread evenly over the interval
+            final double interval = 1e9*concurrency/rate;
+            final long start = System.nanoTime() + 10000000;
+            final long end = start + duration*1000000;
+            for (int i=0; i<concurrency; i++) {
+                final DatagramSocket sock = sockets[i];
+                final int index = i;
+                receivers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        receive(sock, latencies, responses, errors);
+                    }
+                }, "Load Generator Receiver-"+threadCount.get());
+                senders[i] = new Thread(new Runnable() {
+                    public void run() {
+                        send(sock, index, start + (long)(interval*index/concurrency), interval, end, username, sent);
+                    }
+                }, "Load Generator Sender-"+threadCount.getAndIncrement());
+                receivers[i].setDaemon(true);
+                receivers[i].start();
+                senders[i].start();
+            }
+            for (Thread sender : senders) sender.join();
+            //Senders falling behind schedule send for longer than the set duration
+            long elapsed = Math.max(0, System.nanoTime() - start)/1000000;
+            Thread.sleep(drainTime);
+            return new Report(sent.get(), responses.get(), errors.get(), elapsed, latencies);
+        } finally {
+            for (DatagramSocket sock : sockets) if (sock!=null) sock.close();
+            for (Thread sender : senders) if (sender!=null) sender.interrupt();
+        }
+    }
+
+    private void send(DatagramSocket sock, int index, long first, double interval, long end, byte username[], AtomicLong sent) {
+        Random random = new Random(index);
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        StunMessageWriter writer = new StunMessageWriter();
+        byte transactionId[] = new byte[16];
+        ByteBuffer id = ByteBuffer.wrap(transactionId);
+        DatagramPacket packet = new DatagramPacket(buffer.array(), 0, address, port);
+        for (long sequence=0; ; sequence++) {
+            long scheduled = first + (long)(interval*sequence);
+            if (scheduled>=end || Thread.currentThread().isInterrupted()) return;
+            long wait = scheduled - System.nanoTime();
+            //Behind schedule the request is sent at once, its latency still counts from the scheduled time
+            if (wait>0) LockSupport.parkNanos(wait);
+
+            id.clear();
+            id.putLong(scheduled);
+            id.putInt(index);
+            id.putInt((int)sequence);
+            buffer.clear();
+            writer.wrap(buffer);
+            writer.putHeader(MessageHeader.BINDING_REQUEST, transactionId);
+            if (random.nextInt(100)<changeRequestPercent) {
+                byte flags[] = {0, 0, 0, (byte)(2*(1+random.nextInt(3)))};
+                writer.putAttribute(MessageAttribute.CHANGE_REQUEST, flags);
+            }
+            if (random.nextInt(100)<authenticatedPercent) {
+                writer.putAttribute(MessageAttribute.USERNAME, username);
+                writer.putMessageIntegrity(credential.key);
+            }
+            packet.setLength(writer.finish());
+            try {
+                sock.send(packet);
+                sent.incrementAndGet();
+            } catch (IOException ex) {
+                if (!sock.isClosed()) Logger.getLogger(LoadGenerator.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+        }
+    }
+
+    private void receive(DatagramSocket sock, LatencyHistogram latencies, AtomicLong responses, AtomicLong errors) {
+        byte buf[] = new byte[512];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        ByteBuffer message = ByteBuffer.wrap(buf);
+        while (!sock.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                sock.receive(packet);
+            } catch (IOException ex) {
+                if (!sock.isClosed()) Logger.getLogger(LoadGenerator.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+            long now = System.nanoTime();
+            if (packet.getLength()<20) continue;
+            int type = message.getShort(0) & 0xffff;
+            if (type==MessageHeader.BINDING_RESPONSE) responses.incrementAndGet();
+            else if (type==MessageHeader.BINDING_ERROR_RESPONSE) errors.incrementAndGet();
+            else continue;
+            latencies.record((now - message.getLong(4))/1000);
+        }
+    }
+
+    private static byte[] toBytes(String arg0) {
+        try {
+            return arg0.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A reproducible end-to-end benchmark of the {@link BindingService} over
+ * loopback. For each engine, the service is started on 127.0.0.1 without and
+ * with a {@link SharedSecretService} (all requests authenticated), driven by a
+ * {@link LoadGenerator} at a fixed rate after a warm-up, and the throughput,
+ * loss, latency percentiles and the garbage collections during the run are
+ * written to a JSON and a CSV report, so runs of different commits on the same
+ * hardware can be compared.
+ *
+ * @author Henrik Baastrup
+ */
+public class LoopbackBenchmark {
+
+    /**
+     * The result of one scenario.
+     */
+    static class Result {
+        final BindingService.Engine engine;
+        final boolean authenticated;
+        final LoadGenerator.Report report;
+        final long gcCount;
+        final long gcTime;
+
+        Result(BindingService.Engine engine, boolean authenticated, LoadGenerator.Report report, long gcCount, long gcTime) {
+            this.engine = engine;
+            this.authenticated = authenticated;
+            this.report = report;
+            this.gcCount = gcCount;
+            this.gcTime = gcTime;
+        }
+    }
+
+    private int port = 3478;
+    private int alternatePort = 3479;
+    private int rate = 20000;
+    private int concurrency = 4;
+    private int duration = 10;
+    private int warmup = 2;
+    private int workerThreads = 0;
+    private int batchSize = 1;
+    private final List<BindingService.Engine> engines = new ArrayList<BindingService.Engine>();
+
+    private static void help() {
+        System.out.println("java -cp stun.jar javax.net.stun.services.LoopbackBenchmark [options]");
+        System.out.println("Options:");
+        System.out.println("  -port number: port of the Binding service (default 3478).");
+        System.out.println("  -alternateport number: port of the alternate address 127.0.0.2 (default 3479).");
+        System.out.println("  -engines list: comma separated engines to run (default socket,nio).");
+        System.out.println("  -workers number: worker threads used by the nio engine (default number of cores).");
+        System.out.println("  -batch number: datagrams received per batch by the nio engine (default 1).");
+        System.out.println("  -rate number: requests per second (default 20000).");
+        System.out.println("  -concurrency number: sockets sending requests (default 4).");
+        System.out.println("  -duration seconds: measured time of each scenario (default 10).");
+        System.out.println("  -warmup seconds: time requests are sent before each scenario is measured (default 2).");
+        System.out.println("  -out file: report file name without extension, .json and .csv are added (default loopback-bench).");
+        System.out.println("  -label text: label written in the report, e.g. the commit.");
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        LoopbackBenchmark benchmark = new LoopbackBenchmark();
+        String out = "loopback-bench";
+        String label = "";
+        for (int i=0; i<args.length; i++) {
+            if ("-h".equals(args[i])) {
+                help();
+                return;
+            }
+            else if ("-port".equals(args[i])) {
+                i++;
+                benchmark.port = Integer.parseInt(args[i]);
+            }
+            else if ("-alternateport".equals(args[i])) {
+                i++;
+                benchmark.alternatePort = Integer.parseInt(args[i]);
+            }
+            else if ("-engines".equals(args[i])) {
+                i++;
+                for (String engine : args[i].split(",")) benchmark.engines.add(BindingService.Engine.valueOf(engine.trim().toUpperCase()));
+            }
+            else if ("-workers".equals(args[i])) {
+                i++;
+                benchmark.workerThreads = Integer.parseInt(args[i]);
+            }
+            else if ("-batch".equals(args[i])) {
+                i++;
+                benchmark.batchSize = Integer.parseInt(args[i]);
+            }
+            else if ("-rate".equals(args[i])) {
+                i++;
+                benchmark.rate = Integer.parseInt(args[i]);
+            }
+            else if ("-concurrency".equals(args[i])) {
+                i++;
+                benchmark.concurrency = Integer.parseInt(args[i]);
+            }
+            else if ("-duration".equals(args[i])) {
+                i++;
+                benchmark.duration = Integer.parseInt(args[i]);
+            }
+            else if ("-warmup".equals(args[i])) {
+                i++;
+                benchmark.warmup = Integer.parseInt(args[i]);
+            }
+            else if ("-out".equals(args[i])) {
+                i++;
+                out = args[i];
+            }
+            else if ("-label".equals(args[i])) {
+                i++;
+                label = args[i];
+            }
+            else {
+                System.out.println("ERROR: Wrong argument: "+args[i]+". Try to use the -h argument");
+                return;
+            }
+        }
+        if (benchmark.engines.isEmpty()) {
+            benchmark.engines.add(BindingService.Engine.SOCKET);
+            benchmark.engines.add(BindingService.Engine.NIO);
+        }
+
+        try {
+            List<Result> results = benchmark.run();
+            File json = new File(out+".json");
+            File csv = new File(out+".csv");
+            benchmark.writeJson(json, label, results);
+            benchmark.writeCsv(csv, label, results);
+            System.out.println("Report written to "+json.getAbsolutePath()+" and "+csv.getAbsolutePath());
+        } catch (IOException ex) {
+            System.out.println("ERROR: "+ex.getMessage());
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    /**
+     * Run all the scenarios.
+     * @return the results in the order they were run.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    List<Result> run() throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<Result>();
+        for (BindingService.Engine engine : engines) {
+            results.add(runScenario(engine, false));
+            results.add(runScenario(engine, true));
+        }
+        return results;
+    }
+
+    private Result runScenario(BindingService.Engine engine, boolean authenticated) throws IOException, InterruptedException {
+        byte addr[] = {127,0,0,1};
+        byte altAddr[] = {127,0,0,2};
+        InetAddress host = InetAddress.getByAddress(addr);
+        InetAddress alternateHost = InetAddress.getByAddress(altAddr);
+        SharedSecretService ssService = new SharedSecretService(host, port);
+        BindingService service = new BindingService(host, port, alternateHost, alternatePort, authenticated ? ssService : null);
+        service.setEngine(engine);
+        if (workerThreads>0) service.setWorkerThreads(workerThreads);
+        service.setBatchSize(batchSize);
+        service.start();
+        try {
+            int count = 0;
+            while (!service.isRunning()) {
+                Thread.sleep(100);
+                count++;
+                if (count>100) throw new IOException("The Binding service did not start");
+            }
+            System.out.println("Running "+engine+(authenticated ? " with" : " without")+" authentication at "+rate+" requests/s");
+
+            LoadGenerator generator = new LoadGenerator(host, port);
+            generator.setRate(rate);
+            generator.setConcurrency(concurrency);
+            generator.setAuthenticatedPercent(authenticated ? 100 : 0);
+            generator.setCredential(ssService.createUser());
+            if (warmup>0) {
+                generator.setDuration(warmup*1000L);
+                generator.run();
+            }
+
+            generator.setDuration(duration*1000L);
+            long gcCount = getGcCount();
+            long gcTime = getGcTime();
+            LoadGenerator.Report report = generator.run();
+            Result result = new Result(engine, authenticated, report, getGcCount()-gcCount, getGcTime()-gcTime);
+            System.out.println(report);
+            return result;
+        } finally {
+            service.stop();
+            Thread.sleep(1500);
+        }
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+
+    void writeJson(File file, String label, List<Result> results) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.println("{");
+            writer.println("  \"label\": \""+escape(label)+"\",");
+            writer.println("  \"timestamp\": "+System.currentTimeMillis()+",");
+            writer.println("  \"java\": \""+escape(System.getProperty("java.vm.name")+" "+System.getProperty("java.version"))+"\",");
+            writer.println("  \"os\": \""+escape(System.getProperty("os.name")+" "+System.getProperty("os.arch"))+"\",");
+            writer.println("  \"cores\": "+Runtime.getRuntime().availableProcessors()+",");
+            writer.println("  \"rate\": "+rate+",");
+            writer.println("  \"concurrency\": "+concurrency+",");
+            writer.println("  \"duration_ms\": "+duration*1000L+",");
+            writer.println("  \"results\": [");
+            for (int i=0; i<results.size(); i++) {
+                Result result = results.get(i);
+                LoadGenerator.Report report = result.report;
+                LatencyHistogram latencies = report.getLatencies();
+                writer.print("    {\"engine\": \""+result.engine+"\", \"authenticated\": "+result.authenticated);
+                writer.print(", \"sent\": "+report.getSent()+", \"responses\": "+report.getResponses()+", \"errors\": "+report.getErrors());
+                writer.print(", \"lost\": "+report.getLost()+String.format(Locale.ROOT, ", \"loss_pct\": %.4f, \"throughput\": %.1f", report.getLossPercent(), report.getThroughput()));
+                writer.print(String.format(Locale.ROOT, ", \"mean_us\": %.1f", latencies.getMean()));
+                writer.print(", \"p50_us\": "+latencies.getValueAtPercentile(50)+", \"p99_us\": "+latencies.getValueAtPercentile(99)+", \"p999_us\": "+latencies.getValueAtPercentile(99.9)+", \"max_us\": "+latencies.getMax());
+                writer.print(", \"gc_count\": "+result.gcCount+", \"gc_time_ms\": "+result.gcTime+"}");
+                writer.println(i<results.size()-1 ? "," : "");
+            }
+            writer.println("  ]");
+            writer.println("}");
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) throw new IOException("Failed to write "+file);
+    }
+
+    void writeCsv(File file, String label, List<Result> results) throws IOException {
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.println("label,engine,authenticated,rate,concurrency,duration_ms,sent,responses,errors,lost,loss_pct,throughput,mean_us,p50_us,p99_us,p999_us,max_us,gc_count,gc_time_ms");
+            for (Result result : results) {
+                LoadGenerator.Report report = result.report;
+                LatencyHistogram latencies = report.getLatencies();
+                writer.println("\""+label.replace("\"", "\"\"")+"\","+result.engine+","+result.authenticated+","+rate+","+concurrency+","+duration*1000L
+                        +","+report.getSent()+","+report.getResponses()+","+report.getErrors()+","+report.getLost()
+                        +String.format(Locale.ROOT, ",%.4f,%.1f,%.1f", report.getLossPercent(), report.getThroughput(), latencies.getMean())
+                        +","+latencies.getValueAtPercentile(50)+","+latencies.getValueAtPercentile(99)+","+latencies.getValueAtPercentile(99.9)+","+latencies.getMax()
+                        +","+result.gcCount+","+result.gcTime);
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) throw new IOException("Failed to write "+file);
+    }
+
+    private static String escape(String arg0) {
+        return arg0.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a service: counters, gauges and histograms, each with a name,
+ * a help text and optionally one label, e.g.
+ * <code>stun_binding_error_responses_total{code="431"}</code>.<br>
+ * The services look their metrics up once and keep them in fields, so
+ * updating a metric on the hot path is a {@link LongAdder} increment or a
+ * {@link LatencyHistogram#record}, no locks and no lookups. Reading a metric
+ * sums the cells of the adder and may be done from any thread.
+ *
+ * @author Henrik Baastrup
+ */
+public class Metrics {
+
+    /**
+     * The common part of all metrics.
+     */
+    public static abstract class Metric {
+        private final String name;
+        private final String help;
+        private final String labelName;
+        private final String labelValue;
+
+        Metric(String name, String help, String labelName, String labelValue) {
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+            this.labelValue = labelValue;
+        }
+
+        public String getName() {return name;}
+        public String getHelp() {return help;}
+
+        /**
+         * @return name of the label or null if the metric has no label.
+         */
+        public String getLabelName() {return labelName;}
+        public String getLabelValue() {return labelValue;}
+
+        /**
+         * @return the name followed by the label, e.g. <code>name{label="value"}</code>.
+         */
+        public String getKey() {return key(name, labelName, labelValue);}
+
+        @Override
+        public String toString() {return getKey();}
+    }
+
+    /**
+     * A counter only going up, until the metrics are reset.
+     */
+    public static class Counter extends Metric {
+        private final LongAdder adder = new LongAdder();
+
+        Counter(String name, String help, String labelName, String labelValue) {
+            super(name, help, labelName, labelValue);
+        }
+
+        public void increment() {adder.increment();}
+        public void add(long arg0) {adder.add(arg0);}
+        public long get() {return adder.sum();}
+        void reset() {adder.reset();}
+    }
+
+    /**
+     * Gives the current value of a gauge, e.g. the size of a queue.
+     */
+    public interface GaugeSource {
+        long getValue();
+    }
+
+    /**
+     * A value read from the service when the metric is read.
+     */
+    public static class Gauge extends Metric {
+        private final GaugeSource source;
+
+        Gauge(String name, String help, GaugeSource source) {
+            super(name, help, null, null);
+            this.source = source;
+        }
+
+        public long get() {return source.getValue();}
+    }
+
+    /**
+     * A {@link LatencyHistogram} of e.g. processing times in nanoseconds.
+     */
+    public static class Histogram extends Metric {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Histogram(String name, String help) {
+            super(name, help, null, null);
+        }
+
+        public void record(long arg0) {histogram.record(arg0);}
+        public LatencyHistogram getHistogram() {return histogram;}
+    }
+
+    /**
+     * Counters with a label holding a code between 0 and 999, e.g. a STUN
+     * error code. The counter of a code is created the first time it is used.
+     */
+    public static class CodeCounters {
+        private final Metrics metrics;
+        private final String name;
+        private final String help;
+        private final String labelName;
+        private final AtomicReferenceArray<Counter> counters = new AtomicReferenceArray<Counter>(1000);
+
+        CodeCounters(Metrics metrics, String name, String help, String labelName) {
+            this.metrics = metrics;
+            this.name = name;
+            this.help = help;
+            this.labelName = labelName;
+        }
+
+        public void increment(int code) {
+            if (code<0 || code>=counters.length()) code = 0;
+            Counter counter = counters.get(code);
+            if (counter==null) {
+                counter = metrics.counter(name, help, labelName, Integer.toString(code));
+                counters.set(code, counter);
+            }
+            counter.increment();
+        }
+
+        /**
+         * @param code
+         * @return the count of the code, 0 if it has not been counted.
+         */
+        public long get(int code) {
+            if (code<0 || code>=counters.length()) return 0;
+            Counter counter = counters.get(code);
+            return counter==null ? 0 : counter.get();
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+    /**
+     * @param name
+     * @param help
+     * @return the counter with the name, created if it does not exist.
+     */
+    public Counter counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param labelName
+     * @param labelValue
+     * @return the counter with the name and label, created if it does not exist.
+     */
+    public Counter counter(String name, String help, String labelName, String labelValue) {
+        String key = key(name, labelName, labelValue);
+        Metric metric = metrics.get(key);
+        if (metric==null) {
+            Counter counter = new Counter(name, help, labelName, labelValue);
+            metric = metrics.putIfAbsent(key, counter);
+            if (metric==null) return counter;
+        }
+        return (Counter)metric;
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param labelName
+     * @return counters labeled by a code, e.g. responses by error code.
+     */
+    public CodeCounters codeCounters(String name, String help, String labelName) {
+        return new CodeCounters(this, name, help, labelName);
+    }
+
+    /**
+     * Register a gauge, replacing a gauge with the same name.
+     * @param name
+     * @param help
+     * @param source
+     * @return the gauge.
+     */
+    public Gauge gauge(String name, String help, GaugeSource source) {
+        Gauge gauge = new Gauge(name, help, source);
+        metrics.put(name, gauge);
+        return gauge;
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @return the histogram with the name, created if it does not exist.
+     */
+    public Histogram histogram(String name, String help) {
+        Metric metric = metrics.get(name);
+        if (metric==null) {
+            Histogram histogram = new Histogram(name, help);
+            metric = metrics.putIfAbsent(name, histogram);
+            if (metric==null) return histogram;
+        }
+        return (Histogram)metric;
+    }
+
+    /**
+     * @param key the name followed by the label if the metric has one, see {@link Metric#getKey()}.
+     * @return the metric or null if it does not exist.
+     */
+    public Metric get(String key) {return metrics.get(key);}
+
+    /**
+     * @param name
+     * @return the sum of the counters with the name whatever their label, or the value of the gauge with the name.
+     */
+    public long getValue(String name) {
+        long value = 0;
+        for (Metric metric : metrics.subMap(name, true, name+"{\uffff", true).values()) {
+            if (!metric.getName().equals(name)) continue;
+            if (metric instanceof Counter) value += ((Counter)metric).get();
+            else if (metric instanceof Gauge) value += ((Gauge)metric).get();
+        }
+        return value;
+    }
+
+    /**
+     * @return all the metrics sorted by name and label.
+     */
+    public List<Metric> getMetrics() {
+        return new ArrayList<Metric>(metrics.values());
+    }
+
+    /**
+     * Set all the counters and histograms to 0.
+     */
+    public void reset() {
+        for (Metric metric : metrics.values()) {
+            if (metric instanceof Counter) ((Counter)metric).reset();
+            else if (metric instanceof Histogram) ((Histogram)metric).getHistogram().reset();
+        }
+    }
+
+    static String key(String name, String labelName, String labelValue) {
+        if (labelName==null) return name;
+        return name+"{"+labelName+"=\""+labelValue+"\"}";
+    }
+}
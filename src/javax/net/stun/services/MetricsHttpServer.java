@@ -0,0 +1,181 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small HTTP server serving the {@link Metrics} of the services on
+ * <code>/metrics</code> in the Prometheus text exposition format, so the
+ * services can be scraped by a monitoring system. Counters and gauges are
+ * written as they are, a histogram as a summary with the 0.5, 0.9, 0.99 and
+ * 0.999 quantiles. Built on the HTTP server of the JDK, one thread answers
+ * the scrapes.
+ *
+ * @author Henrik Baastrup
+ */
+public class MetricsHttpServer {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double QUANTILES[] = {0.5, 0.9, 0.99, 0.999};
+
+    private final InetSocketAddress address;
+    private final List<Metrics> registries = new ArrayList<Metrics>();
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    /**
+     * @param address to listen on, e.g. <code>new InetSocketAddress(9100)</code> for all interfaces.
+     * @param registries the metrics to serve.
+     */
+    public MetricsHttpServer(InetSocketAddress address, Metrics... registries) {
+        this.address = address;
+        for (Metrics metrics : registries) if (metrics!=null) this.registries.add(metrics);
+    }
+
+    /**
+     * Start to serve the metrics.
+     * @throws IOException if the address can not be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (server!=null) return;
+        HttpServer newServer = HttpServer.create(address, 0);
+        newServer.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Metrics HTTP Server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        newServer.setExecutor(executor);
+        newServer.start();
+        server = newServer;
+    }
+
+    public synchronized void stop() {
+        if (server==null) return;
+        server.stop(0);
+        server = null;
+        executor.shutdown();
+        executor = null;
+    }
+
+    /**
+     * @return the port the server listens on, 0 if it is not started.
+     */
+    public synchronized int getPort() {
+        return server==null ? 0 : server.getAddress().getPort();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(8192);
+            for (Metrics metrics : registries) write(text, metrics);
+            byte body[] = text.toString().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(MetricsHttpServer.class.getName()).log(Level.SEVERE, null, ex);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Write metrics in the Prometheus text exposition format.
+     * @param out
+     * @param metrics
+     */
+    public static void write(StringBuilder out, Metrics metrics) {
+        //All the metrics with the same name go under one HELP and TYPE line
+        Map<String, List<Metrics.Metric>> families = new LinkedHashMap<String, List<Metrics.Metric>>();
+        for (Metrics.Metric metric : metrics.getMetrics()) {
+            List<Metrics.Metric> family = families.get(metric.getName());
+            if (family==null) {
+                family = new ArrayList<Metrics.Metric>();
+                families.put(metric.getName(), family);
+            }
+            family.add(metric);
+        }
+
+        for (List<Metrics.Metric> family : families.values()) {
+            Metrics.Metric first = family.get(0);
+            String type = "counter";
+            if (first instanceof Metrics.Gauge) type = "gauge";
+            else if (first instanceof Metrics.Histogram) type = "summary";
+            out.append("# HELP ").append(first.getName()).append(' ').append(escapeHelp(first.getHelp())).append('\n');
+            out.append("# TYPE ").append(first.getName()).append(' ').append(type).append('\n');
+            for (Metrics.Metric metric : family) {
+                if (metric instanceof Metrics.Counter) sample(out, metric.getName(), metric.getLabelName(), metric.getLabelValue(), ((Metrics.Counter)metric).get());
+                else if (metric instanceof Metrics.Gauge) sample(out, metric.getName(), metric.getLabelName(), metric.getLabelValue(), ((Metrics.Gauge)metric).get());
+                else if (metric instanceof Metrics.Histogram) {
+                    LatencyHistogram histogram = ((Metrics.Histogram)metric).getHistogram();
+                    for (double quantile : QUANTILES) {
+                        sample(out, metric.getName(), "quantile", Double.toString(quantile), histogram.getValueAtPercentile(quantile*100));
+                    }
+                    sample(out, metric.getName()+"_sum", null, null, histogram.getSum());
+                    sample(out, metric.getName()+"_count", null, null, histogram.getCount());
+                }
+            }
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labelName, String labelValue, long value) {
+        out.append(name);
+        if (labelName!=null) out.append('{').append(labelName).append("=\"").append(escapeLabel(labelValue)).append("\"}");
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String escapeHelp(String arg0) {
+        return arg0.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String escapeLabel(String arg0) {
+        return arg0.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One receive thread of the {@link BindingService.Engine#NIO} engine. Each
+ * worker owns its own {@link DatagramChannel} for every socket role of the
+ * service and a {@link Selector} they are all registered with; when the
+ * platform supports SO_REUSEPORT all workers bind the same addresses and
+ * ports and the kernel spreads the incoming datagrams between them.<br>
+ * When a channel is readable the worker drains up to batch size datagrams
+ * into a ring of preallocated {@link BindingContext}s, answers them all and
+ * then sends all the answers, so a burst is handled in one pass per wakeup.
+ *
+ * @author Henrik Baastrup
+ */
+class NioBindingWorker implements Runnable {
+    private final BindingService service;
+    private final DatagramChannel channels[] = new DatagramChannel[BindingService.ROLES];
+    private final Selector selector;
+    private final BindingContext batch[];
+    private final SocketAddress senders[];
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedPackets = new AtomicLong();
+    private final AtomicLongArray batchSizes = new AtomicLongArray(BindingService.BATCH_SIZE_BUCKETS);
+
+    /**
+     * @param service
+     * @param addresses the addresses to bind indexed by socket role, null for the roles not used.
+     * @param reusePort
+     * @param batchSize max number of datagrams received before they are answered.
+     * @throws IOException
+     */
+    NioBindingWorker(final BindingService service, final InetSocketAddress addresses[], final boolean reusePort, final int batchSize) throws IOException {
+        this.service = service;
+        batch = new BindingContext[batchSize];
+        senders = new SocketAddress[batchSize];
+        int bufferSize = batchSize==1 ? BindingContext.BUFFER_SIZE : BindingContext.BATCH_BUFFER_SIZE;
+        for (int i=0; i<batchSize; i++) batch[i] = new BindingContext(true, bufferSize);
+        selector = Selector.open();
+        try {
+            for (int role=0; role<BindingService.ROLES; role++) {
+                if (addresses[role]==null) continue;
+                DatagramChannel channel = DatagramChannel.open();
+                channels[role] = channel;
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                if (reusePort) channel.setOption(reusePortOption(channel), true);
+                channel.bind(addresses[role]);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, Integer.valueOf(role));
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param role
+     * @return the port the channel of the role is bound to, or 0 if the role is not bound.
+     */
+    int getLocalPort(int role) {
+        if (channels[role]==null) return 0;
+        return channels[role].socket().getLocalPort();
+    }
+
+    /**
+     * @return bit mask of the roles this worker has a channel for.
+     */
+    int getBoundRoles() {
+        int roles = 0;
+        for (int role=0; role<BindingService.ROLES; role++) if (channels[role]!=null) roles |= 1<<role;
+        return roles;
+    }
+
+    /**
+     * SO_REUSEPORT is looked up by name so the service still runs on JVMs
+     * older than Java 9 where the option is not defined.
+     * @param channel
+     * @return the SO_REUSEPORT option or null if the channel does not support it.
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> reusePortOption(DatagramChannel channel) {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if ("SO_REUSEPORT".equals(option.name())) return (SocketOption<Boolean>)option;
+        }
+        return null;
+    }
+
+    static boolean isReusePortSupported() {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            return reusePortOption(channel)!=null;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            if (channel!=null) try{channel.close();}catch(IOException ignore){}
+        }
+    }
+
+    long getBatches() {return batches.get();}
+    long getBatchedPackets() {return batchedPackets.get();}
+    long getBatchSizes(int bucket) {return batchSizes.get(bucket);}
+
+    /**
+     * Send a datagram from the channel of a role. Used to send the answers
+     * completed outside the worker thread, a {@link DatagramChannel} may be
+     * used by more threads at a time.
+     * @param role
+     * @param data
+     * @param to
+     * @throws IOException
+     */
+    void send(int role, ByteBuffer data, SocketAddress to) throws IOException {
+        channels[role].send(data, to);
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    void close() {
+        try{selector.close();}catch(IOException ignore){}
+        for (DatagramChannel channel : channels) {
+            if (channel!=null) try{channel.close();}catch(IOException ignore){}
+        }
+    }
+
+    public void run() {
+        while (service.isRunning()) {
+            try {
+                try {
+                    selector.select();
+                } catch (IOException ex) {
+                    Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+                    break;
+                }
+                if (!service.isRunning()) break;
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    receive((Integer)key.attachment());
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        close();
+    }
+
+    private void receive(int role) {
+        DatagramChannel channel = channels[role];
+        boolean readable = true;
+        int received;
+        do {
+            //Drain as many datagrams as the batch holds
+            received = 0;
+            while (received < batch.length) {
+                ByteBuffer receiveBuffer = batch[received].receiveBuffer;
+                receiveBuffer.clear();
+                try {
+                    senders[received] = channel.receive(receiveBuffer);
+                } catch (IOException ex) {
+                    service.countSocketError();
+                    Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+                    readable = false;
+                    break;
+                }
+                if (senders[received]==null) { //Nothing more to read
+                    readable = false;
+                    break;
+                }
+                receiveBuffer.flip();
+                received++;
+            }
+            if (received==0) return;
+            batches.incrementAndGet();
+            batchedPackets.addAndGet(received);
+            batchSizes.incrementAndGet(BindingService.batchSizeBucket(received));
+
+            for (int i=0; i<received; i++) {
+                BindingContext context = batch[i];
+                InetSocketAddress client = (InetSocketAddress)senders[i];
+                if (!service.answer(context.receiveBuffer, client.getAddress(), client.getPort(), role, context)) senders[i] = null;
+            }
+
+            for (int i=0; i<received; i++) {
+                if (senders[i]==null) continue;
+                BindingContext context = batch[i];
+                InetSocketAddress client = (InetSocketAddress)senders[i];
+                try {
+                    //Most answers go back to the sender, reuse its address instead of creating a new one
+                    SocketAddress to = client;
+                    if (context.returnPort!=client.getPort() || !context.returnAddress.equals(client.getAddress())) {
+                        to = new InetSocketAddress(context.returnAddress, context.returnPort);
+                    }
+                    service.captureSent(context);
+                    channels[context.sendFrom].send(context.sendBuffer, to);
+                } catch (IOException ex) {
+                    service.countSocketError();
+                    Logger.getLogger(BindingService.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                senders[i] = null;
+            }
+        } while (readable);
+    }
+}
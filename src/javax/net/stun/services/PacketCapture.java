@@ -0,0 +1,346 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the last datagrams received and sent by a {@link BindingService}
+ * in a ring of fixed size slots in one direct buffer, allocated up front, so
+ * recording a datagram is a copy into the ring and does not create garbage.
+ * The ring can be written to a pcap file at any time with {@link #dump(File)},
+ * each datagram as a raw IPv4 or IPv6 packet with a UDP header, which
+ * Wireshark decodes as STUN.<br>
+ * Any number of threads may record at a time. A thread claims its slot
+ * before writing it, so two datagrams wrapping onto the same slot are never
+ * mixed: the newer one waits for the older one to be written, and the older
+ * one is dropped if the newer one came first. A slot being overwritten while
+ * it is dumped is left out of the dump.
+ *
+ * @author Henrik Baastrup
+ */
+public class PacketCapture {
+    /** Default number of datagrams kept. */
+    public static final int DEFAULT_PACKETS = 4096;
+    /** Default number of bytes kept of each datagram, enough for any STUN message of RFC 3489. */
+    public static final int DEFAULT_SNAP_LENGTH = 576;
+
+    private static final int LINKTYPE_RAW = 101;
+    private static final int IPV4_HEADER = 20;
+    private static final int IPV6_HEADER = 40;
+    private static final int UDP_HEADER = 8;
+    private static final byte ANY_ADDRESS[] = {0, 0, 0, 0};
+
+    /*
+     * Layout of a slot: time in microseconds since the epoch, source and
+     * destination address (16 bytes each, IPv4 in the first 4) and port,
+     * the IP version, the captured and the original length, then the data.
+     */
+    private static final int TIME = 0;
+    private static final int SOURCE = 8;
+    private static final int SOURCE_PORT = 24;
+    private static final int DESTINATION = 28;
+    private static final int DESTINATION_PORT = 44;
+    private static final int VERSION = 48;
+    private static final int CAPTURED = 52;
+    private static final int LENGTH = 56;
+    private static final int DATA = 60;
+
+    private final int packets;
+    private final int snapLength;
+    private final int slotSize;
+    private final ByteBuffer ring;
+    /**
+     * The sequence number + 1 of the datagram in each slot, negated while the
+     * slot is written, 0 if nothing has been written yet.
+     */
+    private final AtomicLongArray stamps;
+    private final AtomicLong sequence = new AtomicLong();
+    private final ThreadLocal<Writer> writers = new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+            return new Writer(ring.duplicate());
+        }
+    };
+    private final long baseMillis;
+    private final long baseNanos;
+
+    /**
+     * The view of the ring a thread writes through, and the bytes of the
+     * last few addresses it recorded, looked up by identity, so the address
+     * of the service and of a client seen in the last datagrams are copied
+     * without creating an array.
+     */
+    private static class Writer {
+        final ByteBuffer view;
+        private final InetAddress cachedAddresses[] = new InetAddress[4];
+        private final byte cachedBytes[][] = new byte[4][];
+        private int nextCached = 0;
+
+        Writer(ByteBuffer view) {
+            this.view = view;
+        }
+
+        byte[] addressBytes(InetAddress address) {
+            if (address==null) return ANY_ADDRESS;
+            for (int i=0; i<cachedAddresses.length; i++) {
+                if (cachedAddresses[i]==address) return cachedBytes[i];
+            }
+            byte bytes[] = address.getAddress();
+            cachedAddresses[nextCached] = address;
+            cachedBytes[nextCached] = bytes;
+            nextCached = (nextCached+1) % cachedAddresses.length;
+            return bytes;
+        }
+    }
+
+    public PacketCapture() {
+        this(DEFAULT_PACKETS, DEFAULT_SNAP_LENGTH);
+    }
+
+    /**
+     * @param packets number of datagrams kept, the oldest are overwritten.
+     * @param snapLength max number of bytes kept of each datagram.
+     */
+    public PacketCapture(int packets, int snapLength) {
+        if (packets < 1) packets = 1;
+        if (snapLength < 20) snapLength = 20;
+        this.packets = packets;
+        this.snapLength = snapLength;
+        slotSize = (DATA + snapLength + 7) & ~7;
+        ring = ByteBuffer.allocateDirect(packets*slotSize);
+        stamps = new AtomicLongArray(packets);
+        baseMillis = System.currentTimeMillis();
+        baseNanos = System.nanoTime();
+    }
+
+    public int getPackets() {return packets;}
+    public int getSnapLength() {return snapLength;}
+
+    /**
+     * @return number of datagrams recorded since the capture was created.
+     */
+    public long getRecorded() {return sequence.get();}
+
+    /**
+     * Record a datagram. The position and limit of the data are restored
+     * before returning.
+     * @param data the datagram between its position and limit.
+     * @param source null if not known.
+     * @param sourcePort
+     * @param destination null if not known.
+     * @param destinationPort
+     */
+    public void record(ByteBuffer data, InetAddress source, int sourcePort, InetAddress destination, int destinationPort) {
+        long seq = sequence.getAndIncrement();
+        int slot = (int)(seq % packets);
+        int offset = slot*slotSize;
+        if (!claim(slot, seq)) return;
+
+        Writer writer = writers.get();
+        ByteBuffer view = writer.view;
+        view.putLong(offset+TIME, baseMillis*1000 + (System.nanoTime()-baseNanos)/1000);
+        byte sourceBytes[] = writer.addressBytes(source);
+        byte destinationBytes[] = writer.addressBytes(destination);
+        putAddress(view, offset+SOURCE, sourceBytes);
+        view.putInt(offset+SOURCE_PORT, sourcePort);
+        putAddress(view, offset+DESTINATION, destinationBytes);
+        view.putInt(offset+DESTINATION_PORT, destinationPort);
+        view.putInt(offset+VERSION, sourceBytes.length==4 && destinationBytes.length==4 ? 4 : 6);
+
+        int position = data.position();
+        int limit = data.limit();
+        int captured = Math.min(limit-position, snapLength);
+        view.putInt(offset+CAPTURED, captured);
+        view.putInt(offset+LENGTH, limit-position);
+        view.limit(offset+DATA+captured);
+        view.position(offset+DATA);
+        data.limit(position+captured);
+        view.put(data);
+        data.limit(limit);
+        data.position(position);
+        view.clear();
+
+        stamps.set(slot, seq+1);
+    }
+
+    /**
+     * Take the slot for a datagram.
+     * @return false if a newer datagram is in the slot or being written to it.
+     */
+    private boolean claim(int slot, long seq) {
+        while (true) {
+            long stamp = stamps.get(slot);
+            if (stamp<0) {
+                if (-stamp > seq+1) return false;
+                //An older datagram is being written, it is a copy of a few hundred bytes
+                Thread.yield();
+                continue;
+            }
+            if (stamp > seq+1) return false;
+            if (stamps.compareAndSet(slot, stamp, -(seq+1))) return true;
+        }
+    }
+
+    private static void putAddress(ByteBuffer view, int offset, byte address[]) {
+        if (address.length==4) {
+            //An IPv4 address is written IPv4-mapped in case the other address is IPv6
+            for (int i=0; i<10; i++) view.put(offset+i, (byte)0);
+            view.put(offset+10, (byte)0xff);
+            view.put(offset+11, (byte)0xff);
+            for (int i=0; i<4; i++) view.put(offset+12+i, address[i]);
+        }
+        else {
+            for (int i=0; i<16; i++) view.put(offset+i, address[i]);
+        }
+    }
+
+    /**
+     * Write the datagrams in the ring to a pcap file, the oldest first.
+     * @param file
+     * @return number of datagrams written.
+     * @throws IOException
+     */
+    public int dump(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            int count = dump(out);
+            out.flush();
+            return count;
+        } finally {
+            try{out.close();}catch(IOException ignore){}
+        }
+    }
+
+    /**
+     * Write the datagrams in the ring in the pcap format, the oldest first.
+     * @param out
+     * @return number of datagrams written.
+     * @throws IOException
+     */
+    public int dump(DataOutputStream out) throws IOException {
+        //Global header, written big endian, which the readers find from the magic number
+        out.writeInt(0xa1b2c3d4);
+        out.writeShort(2);
+        out.writeShort(4);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(IPV6_HEADER+UDP_HEADER+snapLength);
+        out.writeInt(LINKTYPE_RAW);
+
+        ByteBuffer view = ring.duplicate();
+        byte slotBytes[] = new byte[slotSize];
+        ByteBuffer slotView = ByteBuffer.wrap(slotBytes);
+        long last = sequence.get();
+        int count = 0;
+        for (long seq=Math.max(0, last-packets); seq<last; seq++) {
+            int slot = (int)(seq % packets);
+            if (stamps.get(slot)!=seq+1) continue;
+            view.limit(slot*slotSize+slotSize);
+            view.position(slot*slotSize);
+            view.get(slotBytes);
+            if (stamps.get(slot)!=seq+1) continue; //Overwritten while copied
+            writePacket(out, slotView, slotBytes);
+            count++;
+        }
+        return count;
+    }
+
+    private static void writePacket(DataOutputStream out, ByteBuffer slot, byte bytes[]) throws IOException {
+        long time = slot.getLong(TIME);
+        int sourcePort = slot.getInt(SOURCE_PORT);
+        int destinationPort = slot.getInt(DESTINATION_PORT);
+        boolean ipv4 = slot.getInt(VERSION)==4;
+        int captured = slot.getInt(CAPTURED);
+        int length = slot.getInt(LENGTH);
+        int ipHeader = ipv4 ? IPV4_HEADER : IPV6_HEADER;
+
+        ByteBuffer packet = ByteBuffer.allocate(ipHeader+UDP_HEADER+captured);
+        int udpLength = UDP_HEADER+length;
+        if (ipv4) {
+            packet.put((byte)0x45);
+            packet.put((byte)0);
+            packet.putShort((short)(IPV4_HEADER+udpLength));
+            packet.putInt(0); //Identification, flags and fragment offset
+            packet.put((byte)64); //TTL
+            packet.put((byte)17); //UDP
+            packet.putShort((short)0);
+            packet.put(bytes, SOURCE+12, 4);
+            packet.put(bytes, DESTINATION+12, 4);
+            packet.putShort(10, (short)checksum(packet.array(), 0, IPV4_HEADER, 0));
+        }
+        else {
+            packet.putInt(0x60000000);
+            packet.putShort((short)udpLength);
+            packet.put((byte)17); //Next header is UDP
+            packet.put((byte)64); //Hop limit
+            packet.put(bytes, SOURCE, 16);
+            packet.put(bytes, DESTINATION, 16);
+        }
+        int udp = packet.position();
+        packet.putShort((short)sourcePort);
+        packet.putShort((short)destinationPort);
+        packet.putShort((short)udpLength);
+        packet.putShort((short)0);
+        packet.put(bytes, DATA, captured);
+        if (captured==length) {
+            //The checksum can only be computed over the whole datagram
+            long sum = 17 + udpLength;
+            if (ipv4) {
+                sum += sum(bytes, SOURCE+12, 4) + sum(bytes, DESTINATION+12, 4);
+            }
+            else {
+                sum += sum(bytes, SOURCE, 16) + sum(bytes, DESTINATION, 16);
+            }
+            int checksum = checksum(packet.array(), udp, UDP_HEADER+captured, sum);
+            packet.putShort(udp+6, (short)(checksum==0 ? 0xffff : checksum));
+        }
+
+        out.writeInt((int)(time/1000000));
+        out.writeInt((int)(time%1000000));
+        out.writeInt(packet.capacity());
+        out.writeInt(ipHeader+udpLength);
+        out.write(packet.array());
+    }
+
+    private static long sum(byte bytes[], int offset, int length) {
+        long sum = 0;
+        for (int i=0; i<length; i+=2) {
+            sum += (bytes[offset+i] & 0xff) << 8;
+            if (i+1<length) sum += bytes[offset+i+1] & 0xff;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the Internet checksum (RFC 1071) of the bytes plus an initial sum.
+     */
+    private static int checksum(byte bytes[], int offset, int length, long initial) {
+        long sum = initial + sum(bytes, offset, length);
+        while ((sum >> 16)!=0) sum = (sum & 0xffff) + (sum >> 16);
+        return (int)(~sum & 0xffff);
+    }
+}
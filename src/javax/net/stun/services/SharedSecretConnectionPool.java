@@ -0,0 +1,250 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.stun.MessageHeader;
+import javax.net.stun.Utils;
+
+/**
+ * A pool of long-lived TLS connections from a {@link BindingService} to a
+ * remote {@link SharedSecretService}. The requests are pipelined: any number
+ * of threads may send a request on the same connection without waiting for
+ * the answers of the others, a reader thread per connection hands each
+ * answer to the thread waiting for the request with the same transaction id.
+ * A request therefore costs one round trip, the TLS handshake is only done
+ * when a connection is opened (and is resumed when it is re-opened).
+ *
+ * @author Henrik Baastrup
+ */
+class SharedSecretConnectionPool {
+    private static final AtomicInteger readerCount = new AtomicInteger();
+
+    private final InetAddress address;
+    private final int port;
+    private final int timeout;
+    private final Connection connections[];
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong connects = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param address of the Shared Secret service.
+     * @param port
+     * @param size number of connections.
+     * @param timeout time in milliseconds to wait for the TLS handshake and for an answer.
+     */
+    SharedSecretConnectionPool(InetAddress address, int port, int size, int timeout) {
+        this.address = address;
+        this.port = port;
+        this.timeout = timeout;
+        connections = new Connection[size];
+        for (int i=0; i<size; i++) connections[i] = new Connection();
+    }
+
+    /**
+     * @return number of TLS connections opened.
+     */
+    long getConnects() {return connects.get();}
+
+    /**
+     * @return number of requests sent but not answered yet.
+     */
+    int getPending() {
+        int pending = 0;
+        for (Connection connection : connections) pending += connection.pending.size();
+        return pending;
+    }
+
+    /**
+     * Send a request and wait for the answer. A request failing because a
+     * connection was found closed is retried once on a new connection.
+     * @param request
+     * @return the answer.
+     * @throws IOException if no answer was received.
+     */
+    MessageHeader exchange(MessageHeader request) throws IOException {
+        byte message[] = request.toBytes();
+        ByteBuffer transactionId = ByteBuffer.wrap(Arrays.copyOfRange(message, 4, 20));
+        int first = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        for (int attempt=0; ; attempt++) {
+            //A transaction id can only be waited for once per connection, e.g. if a client retransmits
+            Connection connection = null;
+            Pending pending = new Pending();
+            for (int i=0; i<connections.length && connection==null; i++) {
+                Connection candidate = connections[(first+i) % connections.length];
+                if (candidate.pending.putIfAbsent(transactionId, pending)==null) connection = candidate;
+            }
+            if (connection==null) throw new IOException("A request with the same transaction id is already waiting for an answer");
+
+            try {
+                connection.send(message);
+                byte answer[] = pending.await(timeout);
+                return MessageHeader.create(answer);
+            } catch (ConnectionClosedException ex) {
+                if (attempt>0 || closed) throw ex;
+            } finally {
+                connection.pending.remove(transactionId, pending);
+            }
+        }
+    }
+
+    /**
+     * Close all connections, the waiting requests fail.
+     */
+    void close() {
+        closed = true;
+        for (Connection connection : connections) connection.close(new ConnectionClosedException("The connection pool is closed"));
+    }
+
+    /**
+     * Thrown when a request failed because its connection was closed, before
+     * or after the request was sent.
+     */
+    private static class ConnectionClosedException extends EOFException {
+        private static final long serialVersionUID = 1L;
+
+        ConnectionClosedException(String message) {super(message);}
+    }
+
+    private static class Pending {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile byte answer[] = null;
+        private volatile IOException failure = null;
+
+        void answer(byte arg0[]) {
+            answer = arg0;
+            done.countDown();
+        }
+
+        void fail(IOException arg0) {
+            failure = arg0;
+            done.countDown();
+        }
+
+        byte[] await(int timeout) throws IOException {
+            try {
+                if (timeout>0) {
+                    if (!done.await(timeout, TimeUnit.MILLISECONDS)) throw new SocketTimeoutException("No answer from the Shared Secret service within "+timeout+"ms");
+                }
+                else {
+                    done.await();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the Shared Secret service");
+            }
+            if (failure!=null) throw failure;
+            return answer;
+        }
+    }
+
+    /**
+     * One TLS connection, opened on demand. The requests are written under
+     * the lock of the connection, the answers are read by its reader thread.
+     */
+    private class Connection {
+        final ConcurrentHashMap<ByteBuffer, Pending> pending = new ConcurrentHashMap<ByteBuffer, Pending>();
+        private SSLSocket socket = null;
+        private OutputStream out = null;
+
+        synchronized void send(byte message[]) throws IOException {
+            if (closed) throw new ConnectionClosedException("The connection pool is closed");
+            if (socket==null) connect();
+            try {
+                out.write(message);
+                out.flush();
+            } catch (IOException ex) {
+                close(new ConnectionClosedException("The connection to the Shared Secret service was closed: "+ex.getMessage()));
+                throw new ConnectionClosedException(ex.getMessage());
+            }
+        }
+
+        private void connect() throws IOException {
+            SSLSocketFactory factory = (SSLSocketFactory)SSLSocketFactory.getDefault();
+            final SSLSocket sslSocket = (SSLSocket)factory.createSocket(address, port);
+            try {
+                sslSocket.setSoTimeout(timeout);
+                sslSocket.setTcpNoDelay(true);
+                sslSocket.startHandshake();
+                //The answers are waited for by the requesting threads, the reader waits forever
+                sslSocket.setSoTimeout(0);
+                out = sslSocket.getOutputStream();
+            } catch (IOException ex) {
+                try{sslSocket.close();}catch(IOException ignore){}
+                throw ex;
+            }
+            socket = sslSocket;
+            connects.incrementAndGet();
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    read(sslSocket);
+                }
+            }, "Shared Secret Connection Reader-"+readerCount.getAndIncrement());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read(SSLSocket sslSocket) {
+            try {
+                InputStream in = sslSocket.getInputStream();
+                byte answer[];
+                while ((answer = Utils.readMessage(in))!=null) {
+                    Pending request = pending.remove(ByteBuffer.wrap(answer, 4, 16).slice());
+                    if (request!=null) request.answer(answer);
+                }
+                close(sslSocket, new ConnectionClosedException("The Shared Secret service closed the connection"));
+            } catch (IOException ex) {
+                if (!sslSocket.isClosed()) Logger.getLogger(BindingService.class.getName()).log(Level.WARNING, "Lost the connection to the Shared Secret service", ex);
+                close(sslSocket, new ConnectionClosedException("The connection to the Shared Secret service was lost: "+ex.getMessage()));
+            }
+        }
+
+        synchronized void close(IOException failure) {
+            if (socket!=null) close(socket, failure);
+        }
+
+        /**
+         * Close the socket, if it is still the one in use, and fail the requests waiting on it.
+         */
+        private synchronized void close(SSLSocket sslSocket, IOException failure) {
+            if (socket!=sslSocket) return; //Already replaced by a new connection
+            try{socket.close();}catch(IOException ignore){}
+            socket = null;
+            out = null;
+            for (Pending request : pending.values()) request.fail(failure);
+            pending.clear();
+        }
+    }
+}
@@ -18,27 +18,45 @@
 
 package javax.net.stun.services;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.stun.HmacKey;
 import javax.net.stun.MessageAttribute;
 import javax.net.stun.MessageHeader;
+import javax.net.stun.StunMessageView;
 import javax.net.stun.Utils;
 
 /**
@@ -46,9 +64,21 @@ import javax.net.stun.Utils;
  * @author Henrik Baastrup
  */
 public class SharedSecretService implements Runnable,UncaughtExceptionHandler {
-    private boolean running = false;
-    private SSLServerSocket serverSocket = null;
+    /** Default time a credential is valid, 10 minutes. */
+    public static final long DEFAULT_CREDENTIAL_TTL = 600000;
+    private static final long EXPIRY_TICK = 1000;
+    private static final int EXPIRY_SLOTS = 1024;
+    /** How often an idle connection checks if other connections are waiting for a worker thread. */
+    private static final int IDLE_SLICE = 250;
+
+    private volatile boolean running = false;
+    private volatile SSLServerSocket serverSocket = null;
     private Thread thread = null;
+    private ThreadPoolExecutor workers = null;
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+    private int backlog = 50;
+    private volatile int readTimeout = 5000;
+    private volatile int keepAliveTimeout = 15000;
 
     private InetAddress address = null;
     private int port = 3478;
@@ -57,15 +87,54 @@ public class SharedSecretService implements Runnable,UncaughtExceptionHandler {
     private char keyStorePassword[] = null;
     private char keyPassword[] = null;
 
-    private ArrayList<UserHolder> users = new ArrayList<UserHolder>();
-
-    private boolean debug = false;
+    /** The credentials handed out, indexed by username. */
+    private final ConcurrentHashMap<String, UserHolder> users = new ConcurrentHashMap<String, UserHolder>();
+    private volatile long credentialTtl = DEFAULT_CREDENTIAL_TTL;
+    private final TimerWheel<UserHolder> expiryWheel = new TimerWheel<UserHolder>(EXPIRY_TICK, EXPIRY_SLOTS, new TimerWheel.Listener<UserHolder>() {
+        public void expired(UserHolder item) {
+            users.remove(item.username, item);
+        }
+    }, System.currentTimeMillis());
+    private ScheduledExecutorService expiryTimer = null;
+
+    private volatile boolean debug = false;
+    private final Tracer tracer = new Tracer(Logger.getLogger(SharedSecretService.class.getName()));
+    /** The name the service is registered with in the platform MBean server, or null. */
+    private volatile ObjectName mbeanName = null;
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter connections = metrics.counter("stun_shared_secret_connections_total", "TLS connections accepted");
+    private final Metrics.Counter rejectedConnections = metrics.counter("stun_shared_secret_rejected_connections_total", "Connections closed right away because all worker threads were busy");
+    private final Metrics.Counter handshakeFailures = metrics.counter("stun_shared_secret_handshake_failures_total", "Connections closed because the TLS handshake failed");
+    private final Metrics.Counter sharedSecretRequests = metrics.counter("stun_shared_secret_requests_total", "Requests received by type", "type", "shared_secret_request");
+    private final Metrics.Counter verifyRequests = metrics.counter("stun_shared_secret_requests_total", "Requests received by type", "type", "shared_secret_verify_request");
+    private final Metrics.Counter otherRequests = metrics.counter("stun_shared_secret_requests_total", "Requests received by type", "type", "other");
+    private final Metrics.Counter responses = metrics.counter("stun_shared_secret_responses_total", "Shared Secret Responses sent");
+    private final Metrics.CodeCounters errorResponses = metrics.codeCounters("stun_shared_secret_error_responses_total", "Shared Secret Error Responses sent by error code", "code");
+    private final Metrics.Counter integrityFailures = metrics.counter("stun_shared_secret_integrity_failures_total", "Verify requests failing the MESSAGE-INTEGRITY check");
+    private final Metrics.Counter socketErrors = metrics.counter("stun_shared_secret_socket_errors_total", "Connections closed on an I/O error");
+    private final Metrics.Histogram processingTime = metrics.histogram("stun_shared_secret_processing_time_ns", "Time to answer a request in nanoseconds, reading and writing excluded");
 
     public SharedSecretService() {
-
+        metrics.gauge("stun_shared_secret_credentials", "Credentials handed out and not yet removed by the expiry timer", new Metrics.GaugeSource() {
+            public long getValue() {return users.size();}
+        });
+        metrics.gauge("stun_shared_secret_queued_connections", "Accepted connections waiting for a worker thread", new Metrics.GaugeSource() {
+            public long getValue() {
+                ThreadPoolExecutor pool = workers;
+                return pool==null ? 0 : pool.getQueue().size();
+            }
+        });
+        metrics.gauge("stun_shared_secret_busy_workers", "Worker threads handling a connection", new Metrics.GaugeSource() {
+            public long getValue() {
+                ThreadPoolExecutor pool = workers;
+                return pool==null ? 0 : pool.getActiveCount();
+            }
+        });
     }
 
     public SharedSecretService(final int port) {
+        this();
         if (port!=0) this.port = port;
     }
 
@@ -80,9 +149,152 @@ public class SharedSecretService implements Runnable,UncaughtExceptionHandler {
         super.finalize();
     }
     
+    /**
+     * Note: this method copies all the credentials and should be kept out of
+     * the hot path, use {@link #getUser(String)} to find a single user.
+     * @return a copy of the credentials handed out.
+     */
     public List<UserHolder> getUsers() {
-        synchronized (users) {
-            return new ArrayList<UserHolder>(users);
+        return new ArrayList<UserHolder>(users.values());
+    }
+
+    /**
+     * @param username
+     * @return the credential with the given username or null if the user is unknown.
+     */
+    public UserHolder getUser(String username) {
+        if (username==null) return null;
+        UserHolder userHolder = users.get(username);
+        //The user may have expired since the last tick of the expiry timer
+        if (userHolder==null || userHolder.expires <= System.currentTimeMillis()) return null;
+        return userHolder;
+    }
+
+    /**
+     * @return the number of credentials handed out and not yet expired.
+     */
+    public int getUserCount() {return users.size();}
+
+    /**
+     * The counters and histograms of the service. They are updated without
+     * locks by the worker threads and may be read at any time.
+     * @return the metrics of the service.
+     */
+    public Metrics getMetrics() {return metrics;}
+
+    /**
+     * Register the service with the platform MBean server, so it can be
+     * observed and tuned with e.g. jconsole, see {@link SharedSecretServiceMXBean}.
+     * @return the name the service is registered with.
+     * @throws JMException if the service could not be registered, e.g. if a
+     * service with the same address and port is registered.
+     */
+    public ObjectName registerMBean() throws JMException {
+        ObjectName name = new ObjectName("javax.net.stun:type=SharedSecretService,address="+ObjectName.quote(String.valueOf(address))+",port="+port);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new SharedSecretServiceMonitor(this), name);
+        mbeanName = name;
+        return name;
+    }
+
+    /**
+     * Unregister the service from the platform MBean server, if registered.
+     */
+    public void unregisterMBean() {
+        ObjectName name = mbeanName;
+        mbeanName = null;
+        if (name==null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ex) {
+            Logger.getLogger(SharedSecretService.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Create a new credential, as done when a Shared Secret Request is
+     * received. Can be used to hand out credentials in-process to a
+     * {@link BindingService} using this service.
+     * @return the new credential.
+     */
+    public UserHolder createUser() {
+        UserHolder userHolder = UserHolder.create();
+        userHolder.expires = userHolder.created + credentialTtl;
+        while (users.putIfAbsent(userHolder.username, userHolder)!=null) {
+            userHolder = UserHolder.create();
+            userHolder.expires = userHolder.created + credentialTtl;
+        }
+        expiryWheel.schedule(userHolder, userHolder.expires);
+        return userHolder;
+    }
+
+    /**
+     * Set the time a credential is valid after it has been handed out. Only
+     * the credentials created after the call are affected.
+     * @param arg0 time in milliseconds (default {@value #DEFAULT_CREDENTIAL_TTL}).
+     */
+    public void setCredentialTtl(long arg0) {
+        if (arg0 < 1) arg0 = 1;
+        credentialTtl = arg0;
+    }
+    public long getCredentialTtl() {return credentialTtl;}
+
+    /**
+     * Set the number of threads handling the accepted connections (TLS
+     * handshake, request and response). Must be called before the service
+     * is started.
+     * @param arg0 number of threads (default number of available processors).
+     */
+    public void setWorkerThreads(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        workerThreads = arg0;
+    }
+    public int getWorkerThreads() {return workerThreads;}
+
+    /**
+     * Set the listen backlog of the server socket. The same number of
+     * accepted connections may wait for a worker thread, when more are
+     * waiting new connections are closed right away. Must be called before
+     * the service is started.
+     * @param arg0 backlog (default 50).
+     */
+    public void setBacklog(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        backlog = arg0;
+    }
+    public int getBacklog() {return backlog;}
+
+    /**
+     * Set the time a client may use for the TLS handshake and for sending
+     * its request, before the connection is closed.
+     * @param arg0 timeout in milliseconds (default 5000).
+     */
+    public void setReadTimeout(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        readTimeout = arg0;
+    }
+    public int getReadTimeout() {return readTimeout;}
+
+    /**
+     * Set the time a connection may be idle between two requests before it
+     * is closed. Clients keeping the connection open avoid a TLS handshake
+     * per request. An idle connection is closed before the timeout when other
+     * connections are waiting for a worker thread.
+     * @param arg0 timeout in milliseconds (default 15000).
+     */
+    public void setKeepAliveTimeout(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        keepAliveTimeout = arg0;
+    }
+    public int getKeepAliveTimeout() {return keepAliveTimeout;}
+
+    /**
+     * Remove the credentials that have expired. Called every second while
+     * the service is running.
+     * @return number of removed credentials.
+     */
+    int expireUsers() {
+        synchronized (expiryWheel) {
+            return expiryWheel.advance(System.currentTimeMillis());
         }
     }
 
@@ -124,16 +336,44 @@ public class SharedSecretService implements Runnable,UncaughtExceptionHandler {
         if (running) return;
         thread = new Thread(this, "Shared Secret Service Thread");
         thread.setUncaughtExceptionHandler(this);
+        startExpiryTimer();
         thread.start();
     }
 
+    private synchronized void startExpiryTimer() {
+        if (expiryTimer!=null) return;
+        expiryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread timerThread = new Thread(r, "Shared Secret Expiry Thread");
+                timerThread.setDaemon(true);
+                timerThread.setUncaughtExceptionHandler(SharedSecretService.this);
+                return timerThread;
+            }
+        });
+        expiryTimer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    int expired = expireUsers();
+                    if (debug && expired>0) Logger.getLogger(SharedSecretService.class.getName()).log(Level.INFO, "Expired "+expired+" credentials");
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(SharedSecretService.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }, EXPIRY_TICK, EXPIRY_TICK, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopExpiryTimer() {
+        if (expiryTimer==null) return;
+        expiryTimer.shutdownNow();
+        expiryTimer = null;
+    }
+
     public void stop() {
         running = false;
-        if (serverSocket!=null) {
-            synchronized (serverSocket) {
-                serverSocket.notifyAll();
-            }
-        }
+        stopExpiryTimer();
+        //Closing the server socket makes the acceptor thread leave accept()
+        SSLServerSocket socket = serverSocket;
+        if (socket!=null) try{socket.close();}catch(IOException ignore){}
         thread = null;
     }
 
@@ -174,22 +414,44 @@ public class SharedSecretService implements Runnable,UncaughtExceptionHandler {
             else {
                 sslFactory = (SSLServerSocketFactory)SSLServerSocketFactory.getDefault();
             }
-            serverSocket = (SSLServerSocket)sslFactory.createServerSocket(port, 10, address);
+            serverSocket = (SSLServerSocket)sslFactory.createServerSocket(port, backlog, address);
             serverSocket.setSoTimeout(30000);
+            if (!running) return; //Stopped while starting
+            workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(backlog), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread workerThread = new Thread(r, "Shared Secret Worker-"+count.getAndIncrement());
+                    workerThread.setUncaughtExceptionHandler(SharedSecretService.this);
+                    return workerThread;
+                }
+            });
 //            String cipherSuites[] = {"TLS_RSA_WITH_AES_128_CBC_SHA","TLS_DHE_RSA_WITH_AES_128_CBC_SHA","TLS_DHE_DSS_WITH_AES_128_CBC_SHA"}; //Only TLS Cipher Suites
 //            serverSocket.setEnabledCipherSuites(cipherSuites);
             
             while (running) {
                 try {
-                    Socket sock;
+                    final Socket sock;
                     try {
                         sock = serverSocket.accept();
-                        if (!running) break;
-                        read(sock);
                     } catch (SocketTimeoutException ex) {
-                        cleanUpUsers();
                         continue;
                     }
+                    if (!running) {
+                        try{sock.close();}catch(IOException ignore){}
+                        break;
+                    }
+                    connections.increment();
+                    try {
+                        workers.execute(new Runnable() {
+                            public void run() {
+                                handle(sock);
+                            }
+                        });
+                    } catch (RejectedExecutionException ex) {
+                        rejectedConnections.increment();
+                        Logger.getLogger(SharedSecretService.class.getName()).log(Level.WARNING, "All worker threads are busy, the connection from "+sock.getInetAddress()+" is closed");
+                        try{sock.close();}catch(IOException ignore){}
+                    }
                 } catch (RuntimeException ex) {
                     Logger.getLogger(SharedSecretService.class.getName()).log(Level.SEVERE, null, ex);
                 }
@@ -197,22 +459,39 @@ public class SharedSecretService implements Runnable,UncaughtExceptionHandler {
         } catch (GeneralSecurityException ex) {
             Logger.getLogger(SharedSecretService.class.getName()).log(Level.SEVERE, null, ex);
         } catch (IOException ex) {
-            Logger.getLogger(SharedSecretService.class.getName()).log(Level.SEVERE, null, ex);
+            //When stopped the server socket is closed under accept()
+            if (running) Logger.getLogger(SharedSecretService.class.getName()).log(Level.SEVERE, null, ex);
         } finally {
             if (keyStoreIn!=null) try{keyStoreIn.close();}catch(IOException ignore){}
             if (serverSocket!=null) try{serverSocket.close();}catch(IOException ignore){}
+            if (workers!=null) workers.shutdown();
         }
         running = false;
     }
 
-    public void setDebug(boolean arg0) {debug = arg0;}
+    /**
+     * Turn the debug logs and the tracing of the requests on or off. The
+     * requests traced are selected by the {@link #getTracer() tracer}, by
+     * default all of them.
+     * @param arg0
+     */
+    public void setDebug(boolean arg0) {
+        debug = arg0;
+        tracer.setEnabled(arg0);
+    }
+    public boolean isDebug() {return debug;}
+
+    /**
+     * @return the tracer of the received requests and their answers.
+     */
+    public Tracer getTracer() {return tracer;}
 
 
 
     public int controllMessageIntegrity(MessageHeader receivedHeader) {
         MessageAttribute username = receivedHeader.getMessageAttribute(MessageAttribute.MessageAttributeType.USERNAME);
         MessageAttribute messageIntegrity = receivedHeader.getMessageAttribute(MessageAttribute.MessageAttributeType.MESSAGE_INTEGRITY);
-        byte password[] = getPassword(receivedHeader);
+        HmacKey key = getKey(receivedHeader);
 
         if (username==null) {
             return 432;
@@ -220,36 +499,89 @@ public class SharedSecretService implements Runnable,UncaughtExceptionHandler {
         else if (messageIntegrity==null) {
             return 401;
         }
-        else if (password==null) {
+        else if (key==null) {
             return 430;
         }
         
-        int errorInt = receivedHeader.integrityCheck(password);
+        int errorInt = receivedHeader.integrityCheck(key);
         return errorInt;
     }
 
+    /**
+     * Check the MESSAGE-INTEGRITY of a message directly over the received
+     * bytes, without re-encoding it.
+     * @param request view of the received message.
+     * @return 0 if the check succeed, else the error code.
+     */
+    public int controllMessageIntegrity(StunMessageView request) {
+        if (!request.hasAttribute(MessageAttribute.USERNAME)) return 432;
+        if (!request.hasAttribute(MessageAttribute.MESSAGE_INTEGRITY)) return 401;
+        HmacKey key = getKey(request);
+        if (key==null) return 430;
+        return request.integrityCheck(key);
+    }
+
     public byte[] getPassword(MessageHeader header) {
-        MessageAttribute username = header.getMessageAttribute(MessageAttribute.MessageAttributeType.USERNAME);
+        UserHolder userHolder = getUser(header);
+        if (userHolder==null) return null;
+        return userHolder.password;
+    }
 
-        if (username==null) return null;
+    /**
+     * @param header
+     * @return the HMAC key of the password belonging to the username of the message or null if the user is unknown.
+     */
+    public HmacKey getKey(MessageHeader header) {
+        UserHolder userHolder = getUser(header);
+        if (userHolder==null) return null;
+        return userHolder.key;
+    }
 
-        UserHolder userHolder = null;
-        List<UserHolder> userList = getUsers();
-        for (UserHolder uh: userList) {
-            if (uh.username.equals(username.getUsername())) {
-                userHolder = uh;
-                break;
-            }
-        }
+    /**
+     * @param request
+     * @return the HMAC key of the password belonging to the username of the message or null if the user is unknown.
+     */
+    public HmacKey getKey(StunMessageView request) {
+        UserHolder userHolder = getUser(request.getUsername());
         if (userHolder==null) return null;
+        return userHolder.key;
+    }
 
-        return userHolder.password;
+    private UserHolder getUser(MessageHeader header) {
+        MessageAttribute username = header.getMessageAttribute(MessageAttribute.MessageAttributeType.USERNAME);
+
+        if (username==null) return null;
+        return getUser(username.getUsername());
     }
 
 
 
 
 
+
+    /**
+     * Handle an accepted connection on a worker thread.
+     * @param sock
+     */
+    private void handle(Socket sock) {
+        try {
+            sock.setSoTimeout(readTimeout);
+            if (sock instanceof SSLSocket) ((SSLSocket)sock).startHandshake();
+        } catch (IOException ex) {
+            handshakeFailures.increment();
+            if (debug) Logger.getLogger(SharedSecretService.class.getName()).log(Level.INFO, "TLS handshake with "+sock.getInetAddress()+" failed: "+ex);
+            try{sock.close();}catch(IOException ignore){}
+            return;
+        }
+        read(sock);
+    }
+
+    /**
+     * Answer the requests of a connection until the client closes it, it has
+     * been idle longer than the keep-alive timeout or an unknown request is
+     * received.
+     * @param sock
+     */
     private void read(Socket sock) {
         InetAddress clientAddr = sock.getInetAddress();
         int clientPort = sock.getPort();
@@ -257,102 +589,140 @@ public class SharedSecretService implements Runnable,UncaughtExceptionHandler {
 
         InputStream in = null;
         OutputStream out = null;
+        int requests = 0;
         try {
-            in = sock.getInputStream();
+            PushbackInputStream pushbackIn = new PushbackInputStream(sock.getInputStream());
+            in = pushbackIn;
             out = sock.getOutputStream();
 
-            byte head[] = new byte[20];
-            int bytesRead = 0;
-            while (bytesRead<20) {
-                int r = in.read(head, 0, 20);
-                if (r < 0) return;
-                bytesRead += r;
-            }
-            int length = (0x000000FF & ((int)head[2]))<<8;
-            length += (0x000000FF & ((int)head[3]));
-
-            byte buffer[] = new byte[length];
-            int read = 0;
-            while (read<length) {
-                int r = in.read(buffer, read, length);
-                read += r;
-            }
-
-            byte headBuffer[] = new byte[length+20];
-            for (int i=0; i<20; i++) headBuffer[i] = head[i];
-            for (int i=0; i<length; i++) headBuffer[i+20] = buffer[i];
-
-            MessageHeader recHeader = MessageHeader.create(headBuffer);
-            if (debug) Logger.getLogger(SharedSecretService.class.getName()).log(Level.INFO, "Received request from "+clientAddr+":"+clientPort+" => "+recHeader);
-            MessageHeader retHeader;
-            if (recHeader.getType()!=MessageHeader.HeaderType.SHARED_SECRET_REQUEST && recHeader.getType()!=MessageHeader.HeaderType.SHARED_SECRET_VERIFY_REQUEST) {
-                retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_ERROR_RESPONSE);
+            while (running) {
+                //The first request must follow the handshake, later ones may wait for the keep-alive timeout
+                if (requests>0 && !awaitRequest(sock, pushbackIn)) break;
+                byte headBuffer[] = Utils.readMessage(in);
+                if (headBuffer==null) break; //The client has closed the connection
+                requests++;
+
+                MessageHeader recHeader = MessageHeader.create(headBuffer);
+                boolean traced = tracer.sample(clientAddr);
+                if (traced) tracer.trace("Received request from", clientAddr, clientPort, recHeader);
+                boolean known = recHeader.getType()==MessageHeader.HeaderType.SHARED_SECRET_REQUEST || recHeader.getType()==MessageHeader.HeaderType.SHARED_SECRET_VERIFY_REQUEST;
+                long start = System.nanoTime();
+                MessageHeader retHeader = answer(recHeader, headBuffer);
+                processingTime.record(System.nanoTime()-start);
                 retHeader.setTransactionId(recHeader.getTransactionId());
-                MessageAttribute errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(400), 400);
-                retHeader.addMessageAttribute(errorCode);
-                if (debug) Logger.getLogger(SharedSecretService.class.getName()).log(Level.INFO, "Responding to "+clientAddr+":"+clientPort+" with => "+retHeader);
+                if (traced) tracer.trace("Responding to", clientAddr, clientPort, retHeader);
                 out.write(retHeader.toBytes());
-                return;
+                out.flush();
+                if (!known) break;
             }
+        } catch (SocketTimeoutException ex) {
+            if (debug) Logger.getLogger(SharedSecretService.class.getName()).log(Level.INFO, "Timeout reading from "+clientAddr+":"+clientPort+" after "+requests+" requests");
+        } catch (EOFException ex) {
+            if (debug) Logger.getLogger(SharedSecretService.class.getName()).log(Level.INFO, "Connection from "+clientAddr+":"+clientPort+" closed in the middle of a request");
+        } catch (IOException ex) {
+            //A client closing an idle connection is normal
+            if (requests==0) socketErrors.increment();
+            if (requests==0 || debug) Logger.getLogger(SharedSecretService.class.getName()).log(requests==0 ? Level.SEVERE : Level.INFO, null, ex);
+        } finally {
+            if (in!=null) try {in.close();}catch(IOException ignore){}
+            if (out!=null) try{out.close();}catch(IOException ignore){}
+            try{sock.close();}catch(IOException ignore){}
+        }
+    }
 
-            UserHolder userHolder = UserHolder.create();
-            synchronized (users) {
-                users.add(userHolder);
+    /**
+     * Wait for the next request on a kept alive connection. The wait is done
+     * in slices so an idle connection gives its worker thread back as soon as
+     * other connections are waiting for one.
+     * @param sock
+     * @param in
+     * @return true when the next request is arriving, false if the connection should be closed.
+     * @throws IOException
+     */
+    private boolean awaitRequest(Socket sock, PushbackInputStream in) throws IOException {
+        long idleSince = System.currentTimeMillis();
+        sock.setSoTimeout(Math.min(keepAliveTimeout, IDLE_SLICE));
+        try {
+            while (running) {
+                try {
+                    int b = in.read();
+                    if (b < 0) return false;
+                    in.unread(b);
+                    return true;
+                } catch (SocketTimeoutException ex) {
+                    if (System.currentTimeMillis()-idleSince >= keepAliveTimeout) return false;
+                    ThreadPoolExecutor pool = workers;
+                    if (pool!=null && !pool.getQueue().isEmpty()) return false;
+                }
             }
+            return false;
+        } finally {
+            sock.setSoTimeout(readTimeout);
+        }
+    }
 
-            if (recHeader.getType()==MessageHeader.HeaderType.SHARED_SECRET_VERIFY_REQUEST) {
-                //This is a message integrity veryfy request!
-                int errCod = controllMessageIntegrity(recHeader);
-                if (errCod!=0) {
+    /**
+     * @param recHeader the received request.
+     * @param headBuffer the received bytes of the request.
+     * @return the response, without transaction id.
+     */
+    private MessageHeader answer(MessageHeader recHeader, byte headBuffer[]) {
+        MessageHeader retHeader;
+        if (recHeader.getType()!=MessageHeader.HeaderType.SHARED_SECRET_REQUEST && recHeader.getType()!=MessageHeader.HeaderType.SHARED_SECRET_VERIFY_REQUEST) {
+            otherRequests.increment();
+            errorResponses.increment(400);
+            retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_ERROR_RESPONSE);
+            MessageAttribute errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(400), 400);
+            retHeader.addMessageAttribute(errorCode);
+        }
+        else if (recHeader.getType()==MessageHeader.HeaderType.SHARED_SECRET_VERIFY_REQUEST) {
+            //This is a message integrity veryfy request!
+            verifyRequests.increment();
+            StunMessageView view = new StunMessageView();
+            view.wrap(ByteBuffer.wrap(headBuffer));
+            int errCod = controllMessageIntegrity(view);
+            if (errCod!=0) {
+                errorResponses.increment(errCod);
+                integrityFailures.increment();
+                retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_ERROR_RESPONSE);
+                MessageAttribute errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(errCod), errCod);
+                retHeader.addMessageAttribute(errorCode);
+            }
+            else {
+                UserHolder userHolder = getUser(recHeader);
+                if (userHolder==null) {
+                    errorResponses.increment(430);
                     retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_ERROR_RESPONSE);
-                    MessageAttribute errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(errCod), errCod);
+                    MessageAttribute errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(430), 430);
                     retHeader.addMessageAttribute(errorCode);
                 }
                 else {
-                    byte passwd[] = getPassword(recHeader);
-                    if (passwd==null) {
-                        retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_ERROR_RESPONSE);
-                        MessageAttribute errorCode = MessageAttribute.create(MessageAttribute.MessageAttributeType.ERROR_CODE, Utils.createErrorString(430), 430);
-                        retHeader.addMessageAttribute(errorCode);
-                    }
-                    else {
-                        //If all is OK we response with a password attribute so the requesting server
-                        //can construct a Integrity message
-                        retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_RESPONSE);
-                        MessageAttribute attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.PASSWORD, passwd, 0);
-                        retHeader.addMessageAttribute(attr);
-                    }
+                    //If all is OK we response with a password attribute so the requesting server
+                    //can construct a Integrity message, and the remaining lifetime so it
+                    //does not cache the password longer than the credential is valid
+                    responses.increment();
+                    retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_RESPONSE);
+                    MessageAttribute attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.PASSWORD, userHolder.password, 0);
+                    retHeader.addMessageAttribute(attr);
+                    long lifetime = Math.max(0, userHolder.expires - System.currentTimeMillis())/1000;
+                    attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.LIFETIME, (int)Math.min(lifetime, Integer.MAX_VALUE));
+                    retHeader.addMessageAttribute(attr);
                 }
             }
-            else {
-                //Default response: A shared secret response with Username and
-                //Password attributes.
-                retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_RESPONSE);
-                MessageAttribute attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.USERNAME, userHolder.username, 0);
-                retHeader.addMessageAttribute(attr);
-                attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.PASSWORD, userHolder.password, 0);
-                retHeader.addMessageAttribute(attr);
-            }
-            if (debug) Logger.getLogger(SharedSecretService.class.getName()).log(Level.INFO, "Responding to "+clientAddr+":"+clientPort+" with => "+retHeader);
-            out.write(retHeader.toBytes());
-        } catch (IOException ex) {
-            Logger.getLogger(SharedSecretService.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
-            if (in!=null) try {in.close();}catch(IOException ignore){}
-            if (out!=null) try{out.close();}catch(IOException ignore){}
-            try{sock.close();}catch(IOException ignore){}
         }
-    }
-
-    private void cleanUpUsers() {
-        long now = System.currentTimeMillis();
-        synchronized (users) {
-            ArrayList<UserHolder> usersToDelete = new ArrayList<UserHolder>();
-            for (UserHolder uh: users) {
-                if ((now - uh.created)>600000) usersToDelete.add(uh);
-            }
-            for (UserHolder uh: usersToDelete) users.remove(uh);
+        else {
+            //Default response: A shared secret response with Username and
+            //Password attributes.
+            sharedSecretRequests.increment();
+            responses.increment();
+            UserHolder userHolder = createUser();
+            retHeader = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_RESPONSE);
+            MessageAttribute attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.USERNAME, userHolder.username, 0);
+            retHeader.addMessageAttribute(attr);
+            attr = MessageAttribute.create(MessageAttribute.MessageAttributeType.PASSWORD, userHolder.password, 0);
+            retHeader.addMessageAttribute(attr);
         }
+        return retHeader;
     }
 
     public void uncaughtException(Thread t, Throwable e) {
@@ -0,0 +1,94 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.util.Map;
+
+/**
+ * The management interface of a {@link SharedSecretService}, registered with
+ * {@link SharedSecretService#registerMBean()}. The counters are read from the
+ * {@link Metrics} of the service. The rates are measured between two reads at
+ * least a second apart.
+ *
+ * @author Henrik Baastrup
+ */
+public interface SharedSecretServiceMXBean {
+    boolean isRunning();
+    int getWorkerThreads();
+    int getBacklog();
+
+    /** @return TLS connections accepted. */
+    long getConnections();
+    /** @return connections closed right away because all worker threads were busy. */
+    long getRejectedConnections();
+    long getHandshakeFailures();
+    /** @return requests received, of any type. */
+    long getRequests();
+    long getResponses();
+    long getErrorResponses();
+    /** @return verify requests failing the MESSAGE-INTEGRITY check. */
+    long getIntegrityFailures();
+    long getSocketErrors();
+    /** @return all the counters and gauges of the service by name and label. */
+    Map<String, Long> getCounters();
+
+    /** @return requests received per second. */
+    double getRequestRate();
+    /** @return new connections accepted per second. */
+    double getConnectionRate();
+
+    /** @return credentials handed out and not yet expired. */
+    int getCredentials();
+    /** @return accepted connections waiting for a worker thread. */
+    int getQueuedConnections();
+    /** @return worker threads handling a connection. */
+    int getBusyWorkers();
+    /** @return the share of the worker threads handling a connection, between 0 and 1. */
+    double getWorkerUtilization();
+
+    double getProcessingTimeMean();
+    /** @return median time in nanoseconds to answer a request. */
+    long getProcessingTimeP50();
+    long getProcessingTimeP99();
+    long getProcessingTimeMax();
+
+    /** @return time in milliseconds a new credential is valid. */
+    long getCredentialTtl();
+    void setCredentialTtl(long arg0);
+    int getKeepAliveTimeout();
+    void setKeepAliveTimeout(int arg0);
+    int getReadTimeout();
+    void setReadTimeout(int arg0);
+    boolean isDebug();
+    void setDebug(boolean arg0);
+
+    /** @return true if the sampled requests are traced to the log. */
+    boolean isTracing();
+    void setTracing(boolean arg0);
+    /** @return 1 of how many requests is traced. */
+    int getTraceSampleRate();
+    void setTraceSampleRate(int arg0);
+    /** @return comma separated addresses of the clients traced, empty for all clients. */
+    String getTraceClients();
+    void setTraceClients(String arg0);
+    /** @return number of requests traced. */
+    long getTraced();
+
+    /** Set all the counters and histograms of the service to 0. */
+    void resetMetrics();
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.net.UnknownHostException;
+import java.util.Map;
+
+/**
+ * The MXBean registered for a {@link SharedSecretService}, it reads the
+ * service and its {@link Metrics}.
+ *
+ * @author Henrik Baastrup
+ */
+class SharedSecretServiceMonitor implements SharedSecretServiceMXBean {
+    /** Min time in milliseconds between two measurements of the rates. */
+    private static final long SAMPLE_INTERVAL = 1000;
+
+    private final SharedSecretService service;
+    private final Metrics metrics;
+
+    private long sampleTime;
+    private long sampleRequests;
+    private long sampleConnections;
+    private double requestRate = 0;
+    private double connectionRate = 0;
+
+    SharedSecretServiceMonitor(SharedSecretService service) {
+        this.service = service;
+        this.metrics = service.getMetrics();
+        sampleTime = System.nanoTime();
+        sampleRequests = getRequests();
+        sampleConnections = getConnections();
+    }
+
+    public boolean isRunning() {return service.isRunning();}
+    public int getWorkerThreads() {return service.getWorkerThreads();}
+    public int getBacklog() {return service.getBacklog();}
+
+    public long getConnections() {return metrics.getValue("stun_shared_secret_connections_total");}
+    public long getRejectedConnections() {return metrics.getValue("stun_shared_secret_rejected_connections_total");}
+    public long getHandshakeFailures() {return metrics.getValue("stun_shared_secret_handshake_failures_total");}
+    public long getRequests() {return metrics.getValue("stun_shared_secret_requests_total");}
+    public long getResponses() {return metrics.getValue("stun_shared_secret_responses_total");}
+    public long getErrorResponses() {return metrics.getValue("stun_shared_secret_error_responses_total");}
+    public long getIntegrityFailures() {return metrics.getValue("stun_shared_secret_integrity_failures_total");}
+    public long getSocketErrors() {return metrics.getValue("stun_shared_secret_socket_errors_total");}
+
+    public Map<String, Long> getCounters() {
+        return BindingServiceMonitor.counters(metrics);
+    }
+
+    public synchronized double getRequestRate() {
+        sample();
+        return requestRate;
+    }
+
+    public synchronized double getConnectionRate() {
+        sample();
+        return connectionRate;
+    }
+
+    /**
+     * Measure the rates since the last measurement, if it is more than
+     * {@link #SAMPLE_INTERVAL} old.
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        long elapsed = now - sampleTime;
+        if (elapsed < SAMPLE_INTERVAL*1000000) return;
+        long requests = getRequests();
+        long connections = getConnections();
+        //The counters go back to 0 when the metrics are reset
+        requestRate = Math.max(0, (requests-sampleRequests)*1e9/elapsed);
+        connectionRate = Math.max(0, (connections-sampleConnections)*1e9/elapsed);
+        sampleTime = now;
+        sampleRequests = requests;
+        sampleConnections = connections;
+    }
+
+    public int getCredentials() {return service.getUserCount();}
+    public int getQueuedConnections() {return (int)metrics.getValue("stun_shared_secret_queued_connections");}
+    public int getBusyWorkers() {return (int)metrics.getValue("stun_shared_secret_busy_workers");}
+
+    public double getWorkerUtilization() {
+        return (double)getBusyWorkers()/service.getWorkerThreads();
+    }
+
+    private LatencyHistogram processingTime() {
+        return ((Metrics.Histogram)metrics.get("stun_shared_secret_processing_time_ns")).getHistogram();
+    }
+
+    public double getProcessingTimeMean() {return processingTime().getMean();}
+    public long getProcessingTimeP50() {return processingTime().getValueAtPercentile(50);}
+    public long getProcessingTimeP99() {return processingTime().getValueAtPercentile(99);}
+    public long getProcessingTimeMax() {return processingTime().getMax();}
+
+    public long getCredentialTtl() {return service.getCredentialTtl();}
+    public void setCredentialTtl(long arg0) {service.setCredentialTtl(arg0);}
+    public int getKeepAliveTimeout() {return service.getKeepAliveTimeout();}
+    public void setKeepAliveTimeout(int arg0) {service.setKeepAliveTimeout(arg0);}
+    public int getReadTimeout() {return service.getReadTimeout();}
+    public void setReadTimeout(int arg0) {service.setReadTimeout(arg0);}
+    public boolean isDebug() {return service.isDebug();}
+    public void setDebug(boolean arg0) {service.setDebug(arg0);}
+
+    public boolean isTracing() {return service.getTracer().isEnabled();}
+    public void setTracing(boolean arg0) {service.getTracer().setEnabled(arg0);}
+    public int getTraceSampleRate() {return service.getTracer().getSampleRate();}
+    public void setTraceSampleRate(int arg0) {service.getTracer().setSampleRate(arg0);}
+    public String getTraceClients() {return service.getTracer().getClientList();}
+
+    public void setTraceClients(String arg0) {
+        try {
+            service.getTracer().setClients(arg0);
+        } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException("Unknown client "+ex.getMessage());
+        }
+    }
+
+    public long getTraced() {return service.getTracer().getTraced();}
+
+    public void resetMetrics() {metrics.reset();}
+}
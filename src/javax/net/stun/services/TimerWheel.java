@@ -0,0 +1,131 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel used to expire items, e.g. the credentials handed out
+ * by the {@link SharedSecretService}. Time is divided in ticks and each tick
+ * maps to one slot of the wheel; an item is put in the slot of the tick its
+ * deadline falls in, so scheduling and expiring an item are O(1). Items with
+ * a deadline more than one turn of the wheel away stay in their slot until
+ * the wheel has turned enough times.<br>
+ * {@link #schedule} may be called from any thread, the items are handed to
+ * the wheel through a lock free queue. {@link #advance} must only be called
+ * from one thread at a time, it is the only one touching the slots.
+ *
+ * @author Henrik Baastrup
+ */
+class TimerWheel<T> {
+    /**
+     * Called by {@link TimerWheel#advance} for each expired item.
+     */
+    interface Listener<T> {
+        void expired(T item);
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final long deadline;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final ArrayList<Entry<T>> slots[];
+    private final ConcurrentLinkedQueue<Entry<T>> pending = new ConcurrentLinkedQueue<Entry<T>>();
+    private final Listener<T> listener;
+    /** The last tick all items has been expired for. */
+    private long expiredTick;
+    private int size = 0;
+
+    /**
+     * @param tickMillis length of a tick in milliseconds, items expire at most one tick late.
+     * @param slotCount number of slots, the wheel turns once every tickMillis*slotCount milliseconds.
+     * @param listener
+     * @param now the current time in milliseconds.
+     */
+    TimerWheel(long tickMillis, int slotCount, Listener<T> listener, long now) {
+        this.tickMillis = tickMillis;
+        this.listener = listener;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayList<Entry<T>> array[] = new ArrayList[slotCount];
+        slots = array;
+        for (int i=0; i<slotCount; i++) slots[i] = new ArrayList<Entry<T>>();
+        expiredTick = now/tickMillis - 1;
+    }
+
+    long getTickMillis() {return tickMillis;}
+
+    /**
+     * Schedule an item to expire. May be called from any thread.
+     * @param item
+     * @param deadline time in milliseconds the item expires at.
+     */
+    void schedule(T item, long deadline) {
+        pending.add(new Entry<T>(item, deadline));
+    }
+
+    /**
+     * Expire all items with a deadline in a tick that has passed.
+     * @param now the current time in milliseconds.
+     * @return number of expired items.
+     */
+    int advance(long now) {
+        Entry<T> entry;
+        while ((entry = pending.poll())!=null) {
+            long tick = Math.max(entry.deadline/tickMillis, expiredTick+1);
+            slots[(int)(tick % slots.length)].add(entry);
+            size++;
+        }
+
+        //A tick is done when all of it has passed
+        long target = now/tickMillis - 1;
+        //Each slot only needs to be visited once, however long time has passed
+        long tick = Math.max(expiredTick+1, target-slots.length+1);
+        int expired = 0;
+        for (; tick<=target; tick++) {
+            ArrayList<Entry<T>> slot = slots[(int)(tick % slots.length)];
+            int kept = 0;
+            for (int i=0; i<slot.size(); i++) {
+                entry = slot.get(i);
+                if (entry.deadline/tickMillis <= tick) {
+                    listener.expired(entry.item);
+                    expired++;
+                }
+                else {
+                    slot.set(kept++, entry);
+                }
+            }
+            slot.subList(kept, slot.size()).clear();
+        }
+        if (target > expiredTick) expiredTick = target;
+        size -= expired;
+        return expired;
+    }
+
+    /**
+     * @return number of items in the wheel, not counting the ones scheduled since the last {@link #advance}.
+     */
+    int size() {return size;}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import javax.net.stun.MessageHeader;
+import javax.net.stun.Utils;
+
+/**
+ * Traces the messages received and sent by a service to a {@link Logger} at
+ * level INFO. Only every Nth request is traced, optionally only from a set of
+ * client addresses, and a traced message is not formatted until a log handler
+ * publishes the record. So tracing can be left on under full load: when it is
+ * off a request costs a volatile read, when on a request not sampled costs an
+ * increment of a counter of the receiving thread, so the threads of a service
+ * do not contend on it. Each thread traces 1 of every N of its requests.<br>
+ * A service decides once per request with {@link #sample} and traces the
+ * request and its answer with {@link #trace}.
+ *
+ * @author Henrik Baastrup
+ */
+public class Tracer {
+    private final Logger logger;
+    private volatile boolean enabled = false;
+    private volatile int sampleRate = 1;
+    /** The clients to trace, empty to trace all clients. */
+    private volatile Set<InetAddress> clients = Collections.emptySet();
+    /** The requests seen by each thread, the sampling is done per thread. */
+    private final ThreadLocal<long[]> requests = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {return new long[1];}
+    };
+    private final LongAdder traced = new LongAdder();
+
+    /**
+     * @param logger the logger the records are written to.
+     */
+    public Tracer(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * @param arg0 true to trace the sampled requests (default false).
+     */
+    public void setEnabled(boolean arg0) {enabled = arg0;}
+    public boolean isEnabled() {return enabled;}
+
+    /**
+     * @param arg0 trace 1 of every arg0 requests (default 1, every request).
+     */
+    public void setSampleRate(int arg0) {
+        if (arg0 < 1) arg0 = 1;
+        sampleRate = arg0;
+    }
+    public int getSampleRate() {return sampleRate;}
+
+    /**
+     * Trace only the requests from the given clients. The sample rate
+     * applies to the requests from these clients.
+     * @param arg0 the client addresses, null or empty to trace all clients.
+     */
+    public void setClients(Collection<InetAddress> arg0) {
+        if (arg0==null || arg0.isEmpty()) clients = Collections.emptySet();
+        else clients = Collections.unmodifiableSet(new HashSet<InetAddress>(arg0));
+    }
+    public Set<InetAddress> getClients() {return clients;}
+
+    /**
+     * @param arg0 comma separated host names or addresses of the clients to trace, empty to trace all clients.
+     * @throws UnknownHostException if a host name can not be resolved.
+     */
+    public void setClients(String arg0) throws UnknownHostException {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        for (String host : arg0.split(",")) {
+            if (host.trim().length()>0) addresses.add(InetAddress.getByName(host.trim()));
+        }
+        setClients(addresses);
+    }
+
+    /**
+     * @return the addresses of the clients traced separated by commas, empty if all clients are traced.
+     */
+    String getClientList() {
+        StringBuilder str = new StringBuilder();
+        for (InetAddress client : clients) {
+            if (str.length()>0) str.append(',');
+            str.append(client.getHostAddress());
+        }
+        return str.toString();
+    }
+
+    /**
+     * @return number of requests traced.
+     */
+    public long getTraced() {return traced.sum();}
+
+    /**
+     * Decide if a request is traced.
+     * @param client the address the request was received from.
+     * @return true if the request and its answer should be traced.
+     */
+    public boolean sample(InetAddress client) {
+        if (!enabled) return false;
+        Set<InetAddress> current = clients;
+        if (!current.isEmpty() && !current.contains(client)) return false;
+        int rate = sampleRate;
+        if (rate>1 && requests.get()[0]++%rate!=0) return false;
+        if (!logger.isLoggable(Level.INFO)) return false;
+        traced.increment();
+        return true;
+    }
+
+    /**
+     * Trace a received or sent datagram. The bytes between the position and
+     * limit of the buffer are copied, they are decoded when the record is
+     * published.
+     * @param prefix e.g. "Received request from".
+     * @param address the peer address.
+     * @param port the peer port.
+     * @param message
+     */
+    public void trace(String prefix, InetAddress address, int port, ByteBuffer message) {
+        byte bytes[] = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        log(new Record(prefix, address, port, bytes, null));
+    }
+
+    /**
+     * Trace a received or sent message. The message is formatted with its
+     * toString() when the record is published.
+     * @param prefix e.g. "Received request from".
+     * @param address the peer address.
+     * @param port the peer port.
+     * @param message
+     */
+    public void trace(String prefix, InetAddress address, int port, Object message) {
+        log(new Record(prefix, address, port, null, message));
+    }
+
+    private void log(Record record) {
+        LogRecord logRecord = new LogRecord(Level.INFO, "{0}");
+        logRecord.setLoggerName(logger.getName());
+        logRecord.setParameters(new Object[] {record});
+        logger.log(logRecord);
+    }
+
+    /**
+     * A traced message, formatted by {@link #toString()}.
+     */
+    private static class Record {
+        private final String prefix;
+        private final InetAddress address;
+        private final int port;
+        private final byte bytes[];
+        private final Object message;
+
+        Record(String prefix, InetAddress address, int port, byte bytes[], Object message) {
+            this.prefix = prefix;
+            this.address = address;
+            this.port = port;
+            this.bytes = bytes;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder str = new StringBuilder(prefix);
+            str.append(' ').append(address).append(':').append(port).append(" => ");
+            if (bytes==null) return str.append(message).toString();
+            try {
+                str.append(MessageHeader.create(bytes));
+            } catch (IOException ex) {
+                str.append("Not a valid STUN message: ").append(Utils.bytesToString(bytes));
+            }
+            return str.toString();
+        }
+    }
+}
@@ -18,6 +18,8 @@
 package javax.net.stun.services;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.stun.HmacKey;
 import javax.net.stun.Utils;
 
 /**
@@ -26,15 +28,21 @@ import javax.net.stun.Utils;
  */
 public class UserHolder {
     private static  Random random = null;
+    private static final AtomicInteger sequence = new AtomicInteger();
     public String username;
     public byte password[];
+    /** The password prepared for MESSAGE-INTEGRITY calculations. */
+    public HmacKey key;
     public long created = System.currentTimeMillis();
+    /** Time the credential expires, set by the {@link SharedSecretService} handing it out. */
+    public long expires = Long.MAX_VALUE;
 
     public static UserHolder create() {
         UserHolder retUser = new UserHolder();
         long now = System.currentTimeMillis();
 
-        StringBuilder user = new StringBuilder("USER-"+Long.toHexString(now));
+        //The sequence number keeps the usernames created in the same millisecond unique
+        StringBuilder user = new StringBuilder("USER-"+Long.toHexString(now)+"-"+Integer.toHexString(sequence.incrementAndGet() & 0xffff));
         for (int i=0; i<user.length()%4; i++) user.append('0');
         retUser.username = user.toString();
 
@@ -62,6 +70,7 @@ public class UserHolder {
         text[7] = (byte) (0x00000000000000ffL & now);
 
         retUser.password = Utils.hmac(key, text, 8);
+        retUser.key = new HmacKey(retUser.password);
 
         return retUser;
     }
@@ -0,0 +1,92 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package javax.net.stun;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class HmacKeyTest {
+
+    public HmacKeyTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testHmac() throws Exception {
+        byte expResult[] = {(byte)0x4f,(byte)0x4c,(byte)0xa3,(byte)0xd5,(byte)0xd6,(byte)0x8b,(byte)0xa7,(byte)0xcc,(byte)0x0a,(byte)0x12,(byte)0x08,(byte)0xc9,(byte)0xc6,(byte)0x1e,(byte)0x9c,(byte)0x5d,(byte)0xa0,(byte)0x40,(byte)0x3c,(byte)0x0a};
+        byte key[] = new byte[64];
+        for (int i=0; i<64; i++) key[i] = (byte)i;
+        assertArrayEquals(expResult, new HmacKey(key).hmac("Sample #1".getBytes()));
+
+        //Compare with the JCE for keys and texts around the block size
+        Random random = new Random(4711);
+        Mac mac = Mac.getInstance("HmacSHA1");
+        for (int keyLength=1; keyLength<=130; keyLength+=7) {
+            key = new byte[keyLength];
+            random.nextBytes(key);
+            HmacKey hmacKey = new HmacKey(key);
+            mac.init(new SecretKeySpec(key, "HmacSHA1"));
+            for (int textLength=0; textLength<=200; textLength++) {
+                byte text[] = new byte[textLength];
+                random.nextBytes(text);
+                assertArrayEquals("Key length: "+keyLength+" text length: "+textLength, mac.doFinal(text), hmacKey.hmac(text));
+            }
+        }
+    }
+
+    @Test
+    public void testSignAndVerify() throws Exception {
+        byte key[] = "a shared secret password".getBytes();
+        HmacKey hmacKey = new HmacKey(key);
+        byte text[] = new byte[100];
+        for (int i=0; i<text.length; i++) text[i] = (byte)i;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(200);
+        buffer.position(10);
+        buffer.put(text);
+        hmacKey.sign(buffer, 10, text.length, buffer);
+        assertEquals(10+text.length+HmacKey.LENGTH, buffer.position());
+
+        byte expected[] = Utils.hmac(key, text);
+        for (int i=0; i<HmacKey.LENGTH; i++) assertEquals(expected[i], buffer.get(10+text.length+i));
+        assertTrue(hmacKey.verify(buffer, 10, text.length, buffer, 10+text.length));
+        assertEquals(10+text.length+HmacKey.LENGTH, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+
+        buffer.put(20, (byte)0xff);
+        assertFalse(hmacKey.verify(buffer, 10, text.length, buffer, 10+text.length));
+    }
+}
@@ -18,6 +18,14 @@
 
 package javax.net.stun;
 
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.stun.services.BindingService;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -147,4 +155,213 @@ stun.ipshka.com inside UA-IX zone russsian explanation at http://www.ipshka.com/
         System.out.println("Last test was: "+instance.getBindingTestDoneAsString());
         System.out.println(result.toString(true));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFastDiscovery() throws Exception {
+        BindingService service = startService();
+        StunClient client = new StunClient("127.0.0.1", 3478);
+        try {
+            DiscoveryInfo info = client.binding(null);
+            assertEquals("Binder returned error: "+info.getErrorMessage(), 0, info.getErrorCode());
+            System.out.println(info);
+
+            client.setFastDiscovery(true);
+            long start = System.currentTimeMillis();
+            DiscoveryInfo fastInfo = client.binding(null);
+            long time = System.currentTimeMillis()-start;
+            assertEquals("Binder returned error: "+fastInfo.getErrorMessage(), 0, fastInfo.getErrorCode());
+            assertEquals("The fast discovery found another scenario", info.getScenarioState(), fastInfo.getScenarioState());
+            assertEquals(info.getPublicIpAddress(), fastInfo.getPublicIpAddress());
+            assertEquals(info.isNodeNated(), fastInfo.isNodeNated());
+            assertTrue("The fast discovery took "+time+"ms", time < 1000);
+        }
+        finally {
+            client.close();
+            stopService(service);
+        }
+    }
+
+    @Test
+    public void testBindingAll() throws Exception {
+        byte addr[] = {127,0,0,1};
+        BindingService service = startService();
+        DatagramSocket silent = new DatagramSocket(0, InetAddress.getByAddress(addr));
+        try {
+            StunServerAddress servers[] = new StunServerAddress[4];
+            servers[0] = new StunServerAddress("127.0.0.1", 3478);
+            servers[1] = new StunServerAddress("127.0.0.1", silent.getLocalPort());
+            servers[2] = new StunServerAddress("127.0.0.2", 3479);
+            servers[3] = new StunServerAddress("127.0.0.1", 3478);
+            StunClient client = new StunClient();
+            client.getTransport().setTransactionTimeout(500);
+            long start = System.currentTimeMillis();
+            Map<StunServerAddress, DiscoveryInfo> infos = client.bindingAll(Arrays.asList(servers), null, 3);
+            long time = System.currentTimeMillis()-start;
+
+            assertEquals(3, infos.size());
+            assertArrayEquals(Arrays.copyOf(servers, 3), infos.keySet().toArray());
+            DiscoveryInfo info = infos.get(servers[0]);
+            assertEquals("Binder returned error: "+info.getErrorMessage(), 0, info.getErrorCode());
+            assertEquals(DiscoveryInfo.ConnectionScenario.OPEN_INTERNET, info.getScenarioState());
+            assertTrue(info.getDiscoveryTime() >= 0);
+            info = infos.get(servers[2]);
+            assertEquals("Binder returned error: "+info.getErrorMessage(), 0, info.getErrorCode());
+            assertEquals(DiscoveryInfo.ConnectionScenario.OPEN_INTERNET, info.getScenarioState());
+            info = infos.get(servers[1]);
+            assertEquals(DiscoveryInfo.ConnectionScenario.UDP_BLOCKED, info.getScenarioState());
+            assertTrue("The silent server took "+info.getDiscoveryTime()+"ms", info.getDiscoveryTime() >= 500);
+            //The servers are probed at a time, not one after the other
+            assertTrue("The discovery took "+time+"ms", time < 1500);
+        }
+        finally {
+            silent.close();
+            stopService(service);
+        }
+    }
+
+    @Test
+    public void testBindingAllLocalAddresses() throws Exception {
+        byte addr[] = {127,0,0,1};
+        byte otherAddr[] = {127,0,0,3};
+        BindingService service = startService();
+        try {
+            InetAddress localAddresses[] = {InetAddress.getByAddress(addr), InetAddress.getByAddress(otherAddr), InetAddress.getByAddress(addr)};
+            StunServerAddress servers[] = new StunServerAddress[2];
+            servers[0] = new StunServerAddress("127.0.0.1", 3478);
+            servers[1] = new StunServerAddress("127.0.0.2", 3479);
+            StunClient client = new StunClient();
+            client.getTransport().setTransactionTimeout(500);
+            Map<InetAddress, Map<StunServerAddress, DiscoveryInfo>> infos = client.bindingAll(Arrays.asList(localAddresses), Arrays.asList(servers), null, 4);
+
+            assertArrayEquals(Arrays.copyOf(localAddresses, 2), infos.keySet().toArray());
+            for (InetAddress localAddress : infos.keySet()) {
+                assertArrayEquals(servers, infos.get(localAddress).keySet().toArray());
+                for (DiscoveryInfo info : infos.get(localAddress).values()) {
+                    assertEquals("Binder returned error: "+info.getErrorMessage(), 0, info.getErrorCode());
+                    //Each pair is probed from its own local address
+                    assertEquals(localAddress.getHostAddress(), info.getPublicIpAddress());
+                }
+            }
+        }
+        finally {
+            stopService(service);
+        }
+    }
+
+    @Test
+    public void testFastDiscoveryRestrictedNat() throws Exception {
+        byte addr[] = {127,0,0,1};
+        byte altAddr[] = {127,0,0,2};
+        final InetAddress publicAddr = InetAddress.getByName("192.0.2.1");
+        //A server seen through a port restricted NAT: an answer from the alternate
+        //address passes the NAT once a request has been sent to that address
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getByAddress(addr));
+        final DatagramSocket alternate = new DatagramSocket(0, InetAddress.getByAddress(altAddr));
+        final AtomicBoolean opened = new AtomicBoolean();
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                byte buf[] = new byte[512];
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        packet.setLength(buf.length);
+                        server.receive(packet);
+                        MessageHeader request = MessageHeader.create(Arrays.copyOf(buf, packet.getLength()));
+                        MessageAttribute changeRequest = request.getMessageAttribute(MessageAttribute.MessageAttributeType.CHANGE_REQUEST);
+                        if (changeRequest==null) {
+                            MessageHeader answer = createAnswer(request, publicAddr);
+                            answer.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.CHANGED_ADDRESS, alternate.getLocalAddress(), alternate.getLocalPort()));
+                            send(server, answer, packet);
+                        }
+                        else if (changeRequest.changeAddress() && changeRequest.changePort() && opened.get()) {
+                            //Test II answered late, after the NAT was opened by Test I second run
+                            send(alternate, createAnswer(request, publicAddr), packet);
+                        }
+                        //Test III never passes the NAT
+                    }
+                } catch (IOException ex) {
+                    //Closed
+                }
+            }
+        });
+        Thread alternateThread = new Thread(new Runnable() {
+            public void run() {
+                byte buf[] = new byte[512];
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        packet.setLength(buf.length);
+                        alternate.receive(packet);
+                        opened.set(true);
+                        send(alternate, createAnswer(MessageHeader.create(Arrays.copyOf(buf, packet.getLength())), publicAddr), packet);
+                    }
+                } catch (IOException ex) {
+                    //Closed
+                }
+            }
+        });
+        serverThread.start();
+        alternateThread.start();
+
+        StunClient client = new StunClient("127.0.0.1", server.getLocalPort());
+        client.setFastDiscovery(true);
+        client.getTransport().setInitialRto(50);
+        client.getTransport().setMaxRto(100);
+        client.getTransport().setTransactionTimeout(1000);
+        try {
+            DiscoveryInfo info = client.binding(null);
+            assertEquals("Binder returned error: "+info.getErrorMessage(), 0, info.getErrorCode());
+            assertTrue(info.isNodeNated());
+            assertEquals("A late answer to Test II was taken", DiscoveryInfo.ConnectionScenario.RESTRICTED_PORT_NAT, info.getScenarioState());
+            assertTrue("Test I second run was not sent", opened.get());
+        }
+        finally {
+            client.close();
+            server.close();
+            alternate.close();
+            serverThread.join();
+            alternateThread.join();
+        }
+    }
+
+    /**
+     * Start a Binding service on 127.0.0.1:3478, with the alternate address
+     * 127.0.0.2:3479, and wait for it to run.
+     */
+    private static BindingService startService() throws Exception {
+        byte addr[] = {127,0,0,1};
+        byte altAddr[] = {127,0,0,2};
+        BindingService service = new BindingService(InetAddress.getByAddress(addr), 0, InetAddress.getByAddress(altAddr), 3479);
+        service.start();
+        int count = 0;
+        while (!service.isRunning()) {
+            Thread.sleep(100);
+            count++;
+            if (count>100) fail("The thraed failed to start");
+        }
+        return service;
+    }
+
+    /**
+     * Stop the service and give it time to close its sockets.
+     */
+    private static void stopService(BindingService service) throws InterruptedException {
+        service.stop();
+        Thread.sleep(1500);
+    }
+
+    /**
+     * A Binding Response to the request, mapped to the public address.
+     */
+    private static MessageHeader createAnswer(MessageHeader request, InetAddress publicAddr) {
+        MessageHeader answer = new MessageHeader(MessageHeader.HeaderType.BINDING_RESPONSE);
+        answer.setTransactionId(request.getTransactionId());
+        answer.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS, publicAddr, 40000));
+        return answer;
+    }
+
+    private static void send(DatagramSocket socket, MessageHeader answer, DatagramPacket request) throws IOException {
+        byte bytes[] = answer.toBytes();
+        socket.send(new DatagramPacket(bytes, bytes.length, request.getAddress(), request.getPort()));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package javax.net.stun;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class StunMessageViewTest {
+
+    public StunMessageViewTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testWrap() throws Exception {
+        InetAddress addr = InetAddress.getByName("10.1.2.3");
+        MessageHeader header = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        header.genrateTransactionId();
+        header.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.CHANGE_REQUEST, 0x06));
+        header.addMessageAttribute(MessageAttribute.create(MessageAttribute.MessageAttributeType.RESPONSE_ADDRESS, addr, 4711));
+        byte bytes[] = header.toBytes();
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length+10);
+        buffer.position(5);
+        buffer.put(bytes);
+        buffer.flip();
+        buffer.position(5);
+
+        StunMessageView view = new StunMessageView();
+        assertTrue(view.wrap(buffer));
+        assertEquals(MessageHeader.BINDING_REQUEST, view.getType());
+        assertEquals(bytes.length, view.getMessageSize());
+        assertEquals(0x06, view.getChangeRequest());
+        assertTrue(view.hasAddress(MessageAttribute.RESPONSE_ADDRESS));
+        assertEquals(addr, view.getAddress(MessageAttribute.RESPONSE_ADDRESS));
+        assertEquals(4711, view.getPort(MessageAttribute.RESPONSE_ADDRESS));
+        assertFalse(view.hasAttribute(MessageAttribute.USERNAME));
+        assertArrayEquals(header.getTransactionId(), view.toMessageHeader().getTransactionId());
+
+        //A truncated message must be refused
+        buffer.limit(buffer.limit()-1);
+        assertFalse(view.wrap(buffer));
+    }
+
+    @Test
+    public void testWriteResponse() throws Exception {
+        InetAddress addr = InetAddress.getByName("192.168.7.9");
+        MessageHeader request = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        request.genrateTransactionId();
+        StunMessageView view = new StunMessageView();
+        assertTrue(view.wrap(ByteBuffer.wrap(request.toBytes())));
+
+        byte password[] = "0123456789abcdefghij".getBytes();
+        StunMessageWriter writer = new StunMessageWriter();
+        ByteBuffer out = ByteBuffer.allocateDirect(512);
+        writer.wrap(out);
+        writer.putHeader(MessageHeader.BINDING_RESPONSE, view);
+        writer.putAddress(MessageAttribute.MAPPED_ADDRESS, addr, 3478);
+        writer.putMessageIntegrity(password);
+        int size = writer.finish();
+        assertEquals(size, out.remaining());
+
+        byte bytes[] = new byte[size];
+        out.get(bytes);
+        MessageHeader response = MessageHeader.create(bytes);
+        assertEquals(MessageHeader.HeaderType.BINDING_RESPONSE, response.getType());
+        assertArrayEquals(request.getTransactionId(), response.getTransactionId());
+        MessageAttribute mapped = response.getMessageAttribute(MessageAttribute.MessageAttributeType.MAPPED_ADDRESS);
+        assertEquals(addr, mapped.getAddress());
+        assertEquals(3478, mapped.getPort());
+        assertEquals(0, response.integrityCheck(password));
+    }
+
+    @Test
+    public void testWriteAddresses() throws Exception {
+        InetAddress client = InetAddress.getByName("192.168.7.9");
+        InetAddress server = InetAddress.getByName("192.168.7.1");
+        StunMessageWriter writer = new StunMessageWriter();
+        ByteBuffer out = ByteBuffer.allocate(512);
+        try {
+            writer.wrap(out);
+            writer.putAddress(MessageAttribute.MAPPED_ADDRESS, InetAddress.getByName("2001:db8::1"), 3478);
+            fail("An IPv6 address was written as an IPv4 address");
+        } catch (IllegalArgumentException ex) {
+        }
+
+        //The addresses written before are written without creating arrays
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long before = allocatedBytes(threads);
+        for (int i=0; i<10000; i++) {
+            out.clear();
+            writer.wrap(out);
+            writer.putAddress(MessageAttribute.MAPPED_ADDRESS, client, 40000);
+            writer.putAddress(MessageAttribute.SOURCE_ADDRESS, server, 3478);
+        }
+        long allocated = allocatedBytes(threads)-before;
+        if (before>=0) assertTrue("Allocated "+allocated+" bytes", allocated < 10000);
+        assertEquals(client, InetAddress.getByAddress(new byte[] {out.get(8), out.get(9), out.get(10), out.get(11)}));
+        assertEquals(server, InetAddress.getByAddress(new byte[] {out.get(20), out.get(21), out.get(22), out.get(23)}));
+    }
+
+    /**
+     * @return bytes allocated by the current thread, -1 if the JVM does not tell.
+     */
+    static long allocatedBytes(ThreadMXBean threads) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testIntegrityCheck() throws Exception {
+        byte password[] = "0123456789abcdefghij".getBytes();
+        HmacKey key = new HmacKey(password);
+        MessageHeader head = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        head.genrateTransactionId();
+        StunMessageWriter writer = new StunMessageWriter();
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.position(3);
+        writer.wrap(buffer);
+        writer.putHeader(MessageHeader.BINDING_REQUEST, head.getTransactionId());
+        writer.putAttribute(MessageAttribute.USERNAME, "USER-0123".getBytes());
+        writer.putMessageIntegrity(key);
+        int size = writer.finish();
+
+        StunMessageView view = new StunMessageView();
+        assertTrue(view.wrap(buffer));
+        assertEquals("USER-0123", view.getUsername());
+        assertEquals(0, view.integrityCheck(key));
+        assertEquals(431, view.integrityCheck(new HmacKey("wrong password".getBytes())));
+        byte bytes[] = new byte[size];
+        for (int i=0; i<size; i++) bytes[i] = buffer.get(3+i);
+        assertEquals(0, MessageHeader.create(bytes).integrityCheck(key));
+
+        //A verify request is checked as the Binding Request it carries
+        buffer.put(3, (byte)((MessageHeader.SHARED_SECRET_VERIFY_REQUEST >> 8) & 0xff));
+        buffer.put(4, (byte)(MessageHeader.SHARED_SECRET_VERIFY_REQUEST & 0xff));
+        assertTrue(view.wrap(buffer));
+        assertEquals(0, view.integrityCheck(key));
+        for (int i=0; i<size; i++) bytes[i] = buffer.get(3+i);
+        assertEquals(0, MessageHeader.create(bytes).integrityCheck(key));
+
+        //Any change of the message must be detected
+        buffer.put(3+25, (byte)'X');
+        assertTrue(view.wrap(buffer));
+        assertEquals(431, view.integrityCheck(key));
+
+        view.wrap(ByteBuffer.wrap(head.toBytes()));
+        assertEquals(401, view.integrityCheck(key));
+    }
+}
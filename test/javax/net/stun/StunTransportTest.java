@@ -0,0 +1,280 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package javax.net.stun;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class StunTransportTest {
+
+    public StunTransportTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testRetransmission() throws Exception {
+        byte addr[] = {127,0,0,1};
+        InetAddress host = InetAddress.getByAddress(addr);
+        //A server that never answers
+        final DatagramSocket server = new DatagramSocket(0, host);
+        final AtomicInteger received = new AtomicInteger();
+        Thread counter = startServer(server, received, -1);
+
+        StunTransport transport = new StunTransport();
+        transport.setInitialRto(20);
+        transport.setMaxRto(40);
+        transport.setMaxRetransmits(3);
+        try {
+            MessageHeader request = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+            request.genrateTransactionId();
+            long start = System.currentTimeMillis();
+            try {
+                transport.sendReceive(request, host, server.getLocalPort());
+                fail("Received an answer from a silent server");
+            } catch (SocketTimeoutException ex) {
+            }
+            long time = System.currentTimeMillis()-start;
+            //Sent at 0, 20, 60 and 100ms, timed out at 140ms
+            assertTrue("Timed out after "+time+"ms", time >= 140 && time < 1000);
+            Thread.sleep(100);
+            assertEquals(4, received.get());
+            assertEquals(0, transport.getOutstanding());
+
+            //The transaction timeout stops the retransmissions first
+            received.set(0);
+            transport.setMaxRetransmits(100);
+            transport.setTransactionTimeout(50);
+            request.genrateTransactionId();
+            start = System.currentTimeMillis();
+            try {
+                transport.sendReceive(request, host, server.getLocalPort());
+                fail("Received an answer from a silent server");
+            } catch (SocketTimeoutException ex) {
+            }
+            time = System.currentTimeMillis()-start;
+            assertTrue("Timed out after "+time+"ms", time >= 50 && time < 1000);
+            Thread.sleep(100);
+            assertEquals(2, received.get());
+        }
+        finally {
+            transport.close();
+            server.close();
+            counter.join();
+        }
+    }
+
+    @Test
+    public void testRttEstimation() throws Exception {
+        byte addr[] = {127,0,0,1};
+        InetAddress host = InetAddress.getByAddress(addr);
+        //A server echoing the requests after 30ms
+        final DatagramSocket server = new DatagramSocket(0, host);
+        final AtomicInteger received = new AtomicInteger();
+        Thread echo = startServer(server, received, 30);
+
+        StunTransport transport = new StunTransport();
+        transport.setInitialRto(1000);
+        transport.setMinRto(1);
+        try {
+            assertEquals(1000, transport.getRto(host, server.getLocalPort()));
+            for (int i=0; i<5; i++) {
+                MessageHeader request = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+                request.genrateTransactionId();
+                byte answer[] = transport.sendReceive(request, host, server.getLocalPort());
+                assertEquals(request.toBytes().length, answer.length);
+            }
+            int rto = transport.getRto(host, server.getLocalPort());
+            assertTrue("The estimated RTO is "+rto+"ms", rto >= 30 && rto < 1000);
+            assertEquals(5, received.get());
+        }
+        finally {
+            transport.close();
+            server.close();
+            echo.join();
+        }
+    }
+
+    @Test
+    public void testMultiplexing() throws Exception {
+        byte addr[] = {127,0,0,1};
+        final InetAddress host = InetAddress.getByAddress(addr);
+        //A server echoing the requests, the transaction id of an answer is the one of its request
+        final DatagramSocket server = new DatagramSocket(0, host);
+        final AtomicInteger received = new AtomicInteger();
+        Thread echo = startServer(server, received, 0);
+
+        final StunTransport transport = new StunTransport();
+        try {
+            //Many transactions outstanding at a time on the same socket
+            LinkedBlockingQueue<StunTransport.Transaction> completions = new LinkedBlockingQueue<StunTransport.Transaction>();
+            Map<StunTransport.Transaction, byte[]> transactionIds = new HashMap<StunTransport.Transaction, byte[]>();
+            for (int i=0; i<50; i++) {
+                MessageHeader request = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+                request.genrateTransactionId();
+                transactionIds.put(transport.start(request, host, server.getLocalPort(), completions), request.getTransactionId());
+            }
+            int localPort = transport.getLocalPort();
+            for (int i=0; i<50; i++) {
+                StunTransport.Transaction transaction = completions.poll(5, TimeUnit.SECONDS);
+                assertNotNull("Answer "+i+" not received", transaction);
+                MessageHeader answer = MessageHeader.create(transaction.getResponse());
+                assertArrayEquals("Answer matched to the wrong transaction", transactionIds.get(transaction), answer.getTransactionId());
+            }
+            assertEquals(0, transport.getOutstanding());
+
+            //Many threads waiting for their answer on the same socket
+            final AtomicInteger answers = new AtomicInteger();
+            Thread threads[] = new Thread[8];
+            for (int i=0; i<threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int j=0; j<10; j++) {
+                                MessageHeader request = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+                                request.genrateTransactionId();
+                                MessageHeader answer = MessageHeader.create(transport.sendReceive(request, host, server.getLocalPort()));
+                                if (Arrays.equals(request.getTransactionId(), answer.getTransactionId())) answers.incrementAndGet();
+                            }
+                        } catch (Exception ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) thread.join();
+            assertEquals(80, answers.get());
+            assertEquals(localPort, transport.getLocalPort());
+            assertEquals(0, transport.getOutstanding());
+        }
+        finally {
+            transport.close();
+            server.close();
+            echo.join();
+        }
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        byte addr[] = {127,0,0,1};
+        InetAddress host = InetAddress.getByAddress(addr);
+        final DatagramSocket server = new DatagramSocket(0, host);
+        final AtomicInteger received = new AtomicInteger();
+        Thread echo = startServer(server, received, 0);
+
+        StunTransport transport = new StunTransport();
+        transport.setIdleTimeout(200);
+        try {
+            Set<Thread> threads = transportThreads();
+            MessageHeader request = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+            request.genrateTransactionId();
+            transport.sendReceive(request, host, server.getLocalPort());
+            assertTrue(transport.isOpen());
+            Set<Thread> started = transportThreads();
+            started.removeAll(threads);
+            assertEquals(2, started.size());
+
+            //The socket and the threads are released when nothing is outstanding
+            for (Thread thread : started) thread.join(5000);
+            assertFalse(transport.isOpen());
+            for (Thread thread : started) assertFalse(thread.getName()+" is still running", thread.isAlive());
+
+            //An outstanding transaction keeps the transport open
+            transport.setMaxRetransmits(0);
+            transport.setInitialRto(1000);
+            LinkedBlockingQueue<StunTransport.Transaction> completions = new LinkedBlockingQueue<StunTransport.Transaction>();
+            request.genrateTransactionId();
+            StunTransport.Transaction silent = transport.start(request, InetAddress.getByAddress(addr), 9, completions);
+            request.genrateTransactionId();
+            transport.sendReceive(request, host, server.getLocalPort());
+            Thread.sleep(500);
+            assertTrue(transport.isOpen());
+            assertSame(silent, completions.poll(5, TimeUnit.SECONDS));
+            assertTrue(silent.isTimedOut());
+            long end = System.currentTimeMillis()+5000;
+            while (transport.isOpen() && System.currentTimeMillis()<end) Thread.sleep(20);
+            assertFalse(transport.isOpen());
+            assertEquals(2, received.get());
+        }
+        finally {
+            transport.close();
+            server.close();
+            echo.join();
+        }
+    }
+
+    private static Set<Thread> transportThreads() {
+        Set<Thread> threads = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("STUN Transport ")) threads.add(thread);
+        }
+        return threads;
+    }
+
+    /**
+     * Count the requests received, and echo them after the delay unless it is negative.
+     */
+    private Thread startServer(final DatagramSocket server, final AtomicInteger received, final long delay) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                byte buf[] = new byte[512];
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        packet.setLength(buf.length);
+                        server.receive(packet);
+                        received.incrementAndGet();
+                        if (delay<0) continue;
+                        Thread.sleep(delay);
+                        server.send(packet);
+                    }
+                } catch (Exception ex) {
+                    //Closed
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
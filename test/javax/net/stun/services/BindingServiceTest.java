@@ -19,10 +19,23 @@
 package javax.net.stun.services;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.net.stun.DiscoveryInfo;
+import javax.net.stun.MessageAttribute;
+import javax.net.stun.MessageHeader;
 import javax.net.stun.SharedSecret;
 import javax.net.stun.StunClient;
+import javax.net.stun.StunMessageView;
+import javax.net.stun.StunMessageWriter;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -68,6 +81,382 @@ public class BindingServiceTest {
         System.out.println(info);
    }
 
+    @Test
+    public void testBindingNioEngine() throws Exception {
+        byte addr[] = {127,0,0,1};
+        InetAddress host = InetAddress.getByAddress(addr);
+        DiscoveryInfo info = doBinding(host, BindingService.Engine.NIO);
+        assertNotNull("Null info was returned", info);
+        assertTrue("Binder retorned error: "+info.getErrorCode()+" ["+info.getErrorMessage()+"]", info.getErrorCode()==0);
+        assertTrue("Binder returned wrong public address : "+info.getPublicIpAddress(), "127.0.0.1".equals(info.getPublicIpAddress()));
+        System.out.println(info);
+    }
+
+    @Test
+    public void testLoadGenerator() throws Exception {
+        byte addr[] = {127,0,0,1};
+        byte altAddr[] = {127,0,0,2};
+        InetAddress host = InetAddress.getByAddress(addr);
+        InetAddress alternateHost = InetAddress.getByAddress(altAddr);
+        SharedSecretService ssService = new SharedSecretService(host, 3478);
+        BindingService instance = new BindingService(host, 0, alternateHost, 3479, ssService);
+        instance.start();
+        try {
+            waitUntilRunning(instance);
+
+            LoadGenerator generator = new LoadGenerator(host, 3478);
+            generator.setRate(1000);
+            generator.setConcurrency(2);
+            generator.setDuration(1000);
+            generator.setChangeRequestPercent(50);
+            generator.setAuthenticatedPercent(50);
+            generator.setCredential(ssService.createUser());
+            LoadGenerator.Report report = generator.run();
+            System.out.println(report);
+            assertEquals(1000, report.getSent());
+            //Measured from the first request to the last, close to the set duration
+            assertTrue("Elapsed "+report.getElapsed()+"ms", report.getElapsed() >= 990 && report.getElapsed() < 5000);
+            //The unauthenticated requests are answered with an error
+            assertTrue("Too few answers: "+report, report.getResponses() > 300 && report.getErrors() > 300);
+            assertEquals(report.getResponses()+report.getErrors(), report.getLatencies().getCount());
+            assertTrue(report.getLatencies().getValueAtPercentile(50) > 0);
+
+            //The service has counted what the generator received
+            Metrics metrics = instance.getMetrics();
+            assertEquals(report.getSent(), metrics.getValue("stun_binding_requests_total"));
+            assertEquals(report.getResponses(), metrics.getValue("stun_binding_responses_total"));
+            assertEquals(report.getErrors(), metrics.getValue("stun_binding_error_responses_total"));
+            assertEquals(report.getErrors(), metrics.getValue("stun_binding_integrity_failures_total"));
+            //Only the authenticated requests get to the CHANGE-REQUEST
+            assertTrue(metrics.getValue("stun_binding_change_requests_total") > 100);
+            assertEquals(report.getSent(), ((Metrics.Histogram)metrics.get("stun_binding_processing_time_ns")).getHistogram().getCount());
+            assertEquals(0, metrics.getValue("stun_binding_socket_errors_total"));
+        }
+        finally {
+            instance.stop();
+            Thread.sleep(1500);
+        }
+    }
+
+    @Test
+    public void testRemoteSharedSecret() throws Exception {
+        File keyStoreFile = new File("StunTest.jks");
+        System.setProperty("javax.net.ssl.trustStore", keyStoreFile.getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStoreType", "JKS");
+        //The test key-store holds a DSA key, which can not be used with TLS 1.3
+        System.setProperty("jdk.tls.client.protocols", "TLSv1.2");
+
+        byte addr[] = {127,0,0,1};
+        final InetAddress host = InetAddress.getByAddress(addr);
+        SharedSecretService ssService = new SharedSecretService(host, 3479);
+        ssService.setKeyStore(keyStoreFile, "henrikkp".toCharArray(), "henrikkp".toCharArray());
+        BindingService bService = new BindingService(host, 3478, null, 0, host, 3479);
+        bService.setEngine(BindingService.Engine.NIO);
+        bService.setWorkerThreads(4);
+        bService.setSharedSecretConnections(1);
+        try {
+            ssService.start();
+            bService.start();
+            waitUntilRunning(ssService);
+            waitUntilRunning(bService);
+            Thread.sleep(500);
+
+            StunClient client = new StunClient("127.0.0.1", 3479);
+            final SharedSecret secret = client.requestSharedSecret();
+            client.close();
+            assertTrue("The secret return error: "+secret.getErrorCode()+" ["+secret.getErrorMessage()+"]", secret.getErrorCode()==0);
+
+            //Authenticated bindings from several clients at the same time share one connection
+            final int errors[] = new int[8];
+            Thread clients[] = new Thread[errors.length];
+            for (int i=0; i<clients.length; i++) {
+                final int n = i;
+                clients[i] = new Thread(new Runnable() {
+                    public void run() {
+                        StunClient bindingClient = new StunClient("127.0.0.1", 3478);
+                        for (int j=0; j<10 && errors[n]==0; j++) {
+                            DiscoveryInfo info = bindingClient.bindForRemoteAddressOnly(secret);
+                            errors[n] = info.getErrorCode();
+                        }
+                        bindingClient.close();
+                    }
+                });
+                clients[i].start();
+            }
+            for (Thread thread : clients) thread.join();
+            for (int i=0; i<errors.length; i++) assertEquals("Client "+i+" got an error", 0, errors[i]);
+            assertEquals("The connection to the Shared Secret service was not reused", 1, bService.getSharedSecretConnects());
+            System.out.println("Credential cache hits: "+bService.getCredentialCacheHits()+" misses: "+bService.getCredentialCacheMisses());
+            assertTrue("Some requests were not looked up in the cache", bService.getCredentialCacheHits()+bService.getCredentialCacheMisses() >= 80);
+            assertTrue("The verified credential was not cached", bService.getCredentialCacheHits() > 0);
+
+            client = new StunClient("127.0.0.1", 3478);
+            DiscoveryInfo info = client.bindForRemoteAddressOnly(new SharedSecret(secret.getUsername(), new byte[20]));
+            client.close();
+            assertTrue("Binder did not return an error code", info.getErrorCode()!=0);
+        }
+        finally {
+            bService.stop();
+            ssService.stop();
+            Thread.sleep(1500);
+        }
+    }
+
+    @Test
+    public void testAsyncVerification() throws Exception {
+        //The test key-store holds a DSA key, which can not be used with TLS 1.3
+        System.setProperty("jdk.tls.client.protocols", "TLSv1.2");
+
+        byte addr[] = {127,0,0,1};
+        InetAddress host = InetAddress.getByAddress(addr);
+        //A Shared Secret service that accepts connections but never answers
+        ServerSocket silentService = new ServerSocket(3479, 50, host);
+        BindingService instance = new BindingService(host, 3478, null, 0, host, 3479);
+        instance.setSharedSecretTimeout(3000);
+        instance.setVerifierThreads(1);
+        instance.setMaxPendingVerifications(1);
+        instance.start();
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(1000);
+        try {
+            waitUntilRunning(instance);
+
+            //The first request is being verified, the second waits for the verifier thread
+            for (int i=0; i<2; i++) socket.send(createRequest(host, true));
+            Thread.sleep(200);
+            assertEquals(2, instance.getPendingVerifications());
+
+            //There is no room for the third one
+            socket.send(createRequest(host, true));
+            assertEquals(500, receiveErrorCode(socket));
+            assertEquals(1, instance.getRejectedVerifications());
+
+            //Requests without a credential are still answered right away
+            long start = System.currentTimeMillis();
+            socket.send(createRequest(host, false));
+            assertEquals(432, receiveErrorCode(socket));
+            assertTrue("The receive thread was blocked", System.currentTimeMillis()-start < 1000);
+
+            //The parked requests are answered when the Shared Secret service times out
+            socket.setSoTimeout(10000);
+            assertEquals(500, receiveErrorCode(socket));
+            assertEquals(500, receiveErrorCode(socket));
+        }
+        finally {
+            socket.close();
+            instance.stop();
+            silentService.close();
+            Thread.sleep(1500);
+        }
+    }
+
+    private DatagramPacket createRequest(InetAddress host, boolean withCredential) throws Exception {
+        MessageHeader head = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        head.genrateTransactionId();
+        StunMessageWriter writer = new StunMessageWriter();
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        writer.wrap(buffer);
+        writer.putHeader(MessageHeader.BINDING_REQUEST, head.getTransactionId());
+        if (withCredential) {
+            writer.putAttribute(MessageAttribute.USERNAME, "USER-0000".getBytes("UTF-8"));
+            writer.putMessageIntegrity(new byte[20]);
+        }
+        int length = writer.finish();
+        return new DatagramPacket(buffer.array(), length, host, 3478);
+    }
+
+    private int receiveErrorCode(DatagramSocket socket) throws Exception {
+        byte buf[] = new byte[512];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        socket.receive(packet);
+        MessageHeader answer = MessageHeader.create(Arrays.copyOf(buf, packet.getLength()));
+        assertEquals(MessageHeader.HeaderType.BINDING_ERROR_RESPONSE, answer.getType());
+        return answer.getMessageAttribute(MessageAttribute.MessageAttributeType.ERROR_CODE).getErrorCode();
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        byte addr[] = {127,0,0,1};
+        byte altAddr[] = {127,0,0,2};
+        InetAddress host = InetAddress.getByAddress(addr);
+        InetAddress alternateHost = InetAddress.getByAddress(altAddr);
+        BindingService instance = new BindingService(host, 0, alternateHost, 3479);
+        instance.start();
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(2000);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = null;
+        try {
+            waitUntilRunning(instance);
+            name = instance.registerMBean();
+            assertTrue(server.isRegistered(name));
+            PacketCapture capture = new PacketCapture(16, PacketCapture.DEFAULT_SNAP_LENGTH);
+            instance.setPacketCapture(capture);
+
+            changeRequest(socket, host, 3478, 0, host, 3478);
+            changeRequest(socket, host, 3478, 0x06, alternateHost, 3479);
+            assertEquals(2L, server.getAttribute(name, "Requests"));
+            assertEquals(2L, server.getAttribute(name, "Responses"));
+            assertEquals(1L, server.getAttribute(name, "ChangeRequests"));
+            assertEquals("SOCKET", server.getAttribute(name, "Engine"));
+            assertTrue((Long)server.getAttribute(name, "BufferBytes") > 0);
+            assertNotNull(server.getAttribute(name, "Counters"));
+            Thread.sleep(1100);
+            assertEquals(2.0, (Double)server.getAttribute(name, "RequestRate"), 1.0);
+            double utilization = (Double)server.getAttribute(name, "WorkerUtilization");
+            assertTrue("Utilization "+utilization, utilization==-1 || (utilization>=0 && utilization<=1));
+
+            server.setAttribute(name, new Attribute("Debug", true));
+            assertTrue(instance.isDebug());
+            server.setAttribute(name, new Attribute("Debug", false));
+            assertFalse(instance.getTracer().isEnabled());
+            server.setAttribute(name, new Attribute("TraceSampleRate", 5));
+            server.setAttribute(name, new Attribute("TraceClients", "127.0.0.1"));
+            assertEquals(5, instance.getTracer().getSampleRate());
+            assertTrue(instance.getTracer().getClients().contains(host));
+            server.setAttribute(name, new Attribute("CredentialCacheTtl", 1000L));
+            assertEquals(1000, instance.getCredentialCacheTtl());
+            assertEquals(BindingService.DEFAULT_CREDENTIAL_CACHE_SIZE, instance.getCredentialCacheSize());
+
+            //Two requests and their answers were captured
+            assertEquals(4L, server.getAttribute(name, "Captured"));
+            File pcap = File.createTempFile("stun", ".pcap");
+            try {
+                Object params[] = {pcap.getAbsolutePath()};
+                String signature[] = {String.class.getName()};
+                assertEquals(4, server.invoke(name, "dumpPacketCapture", params, signature));
+                //The pcap header and for each packet a record header, an IPv4 and a UDP header and a STUN message
+                assertTrue(pcap.length() > 24 + 4*(16+28+20));
+            }
+            finally {
+                pcap.delete();
+            }
+
+            server.invoke(name, "resetMetrics", null, null);
+            assertEquals(0L, server.getAttribute(name, "Requests"));
+        }
+        finally {
+            instance.unregisterMBean();
+            if (name!=null) assertFalse(server.isRegistered(name));
+            socket.close();
+            instance.stop();
+            Thread.sleep(1500);
+        }
+    }
+
+    @Test
+    public void testChangeRequest() throws Exception {
+        doChangeRequest(BindingService.Engine.SOCKET);
+        doChangeRequest(BindingService.Engine.NIO);
+    }
+
+    private void doChangeRequest(BindingService.Engine engine) throws Exception {
+        byte addr[] = {127,0,0,1};
+        byte altAddr[] = {127,0,0,2};
+        InetAddress host = InetAddress.getByAddress(addr);
+        InetAddress alternateHost = InetAddress.getByAddress(altAddr);
+        BindingService instance = new BindingService(host, 0, alternateHost, 3479);
+        instance.setEngine(engine);
+        instance.setWorkerThreads(2);
+        instance.start();
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(2000);
+        try {
+            waitUntilRunning(instance);
+
+            //No change, change port, change address, change both
+            InetAddress expectedAddr[] = {host, host, alternateHost, alternateHost};
+            int expectedPort[] = {3478, 3479, 3478, 3479};
+            for (int flags=0; flags<4; flags++) {
+                StunMessageView response = changeRequest(socket, host, 3478, flags<<1, expectedAddr[flags], expectedPort[flags]);
+                assertEquals("Wrong source address", expectedAddr[flags], response.getAddress(MessageAttribute.SOURCE_ADDRESS));
+                assertEquals("Wrong source port", expectedPort[flags], response.getPort(MessageAttribute.SOURCE_ADDRESS));
+                assertEquals("Wrong changed address", alternateHost, response.getAddress(MessageAttribute.CHANGED_ADDRESS));
+                assertEquals("Wrong changed port", 3479, response.getPort(MessageAttribute.CHANGED_ADDRESS));
+            }
+
+            //Requests sent to the alternate sockets are answered relative to them
+            StunMessageView response = changeRequest(socket, alternateHost, 3479, 0x06, host, 3478);
+            assertEquals("Wrong changed address", host, response.getAddress(MessageAttribute.CHANGED_ADDRESS));
+            assertEquals("Wrong changed port", 3478, response.getPort(MessageAttribute.CHANGED_ADDRESS));
+            response = changeRequest(socket, alternateHost, 3478, 0x02, alternateHost, 3479);
+            assertEquals("Wrong changed address", host, response.getAddress(MessageAttribute.CHANGED_ADDRESS));
+            assertEquals("Wrong changed port", 3479, response.getPort(MessageAttribute.CHANGED_ADDRESS));
+        }
+        finally {
+            socket.close();
+            instance.stop();
+            Thread.sleep(1500);
+        }
+    }
+
+    private StunMessageView changeRequest(DatagramSocket socket, InetAddress server, int port, int flags, InetAddress expectedAddr, int expectedPort) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        StunMessageWriter writer = new StunMessageWriter();
+        writer.wrap(buffer);
+        MessageHeader head = new MessageHeader(MessageHeader.BINDING_REQUEST);
+        head.genrateTransactionId();
+        writer.putHeader(MessageHeader.BINDING_REQUEST, head.getTransactionId());
+        byte changeRequest[] = {0, 0, 0, (byte)flags};
+        writer.putAttribute(MessageAttribute.CHANGE_REQUEST, changeRequest);
+        int length = writer.finish();
+        socket.send(new DatagramPacket(buffer.array(), length, server, port));
+
+        byte buf[] = new byte[512];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        socket.receive(packet);
+        assertEquals("Answer sent from wrong address", expectedAddr, packet.getAddress());
+        assertEquals("Answer sent from wrong port", expectedPort, packet.getPort());
+
+        StunMessageView response = new StunMessageView();
+        assertTrue("Not a STUN message", response.wrap(ByteBuffer.wrap(buf, 0, packet.getLength())));
+        assertEquals("Not a binding response", MessageHeader.BINDING_RESPONSE, response.getType());
+        return response;
+    }
+
+    @Test
+    public void testBatchedNioEngine() throws Exception {
+        byte addr[] = {127,0,0,1};
+        InetAddress host = InetAddress.getByAddress(addr);
+        BindingService instance = new BindingService(host, 0, null, 0);
+        instance.setEngine(BindingService.Engine.NIO);
+        instance.setWorkerThreads(1);
+        instance.setBatchSize(8);
+        instance.start();
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(2000);
+        try {
+            waitUntilRunning(instance);
+
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            StunMessageWriter writer = new StunMessageWriter();
+            writer.wrap(buffer);
+            MessageHeader head = new MessageHeader(MessageHeader.BINDING_REQUEST);
+            head.genrateTransactionId();
+            writer.putHeader(MessageHeader.BINDING_REQUEST, head.getTransactionId());
+            int length = writer.finish();
+            int requests = 50;
+            for (int i=0; i<requests; i++) socket.send(new DatagramPacket(buffer.array(), length, host, 3478));
+
+            byte buf[] = new byte[512];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            for (int i=0; i<requests; i++) socket.receive(packet);
+
+            long histogram[] = instance.getBatchSizeHistogram();
+            long batches = 0;
+            for (long bucket : histogram) batches += bucket;
+            System.out.println("Batches: "+instance.getBatches()+" packets: "+instance.getBatchedPackets()+" histogram: "+Arrays.toString(histogram));
+            assertEquals("Wrong number of received packets", requests, instance.getBatchedPackets());
+            assertEquals("Histogram does not match the number of batches", instance.getBatches(), batches);
+            assertEquals("No batch can be larger than the batch size", 0, histogram[BindingService.batchSizeBucket(16)]);
+        }
+        finally {
+            socket.close();
+            instance.stop();
+            Thread.sleep(1500);
+        }
+    }
+
     @Test
     public void testBindingWithSharedSecret1() throws Exception {
         File keyStoreFile = new File("StunTest.jks");
@@ -75,7 +464,7 @@ public class BindingServiceTest {
         System.setProperty("javax.net.ssl.trustStoreType", "JKS");
 
         SharedSecretService ssService = new SharedSecretService();
-        ssService.setKeyStore(keyStoreFile, "henriksp".toCharArray(), "henrikkp".toCharArray());
+        ssService.setKeyStore(keyStoreFile, "henrikkp".toCharArray(), "henrikkp".toCharArray());
 
         InetAddress host = InetAddress.getLocalHost();
         BindingService bService = new BindingService(host, 0, null, 0, ssService);
@@ -157,28 +546,56 @@ public class BindingServiceTest {
         }
     }
 
+    /**
+     * Wait for the service to run, started by the caller.
+     */
+    private static void waitUntilRunning(BindingService service) throws InterruptedException {
+        int count = 0;
+        while (!service.isRunning()) {
+            Thread.sleep(100);
+            count++;
+            if (count>100) fail("The thraed failed to start");
+        }
+    }
+
+    private static void waitUntilRunning(SharedSecretService service) throws InterruptedException {
+        int count = 0;
+        while (!service.isRunning()) {
+            Thread.sleep(100);
+            count++;
+            if (count>100) fail("The thraed failed to start");
+        }
+    }
+
     public DiscoveryInfo doBinding(InetAddress serverAddr) throws Exception {
+        return doBinding(serverAddr, BindingService.Engine.SOCKET);
+    }
+
+    public DiscoveryInfo doBinding(InetAddress serverAddr, BindingService.Engine engine) throws Exception {
         BindingService instance = new BindingService(serverAddr, 0, null, 0);
+        instance.setEngine(engine);
+        instance.setWorkerThreads(2);
         instance.setDebug(true);
         instance.start();
         try {
             System.out.println("Wait for the servcie thread to start");
-            int count = 0;
-            while (!instance.isRunning()) {
-                Thread.sleep(1000);
-                count++;
-                if (count>10) fail("The thraed failed to start");
-            }
+            waitUntilRunning(instance);
             System.out.println("Servcie thread started!");
             Thread.sleep(1000);
 
             String addr = serverAddr.getCanonicalHostName();
             StunClient client = new StunClient(addr);
-            return client.bindForRemoteAddressOnly(null);
+            try {
+                return client.bindForRemoteAddressOnly(null);
+            }
+            finally {
+                client.close();
+            }
         }
         finally {
             instance.stop();
-            Thread.sleep(1000);
+            //The receive threads close the sockets within their 1s receive timeout
+            Thread.sleep(1500);
         }
     }
 
@@ -0,0 +1,106 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package javax.net.stun.services;
+
+import javax.net.stun.HmacKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class CredentialCacheTest {
+    private final HmacKey key1 = new HmacKey("password1".getBytes());
+    private final HmacKey key2 = new HmacKey("password2".getBytes());
+    private final HmacKey key3 = new HmacKey("password3".getBytes());
+
+    public CredentialCacheTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        CredentialCache cache = new CredentialCache(2, 1000);
+        cache.put("USER-1", key1, 0);
+        cache.put("USER-2", key2, 0);
+        //USER-1 is now the most recently used
+        assertSame(key1, cache.get("USER-1", 10));
+        cache.put("USER-3", key3, 20);
+        assertEquals(2, cache.size());
+        assertNull("The least recently used user was not evicted", cache.get("USER-2", 30));
+        assertSame(key1, cache.get("USER-1", 30));
+        assertSame(key3, cache.get("USER-3", 30));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testTimeToLive() {
+        CredentialCache cache = new CredentialCache(10, 1000);
+        cache.put("USER-1", key1, 0);
+        cache.put("USER-2", key2, 500);
+        assertSame(key1, cache.get("USER-1", 999));
+        assertNull("The user was kept after its time to live", cache.get("USER-1", 1000));
+        assertEquals(1, cache.size());
+        assertSame(key2, cache.get("USER-2", 1000));
+        assertNull(cache.get("USER-2", 1500));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testCredentialExpiry() {
+        CredentialCache cache = new CredentialCache(10, 1000);
+        //A credential verified shortly before it expires is not kept for the full time to live
+        cache.put("USER-1", key1, 0, 300);
+        cache.put("USER-2", key2, 0, 5000);
+        assertSame(key1, cache.get("USER-1", 299));
+        assertNull("The user was kept after the credential expired", cache.get("USER-1", 300));
+        assertSame(key2, cache.get("USER-2", 999));
+        assertNull(cache.get("USER-2", 1000));
+    }
+
+    @Test
+    public void testSegments() {
+        //A small cache is one segment with an exact least recently used order
+        assertEquals(1, new CredentialCache(100, 1000).getSegments());
+
+        CredentialCache cache = new CredentialCache(1024, 1000);
+        assertEquals(16, cache.getSegments());
+        for (int i=0; i<4096; i++) {
+            cache.put("USER-"+i, key1, 0);
+            assertSame("A user just added was evicted", key1, cache.get("USER-"+i, 0));
+            assertTrue("The cache holds "+cache.size()+" users", cache.size() <= 1024);
+        }
+        assertTrue("The cache holds "+cache.size()+" users", cache.size() > 512);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class LatencyHistogramTest {
+
+    public LatencyHistogramTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testBuckets() {
+        //The buckets cover all the values without gaps, each within 1/64 of its values
+        long last = -1;
+        for (int i=0; i<LatencyHistogram.index((1L<<36)-1)+1; i++) {
+            long highest = LatencyHistogram.highestValue(i);
+            assertEquals("Bucket "+i, i, LatencyHistogram.index(last+1));
+            assertEquals("Bucket "+i, i, LatencyHistogram.index(highest));
+            assertTrue("Bucket "+i+" is too wide", highest-last <= Math.max(1, (last+1)/64));
+            last = highest;
+        }
+        assertEquals((1L<<36)-1, last);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (long value=1; value<=100000; value++) histogram.record(value);
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000.5, histogram.getMean(), 0.001);
+        long percentiles[] = {50, 90, 99};
+        for (long percentile : percentiles) {
+            long expected = percentile*1000;
+            long value = histogram.getValueAtPercentile(percentile);
+            assertTrue("p"+percentile+" is "+value, value >= expected && value <= expected + expected/64);
+        }
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals((1L<<36)-1, histogram.getMax());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread threads[] = new Thread[8];
+        for (int i=0; i<threads.length; i++) {
+            final long offset = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (long value=1; value<=10000; value++) histogram.record(value*8-offset);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+        //The values 1 to 80000 recorded once each, by 8 threads
+        assertEquals(80000, histogram.getCount());
+        assertEquals(80000, histogram.getMax());
+        assertEquals(80000L*80001/2, histogram.getSum());
+        long value = histogram.getValueAtPercentile(50);
+        assertTrue("p50 is "+value, value >= 40000 && value <= 40000 + 40000/64);
+        assertEquals(80000, histogram.getValueAtPercentile(100));
+    }
+}
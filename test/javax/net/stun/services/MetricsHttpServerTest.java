@@ -0,0 +1,109 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class MetricsHttpServerTest {
+
+    public MetricsHttpServerTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testFormat() {
+        Metrics metrics = new Metrics();
+        metrics.codeCounters("errors_total", "Errors by \"code\"", "code").increment(431);
+        metrics.counter("errors_total", "Errors by \"code\"", "code", "a\"b").add(2);
+        metrics.counter("errors_total_other", "Other\nerrors").add(3);
+        Metrics.Histogram time = metrics.histogram("time_ns", "Time");
+        for (int i=1; i<=100; i++) time.record(i);
+
+        StringBuilder out = new StringBuilder();
+        MetricsHttpServer.write(out, metrics);
+        String text = out.toString();
+        assertEquals(1, count(text, "# HELP errors_total "));
+        assertEquals(1, count(text, "# TYPE errors_total counter\n"));
+        assertTrue(text.contains("errors_total{code=\"431\"} 1\n"));
+        assertTrue(text.contains("errors_total{code=\"a\\\"b\"} 2\n"));
+        assertTrue(text.contains("# HELP errors_total_other Other\\nerrors\n"));
+        assertTrue(text.contains("errors_total_other 3\n"));
+        assertTrue(text.contains("# TYPE time_ns summary\n"));
+        assertTrue(text.contains("time_ns{quantile=\"0.5\"} 50\n"));
+        assertTrue(text.contains("time_ns{quantile=\"0.99\"} 99\n"));
+        assertTrue(text.contains("time_ns_sum 5050\n"));
+        assertTrue(text.contains("time_ns_count 100\n"));
+    }
+
+    @Test
+    public void testScrape() throws Exception {
+        BindingService service = new BindingService(InetAddress.getByName("127.0.0.1"), 0, null, 0);
+        MetricsHttpServer instance = new MetricsHttpServer(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), service.getMetrics());
+        instance.start();
+        try {
+            assertTrue(instance.getPort() > 0);
+            HttpURLConnection connection = (HttpURLConnection)new URL("http://127.0.0.1:"+instance.getPort()+"/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(MetricsHttpServer.CONTENT_TYPE, connection.getContentType());
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte buf[] = new byte[4096];
+            for (int n=in.read(buf); n>=0; n=in.read(buf)) body.write(buf, 0, n);
+            in.close();
+            String text = body.toString("UTF-8");
+            assertTrue(text.contains("# TYPE stun_binding_requests_total counter\n"));
+            assertTrue(text.contains("stun_binding_requests_total{type=\"binding_request\"} 0\n"));
+            assertTrue(text.contains("# TYPE stun_binding_pending_verifications gauge\n"));
+            assertTrue(text.contains("stun_binding_processing_time_ns_count 0\n"));
+
+            connection = (HttpURLConnection)new URL("http://127.0.0.1:"+instance.getPort()+"/metrics").openConnection();
+            connection.setRequestMethod("POST");
+            assertEquals(405, connection.getResponseCode());
+        }
+        finally {
+            instance.stop();
+        }
+        assertEquals(0, instance.getPort());
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i=text.indexOf(part); i>=0; i=text.indexOf(part, i+1)) count++;
+        return count;
+    }
+}
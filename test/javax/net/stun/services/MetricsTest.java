@@ -0,0 +1,85 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class MetricsTest {
+
+    public MetricsTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testRegistry() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter requests = metrics.counter("requests_total", "Requests", "type", "a");
+        assertSame(requests, metrics.counter("requests_total", "Requests", "type", "a"));
+        metrics.counter("requests_total", "Requests", "type", "b").add(2);
+        metrics.counter("requests_total_other", "Not the same name").add(100);
+        requests.increment();
+        assertEquals(1, requests.get());
+        assertEquals(3, metrics.getValue("requests_total"));
+        assertSame(requests, metrics.get("requests_total{type=\"a\"}"));
+
+        Metrics.CodeCounters codes = metrics.codeCounters("errors_total", "Errors", "code");
+        codes.increment(431);
+        codes.increment(431);
+        codes.increment(5000);
+        assertEquals(2, codes.get(431));
+        assertEquals(1, codes.get(0));
+        assertEquals(2, ((Metrics.Counter)metrics.get("errors_total{code=\"431\"}")).get());
+
+        final long depth[] = {7};
+        metrics.gauge("depth", "Queue depth", new Metrics.GaugeSource() {
+            public long getValue() {return depth[0];}
+        });
+        assertEquals(7, metrics.getValue("depth"));
+        depth[0] = 3;
+        assertEquals(3, metrics.getValue("depth"));
+
+        Metrics.Histogram time = metrics.histogram("time_ns", "Time");
+        assertSame(time, metrics.histogram("time_ns", "Time"));
+        time.record(1000);
+        assertEquals(1, time.getHistogram().getCount());
+
+        List<Metrics.Metric> all = metrics.getMetrics();
+        assertEquals(7, all.size());
+        for (int i=1; i<all.size(); i++) assertTrue(all.get(i-1).getKey().compareTo(all.get(i).getKey()) < 0);
+
+        metrics.reset();
+        assertEquals(0, metrics.getValue("requests_total"));
+        assertEquals(0, time.getHistogram().getCount());
+        assertEquals(3, metrics.getValue("depth"));
+    }
+}
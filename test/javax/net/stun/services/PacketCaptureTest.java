@@ -0,0 +1,191 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class PacketCaptureTest {
+
+    public PacketCaptureTest() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    @Test
+    public void testRing() throws Exception {
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        InetAddress server = InetAddress.getByName("192.0.2.2");
+        PacketCapture instance = new PacketCapture(8, 64);
+        ByteBuffer data = ByteBuffer.allocate(100);
+        for (int i=0; i<12; i++) {
+            data.clear();
+            data.put((byte)i);
+            data.position(0);
+            data.limit(20);
+            instance.record(data, client, 40000+i, server, 3478);
+            assertEquals("The position of the data was changed", 0, data.position());
+            assertEquals("The limit of the data was changed", 20, data.limit());
+        }
+        assertEquals(12, instance.getRecorded());
+
+        ByteBuffer pcap = dump(instance, 8);
+        //The oldest datagrams were overwritten
+        for (int i=4; i<12; i++) {
+            int record = pcap.position();
+            assertEquals(28+20, pcap.getInt(record+8));
+            assertEquals(28+20, pcap.getInt(record+12));
+            int ip = record+16;
+            assertEquals(0x45, pcap.get(ip) & 0xff);
+            assertEquals(17, pcap.get(ip+9));
+            assertEquals("Wrong IPv4 checksum", 0, checksum(pcap, ip, 20, 0));
+            assertEquals(client, InetAddress.getByAddress(new byte[] {pcap.get(ip+12), pcap.get(ip+13), pcap.get(ip+14), pcap.get(ip+15)}));
+            assertEquals(40000+i, pcap.getShort(ip+20) & 0xffff);
+            assertEquals(3478, pcap.getShort(ip+22) & 0xffff);
+            assertEquals(i, pcap.get(ip+28));
+            //The UDP checksum over the pseudo header and the datagram is 0 when valid
+            long pseudo = 17 + 28 + sum(pcap, ip+12, 8);
+            assertEquals("Wrong UDP checksum", 0, checksum(pcap, ip+20, 28, pseudo));
+            pcap.position(ip+48);
+        }
+    }
+
+    @Test
+    public void testSnapLength() throws Exception {
+        InetAddress client = InetAddress.getByName("2001:db8::1");
+        InetAddress server = InetAddress.getByName("192.0.2.2");
+        PacketCapture instance = new PacketCapture(4, 32);
+        instance.record(ByteBuffer.allocate(100), client, 40000, server, 3478);
+        ByteBuffer pcap = dump(instance, 1);
+        //An IPv6 packet with the datagram cut at the snap length
+        assertEquals(40+8+32, pcap.getInt(24+8));
+        assertEquals(40+8+100, pcap.getInt(24+12));
+        assertEquals(6, (pcap.get(24+16) & 0xff) >> 4);
+        assertEquals(108, pcap.getShort(24+16+4) & 0xffff);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final InetAddress client = InetAddress.getByName("192.0.2.1");
+        final InetAddress server = InetAddress.getByName("192.0.2.2");
+        //Few slots, so the threads keep wrapping onto the slots of each other
+        final PacketCapture instance = new PacketCapture(2, 512);
+        Thread threads[] = new Thread[8];
+        for (int i=0; i<threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    ByteBuffer data = ByteBuffer.allocate(256+index);
+                    while (data.hasRemaining()) data.put((byte)index);
+                    for (int j=0; j<20000; j++) {
+                        data.clear();
+                        instance.record(data, client, 40000+index, server, 3478);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        //Dumped while recorded and after, a datagram is never mixed with another
+        while (threads[0].isAlive()) checkDatagrams(instance);
+        for (Thread thread : threads) thread.join();
+        assertEquals(160000, instance.getRecorded());
+        assertEquals(2, checkDatagrams(instance));
+    }
+
+    @Test
+    public void testRecordWithoutGarbage() throws Exception {
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        InetAddress server = InetAddress.getByName("2001:db8::2");
+        PacketCapture instance = new PacketCapture(8, 64);
+        ByteBuffer data = ByteBuffer.allocate(20);
+        instance.record(data, client, 40000, server, 3478);
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+        long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i=0; i<10000; i++) instance.record(data, client, 40000, server, 3478);
+        long allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId())-before;
+        assertTrue("Allocated "+allocated+" bytes", allocated < 10000);
+    }
+
+    /**
+     * @return number of datagrams dumped, each checked to hold the data of the thread given by its source port.
+     */
+    private static int checkDatagrams(PacketCapture instance) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = instance.dump(out);
+        out.flush();
+        ByteBuffer pcap = ByteBuffer.wrap(bytes.toByteArray());
+        pcap.position(24);
+        for (int i=0; i<count; i++) {
+            int record = pcap.position();
+            int ip = record+16;
+            int index = (pcap.getShort(ip+20) & 0xffff) - 40000;
+            assertEquals("Datagram of thread "+index, 28+256+index, pcap.getInt(record+8));
+            assertEquals("Datagram of thread "+index, 8+256+index, pcap.getShort(ip+24) & 0xffff);
+            for (int j=0; j<256+index; j++) assertEquals("Datagram of thread "+index, index, pcap.get(ip+28+j));
+            pcap.position(ip+28+256+index);
+        }
+        return count;
+    }
+
+    private static ByteBuffer dump(PacketCapture instance, int expected) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        assertEquals(expected, instance.dump(out));
+        out.flush();
+        ByteBuffer pcap = ByteBuffer.wrap(bytes.toByteArray());
+        assertEquals(0xa1b2c3d4, pcap.getInt(0));
+        assertEquals(101, pcap.getInt(20));
+        pcap.position(24);
+        return pcap;
+    }
+
+    private static long sum(ByteBuffer buffer, int offset, int length) {
+        long sum = 0;
+        for (int i=0; i<length; i+=2) {
+            sum += (buffer.get(offset+i) & 0xff) << 8;
+            if (i+1<length) sum += buffer.get(offset+i+1) & 0xff;
+        }
+        return sum;
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length, long initial) {
+        long sum = initial + sum(buffer, offset, length);
+        while ((sum >> 16)!=0) sum = (sum & 0xffff) + (sum >> 16);
+        return (int)(~sum & 0xffff);
+    }
+}
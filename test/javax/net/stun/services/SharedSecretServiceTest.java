@@ -19,8 +19,24 @@
 package javax.net.stun.services;
 
 import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.net.stun.MessageAttribute;
+import javax.net.stun.MessageHeader;
 import javax.net.stun.SharedSecret;
+import javax.net.stun.SharedSecretConnection;
 import javax.net.stun.StunClient;
+import javax.net.stun.StunMessageView;
+import javax.net.stun.StunMessageWriter;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -37,6 +53,12 @@ public class SharedSecretServiceTest {
     public SharedSecretServiceTest() {
     }
 
+    @BeforeClass
+    public static void setUpClass() {
+        //The test key-store holds a DSA key, which can not be used with TLS 1.3
+        System.setProperty("jdk.tls.client.protocols", "TLSv1.2");
+    }
+
     @Before
     public void setUp() {
     }
@@ -55,7 +77,7 @@ public class SharedSecretServiceTest {
         System.setProperty("javax.net.ssl.trustStoreType", "JKS");
         
         SharedSecretService instance = new SharedSecretService();
-        instance.setKeyStore(keyStoreFile, "henriksp".toCharArray(), "henrikkp".toCharArray());
+        instance.setKeyStore(keyStoreFile, "henrikkp".toCharArray(), "henrikkp".toCharArray());
         instance.start();
         try {
             System.out.println("Wait for the servcie thread to start");
@@ -77,4 +99,202 @@ public class SharedSecretServiceTest {
             instance.stop();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUserStore() throws Exception {
+        SharedSecretService instance = new SharedSecretService();
+        Set<String> usernames = new HashSet<String>();
+        UserHolder last = null;
+        for (int i=0; i<10000; i++) {
+            last = instance.createUser();
+            assertTrue("Username is not unique: "+last.username, usernames.add(last.username));
+            assertEquals("Username must be a multiple of 4 bytes", 0, last.username.length()%4);
+        }
+        assertEquals(10000, instance.getUserCount());
+        assertEquals(10000, instance.getUsers().size());
+        assertSame(last, instance.getUser(last.username));
+        assertNull(instance.getUser("USER-unknown"));
+
+        //Look up the user of a received request
+        MessageHeader head = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        head.genrateTransactionId();
+        StunMessageWriter writer = new StunMessageWriter();
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        writer.wrap(buffer);
+        writer.putHeader(MessageHeader.BINDING_REQUEST, head.getTransactionId());
+        writer.putAttribute(MessageAttribute.USERNAME, last.username.getBytes("UTF-8"));
+        writer.putMessageIntegrity(last.password);
+        writer.finish();
+        StunMessageView view = new StunMessageView();
+        assertTrue(view.wrap(buffer));
+        assertSame(last.key, instance.getKey(view));
+        assertEquals(0, instance.controllMessageIntegrity(view));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        SharedSecretService instance = new SharedSecretService(InetAddress.getByName("127.0.0.1"), 3478);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = instance.registerMBean();
+        try {
+            instance.createUser();
+            instance.createUser();
+            assertEquals(2, server.getAttribute(name, "Credentials"));
+            assertEquals(0L, server.getAttribute(name, "Requests"));
+            assertEquals(0.0, (Double)server.getAttribute(name, "WorkerUtilization"), 0.0);
+
+            server.setAttribute(name, new Attribute("CredentialTtl", 1000L));
+            assertEquals(1000, instance.getCredentialTtl());
+            server.setAttribute(name, new Attribute("KeepAliveTimeout", 2000));
+            assertEquals(2000, instance.getKeepAliveTimeout());
+        }
+        finally {
+            instance.unregisterMBean();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testCredentialTtl() throws Exception {
+        SharedSecretService instance = new SharedSecretService();
+        instance.setCredentialTtl(50);
+        UserHolder shortLived = instance.createUser();
+        instance.setCredentialTtl(SharedSecretService.DEFAULT_CREDENTIAL_TTL);
+        UserHolder longLived = instance.createUser();
+        assertSame(shortLived, instance.getUser(shortLived.username));
+
+        Thread.sleep(100);
+        //Expired users are refused even before the expiry timer has removed them
+        assertNull(instance.getUser(shortLived.username));
+        assertSame(longLived, instance.getUser(longLived.username));
+        assertEquals(2, instance.getUserCount());
+
+        Thread.sleep(2000);
+        assertEquals(1, instance.expireUsers());
+        assertEquals(1, instance.getUserCount());
+        assertSame(longLived, instance.getUser(longLived.username));
+    }
+
+    @Test
+    public void testStalledClients() throws Exception {
+        File keyStoreFile = new File("StunTest.jks");
+        System.setProperty("javax.net.ssl.trustStore", keyStoreFile.getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStoreType", "JKS");
+
+        InetAddress host = InetAddress.getByName("127.0.0.1");
+        SharedSecretService instance = new SharedSecretService(host, 3479);
+        instance.setKeyStore(keyStoreFile, "henrikkp".toCharArray(), "henrikkp".toCharArray());
+        instance.setWorkerThreads(4);
+        instance.setReadTimeout(2000);
+        instance.start();
+        Socket stalled[] = new Socket[2];
+        try {
+            int count = 0;
+            while (!instance.isRunning()) {
+                Thread.sleep(100);
+                count++;
+                if (count>100) fail("The thraed failed to start");
+            }
+            Thread.sleep(500);
+
+            //Clients connecting without ever starting the TLS handshake
+            for (int i=0; i<stalled.length; i++) stalled[i] = new Socket(host, 3479);
+            Thread.sleep(100);
+
+            long start = System.currentTimeMillis();
+            StunClient client = new StunClient("127.0.0.1", 3479);
+            SharedSecret secret = client.requestSharedSecret();
+            long time = System.currentTimeMillis()-start;
+            client.close();
+            assertNotNull("No secret was shared",secret);
+            assertTrue("The secret return error: "+secret.getErrorCode()+" ["+secret.getErrorMessage()+"]", secret.getErrorCode()==0);
+            assertTrue("The stalled clients delayed the request "+time+"ms", time < 2000);
+
+            //The stalled clients are disconnected after the read timeout
+            for (Socket sock : stalled) {
+                sock.setSoTimeout(5000);
+                InputStream in = sock.getInputStream();
+                try {
+                    while (in.read()>=0) {}
+                } catch (SocketException ignore) {
+                    //Connection reset
+                }
+            }
+        }
+        finally {
+            for (Socket sock : stalled) if (sock!=null) sock.close();
+            instance.stop();
+        }
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        File keyStoreFile = new File("StunTest.jks");
+        System.setProperty("javax.net.ssl.trustStore", keyStoreFile.getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStoreType", "JKS");
+
+        InetAddress host = InetAddress.getByName("127.0.0.1");
+        SharedSecretService instance = new SharedSecretService(host, 3479);
+        instance.setKeyStore(keyStoreFile, "henrikkp".toCharArray(), "henrikkp".toCharArray());
+        instance.start();
+        SharedSecretConnection connection = new SharedSecretConnection(host, 3479);
+        try {
+            int count = 0;
+            while (!instance.isRunning()) {
+                Thread.sleep(100);
+                count++;
+                if (count>100) fail("The thraed failed to start");
+            }
+            Thread.sleep(500);
+
+            //Two Shared Secret Requests over the same connection
+            MessageHeader answers[] = new MessageHeader[2];
+            for (int i=0; i<answers.length; i++) {
+                MessageHeader request = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_REQUEST);
+                request.genrateTransactionId();
+                answers[i] = connection.exchange(request);
+                assertEquals(MessageHeader.HeaderType.SHARED_SECRET_RESPONSE, answers[i].getType());
+                assertArrayEquals(request.getTransactionId(), answers[i].getTransactionId());
+            }
+            assertEquals(1, connection.getConnects());
+            assertEquals(2, connection.getExchanges());
+            String username = answers[1].getMessageAttribute(MessageAttribute.MessageAttributeType.USERNAME).getUsername();
+            byte password[] = answers[1].getMessageAttribute(MessageAttribute.MessageAttributeType.PASSWORD).getPassword();
+            assertFalse(username.equals(answers[0].getMessageAttribute(MessageAttribute.MessageAttributeType.USERNAME).getUsername()));
+
+            //And a Shared Secret Verify Request after being idle for a while
+            Thread.sleep(1000);
+            MessageHeader head = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+            head.genrateTransactionId();
+            StunMessageWriter writer = new StunMessageWriter();
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            writer.wrap(buffer);
+            writer.putHeader(MessageHeader.BINDING_REQUEST, head.getTransactionId());
+            writer.putAttribute(MessageAttribute.USERNAME, username.getBytes("UTF-8"));
+            writer.putMessageIntegrity(password);
+            byte message[] = new byte[writer.finish()];
+            buffer.get(message);
+            MessageHeader verify = MessageHeader.create(message);
+            verify.setType(MessageHeader.HeaderType.SHARED_SECRET_VERIFY_REQUEST);
+            MessageHeader answer = connection.exchange(verify);
+            assertEquals(MessageHeader.HeaderType.SHARED_SECRET_RESPONSE, answer.getType());
+            assertArrayEquals(password, answer.getMessageAttribute(MessageAttribute.MessageAttributeType.PASSWORD).getPassword());
+            long lifetime = answer.getMessageAttribute(MessageAttribute.MessageAttributeType.LIFETIME).getLifetime();
+            assertTrue("Lifetime "+lifetime, lifetime>0 && lifetime<=instance.getCredentialTtl()/1000);
+            assertEquals(1, connection.getConnects());
+
+            //A new connection resumes the TLS session
+            byte sessionId[] = connection.getSession().getId();
+            connection.close();
+            MessageHeader request = new MessageHeader(MessageHeader.HeaderType.SHARED_SECRET_REQUEST);
+            request.genrateTransactionId();
+            assertEquals(MessageHeader.HeaderType.SHARED_SECRET_RESPONSE, connection.exchange(request).getType());
+            assertEquals(2, connection.getConnects());
+            assertArrayEquals("The TLS session was not resumed", sessionId, connection.getSession().getId());
+        }
+        finally {
+            connection.close();
+            instance.stop();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package javax.net.stun.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class TimerWheelTest {
+    private final List<Long> expired = new ArrayList<Long>();
+    private long now;
+
+    public TimerWheelTest() {
+    }
+
+    @Before
+    public void setUp() {
+        expired.clear();
+        now = 1000000;
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private TimerWheel<Long> createWheel() {
+        return new TimerWheel<Long>(100, 16, new TimerWheel.Listener<Long>() {
+            public void expired(Long item) {
+                assertTrue("Item expired before its deadline", item <= now);
+                expired.add(item);
+            }
+        }, now);
+    }
+
+    @Test
+    public void testExpiry() {
+        TimerWheel<Long> wheel = createWheel();
+        //Deadlines within the first turn, several turns ahead and already passed
+        long deadlines[] = {now+50, now+150, now+1550, now+5000, now-10};
+        for (long deadline : deadlines) wheel.schedule(deadline, deadline);
+        assertEquals(0, wheel.advance(now));
+        assertEquals(deadlines.length, wheel.size());
+
+        for (int i=0; i<70; i++) {
+            now += 100;
+            wheel.advance(now);
+        }
+        assertEquals(deadlines.length, expired.size());
+        assertEquals(0, wheel.size());
+        //The passed deadline expires in the first tick and the one several turns ahead last
+        assertTrue(expired.subList(0, 2).contains(Long.valueOf(1000000-10)));
+        assertEquals(Long.valueOf(1000000+5000), expired.get(4));
+    }
+
+    @Test
+    public void testLongPause() {
+        TimerWheel<Long> wheel = createWheel();
+        for (int i=0; i<100; i++) wheel.schedule(now+i*37, now+i*37);
+        wheel.advance(now);
+        //Much more than a turn of the wheel passes between two calls
+        now += 2000;
+        wheel.advance(now);
+        for (long item : expired) assertTrue(item < now);
+        now += 10000;
+        wheel.advance(now);
+        assertEquals(100, expired.size());
+    }
+
+    @Test
+    public void testLateness() {
+        TimerWheel<Long> wheel = createWheel();
+        long deadline = now+1234;
+        wheel.schedule(deadline, deadline);
+        while (expired.isEmpty()) {
+            now += 10;
+            wheel.advance(now);
+        }
+        assertTrue("Expired to late: "+(now-deadline), now-deadline <= 2*wheel.getTickMillis());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyrigth (C) 2010 Henrik Baastrup.
+ *
+ * Licensed under the GNU Lesser General Public License version 3;
+ * you may not use this file except in compliance with the License.
+ * You should have received a copy of the license together with this
+ * file but can obtain a copy of the License at:
+ *
+ *       http://www.gnu.org/licenses/lgpl-3.0.txt
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package javax.net.stun.services;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import javax.net.stun.MessageHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Henrik Baastrup
+ */
+public class TracerTest {
+    private Logger logger;
+    private final List<LogRecord> records = new ArrayList<LogRecord>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {records.add(record);}
+        @Override
+        public void flush() {}
+        @Override
+        public void close() {}
+    };
+
+    public TracerTest() {
+    }
+
+    @Before
+    public void setUp() {
+        logger = Logger.getLogger(TracerTest.class.getName());
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+    }
+
+    @After
+    public void tearDown() {
+        logger.removeHandler(handler);
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        InetAddress other = InetAddress.getByName("192.0.2.2");
+        Tracer instance = new Tracer(logger);
+        assertFalse(instance.sample(client));
+
+        instance.setEnabled(true);
+        instance.setSampleRate(10);
+        int sampled = 0;
+        for (int i=0; i<1000; i++) if (instance.sample(client)) sampled++;
+        assertEquals(100, sampled);
+        assertEquals(100, instance.getTraced());
+
+        instance.setSampleRate(1);
+        instance.setClients("192.0.2.1");
+        assertTrue(instance.sample(client));
+        assertFalse(instance.sample(other));
+        assertEquals("192.0.2.1", instance.getClientList());
+        instance.setClients("");
+        assertTrue(instance.sample(other));
+    }
+
+    @Test
+    public void testLazyFormatting() throws Exception {
+        InetAddress client = InetAddress.getByName("192.0.2.1");
+        Tracer instance = new Tracer(logger);
+        final int formatted[] = {0};
+        Object message = new Object() {
+            @Override
+            public String toString() {
+                formatted[0]++;
+                return "message";
+            }
+        };
+        instance.trace("Received request from", client, 3478, message);
+        assertEquals(1, records.size());
+        assertEquals(0, formatted[0]);
+        assertEquals("Received request from /192.0.2.1:3478 => message", new SimpleFormatter().formatMessage(records.get(0)));
+        assertEquals(1, formatted[0]);
+
+        //The bytes are copied, the buffer may be reused before the record is formatted
+        MessageHeader header = new MessageHeader(MessageHeader.HeaderType.BINDING_REQUEST);
+        header.genrateTransactionId();
+        byte bytes[] = header.toBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.clone());
+        instance.trace("Received request from", client, 3478, buffer);
+        buffer.put(0, (byte)0x7f);
+        assertEquals("Received request from /192.0.2.1:3478 => "+MessageHeader.create(bytes), new SimpleFormatter().formatMessage(records.get(1)));
+    }
+}